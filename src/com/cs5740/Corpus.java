@@ -1,13 +1,30 @@
 package com.cs5740;
 
+import com.cs5740.models.AliasSampler;
+import com.cs5740.models.ArpaFormat;
+import com.cs5740.models.BackoffModels;
+import com.cs5740.models.CompactModels;
+import com.cs5740.models.Lexicon;
+import com.cs5740.models.ModelUpdates;
+import com.cs5740.models.ModelFile;
 import com.cs5740.models.NgramModel;
+import com.cs5740.models.NgramWalker;
+import com.cs5740.models.PartialCountFile;
+import com.cs5740.models.ProbabilityCache;
+import com.cs5740.tokenizer.Tokenizer;
 import com.cs5740.tokenlist.LinkedTokenList;
 import com.cs5740.tokenlist.TokenList;
 
-import static com.cs5740.models.NgramModel.NgramModelBuilder;
-
 import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.DoubleSupplier;
 
 /**
  * A class representing a corpus of texts, with unigram and bigram support.
@@ -17,18 +34,35 @@ import java.util.*;
 public class Corpus {
     static final String PATH_TO_BOOKS_TRAIN = "data/books/train_books/";
     static final String PATH_TO_BOOKS_TEST = "data/books/test_books/";
-    // The regex string that matches punctuation that we want to turn into tokens.
-    static final String PUNCTUATION = "([^a-zA-Z0-9' -])";
+    // The number of sentences a single task creates when sentences are created in parallel.
+    static final int SENTENCES_PER_TASK = 64;
+    // The number of sentences writeSentences holds in memory at a time.
+    static final int SENTENCES_PER_BATCH = 4096;
 
     // A random number generator. We only keep track of this to prevent non-deterministic outcomes.
     Random random = new Random(1);
     // A collection of all the tokens in this corpus stored as n-gram models.
     Map<Integer, NgramModel> ngramModels = new HashMap<>();
+    // The samplers that generate words from each n-gram model, created as they're needed.
+    final Map<Integer, AliasSampler> samplers = new HashMap<>();
+    // The compaction of updated models under way on another thread, and the models it started from, or null if there
+    // is none.
+    CompletableFuture<Map<Integer, NgramModel>> compaction = null;
+    Map<Integer, NgramModel> compactionSource = null;
+    // The cache in front of getProbability, or null if there is none.
+    ProbabilityCache probabilityCache = null;
+    // The vocabulary shared by every n-gram model in this corpus.
+    final Lexicon lexicon;
     // The name of this corpus
     final String name;
 
     private Corpus(final String name) {
+        this(name, new Lexicon());
+    }
+
+    private Corpus(final String name, final Lexicon lexicon) {
         this.name = name;
+        this.lexicon = lexicon;
         random.setSeed(0);
     }
 
@@ -70,7 +104,9 @@ public class Corpus {
                 final TokenList tokenList = iterator.next();
                 // Compute the contribution to the sum
                 int numOccurrences = testNgramModel.getUnsmoothedTokenFrequency(tokenList);
-                double anomalyScore = Utils.getAnomalyScore(trainNgramModel.getProbability(tokenList, SmoothOptions.DEFAULT));
+                final TokenList trainTokenList = testCorpus.lexicon == lexicon ?
+                        tokenList : translateTokens(tokenList, testCorpus.lexicon);
+                double anomalyScore = Utils.getAnomalyScore(trainNgramModel.getProbability(trainTokenList, SmoothOptions.DEFAULT));
                 sum += numOccurrences * anomalyScore;
             }
             sum /= testNgramModel.getTotalCount();
@@ -79,6 +115,81 @@ public class Corpus {
         return sum;
     }
 
+    /**
+     * Creates an evaluator that measures the perplexity of one of this corpus's models on streams of test text.
+     * Unlike {@link #calculatePerplexityFromModel(Corpus, int)}, the test text is never turned into a corpus: every
+     * n-gram is scored as it is read, in constant memory. Since the test text has no vocabulary of its own, its rare
+     * words aren't replaced with the unknown word token, only the words this corpus has never seen.
+     * @param n The n-value of the model to evaluate.
+     * @param smoothOptions The smoothing option with which n-gram probabilities are computed.
+     * @return A new perplexity evaluator.
+     */
+    public PerplexityEvaluator createPerplexityEvaluator(final int n, final SmoothOptions smoothOptions) {
+        final NgramModel model = ngramModels.get(n);
+        if (model == null) {
+            throw new IllegalArgumentException("This corpus has no " + NgramModel.getNgramName(n) + " model");
+        }
+        return new PerplexityEvaluator(model, smoothOptions, Tokenizer.DEFAULT);
+    }
+
+    /**
+     * Creates a walker that finds the counts and probabilities of the n-grams of every order that start a window of
+     * words in one walk down the models' shared structure, rather than one lookup per order. See
+     * {@link NgramWalker}. The walker reflects the models as they are now, so it should be created again after an
+     * update or a compaction.
+     * @return A new walker over every order from 1 up.
+     */
+    public NgramWalker createNgramWalker() {
+        finishCompaction(true);
+        return new NgramWalker(ngramModels);
+    }
+
+    /**
+     * Calculates the perplexity of this model on a stream of test text, without building a test corpus.
+     * See {@link #createPerplexityEvaluator(int, SmoothOptions)}.
+     * @param inputStream The test text. It is not closed.
+     * @param n The n-value of the model to evaluate.
+     * @return The perplexity, or NaN if the test text holds no n-grams.
+     * @throws IOException If the input stream couldn't be read.
+     */
+    public double calculatePerplexity(final InputStream inputStream, final int n) throws IOException {
+        return createPerplexityEvaluator(n, SmoothOptions.DEFAULT).evaluate(inputStream).getPerplexity();
+    }
+
+    /**
+     * Calculates the perplexity of this model on a file of test text, without building a test corpus.
+     * See {@link #createPerplexityEvaluator(int, SmoothOptions)}.
+     * @param path The test file.
+     * @param n The n-value of the model to evaluate.
+     * @return The perplexity, or NaN if the test file holds no n-grams.
+     * @throws IOException If the file couldn't be read.
+     */
+    public double calculatePerplexity(final Path path, final int n) throws IOException {
+        return createPerplexityEvaluator(n, SmoothOptions.DEFAULT).evaluate(path).getPerplexity();
+    }
+
+    /**
+     * Calculates the perplexity of this model on every file of a test genre, without building a test corpus. The
+     * files are read as one stream, in the same order as {@link #createCorpusFromGenre(String, String, int, int)}
+     * reads them. See {@link #createPerplexityEvaluator(int, SmoothOptions)}.
+     * @param directory The directory holding the genre folders.
+     * @param genreName The name of the test genre.
+     * @param n The n-value of the model to evaluate.
+     * @return The perplexity, or NaN if the genre holds no n-grams.
+     * @throws IOException If the folder corresponding to the given genre doesn't exist, or a file could not be read.
+     */
+    public double calculatePerplexityFromGenre(final String directory, final String genreName, final int n) throws IOException {
+        final File[] filesInGenreDirectory = new File(directory + "/" + genreName + "/").listFiles();
+        if (filesInGenreDirectory == null) {
+            throw new FileNotFoundException("No genre folder for " + genreName + " in " + directory);
+        }
+        final PerplexityEvaluator evaluator = createPerplexityEvaluator(n, SmoothOptions.DEFAULT);
+        for (final File file : filesInGenreDirectory) {
+            evaluator.evaluate(file.toPath());
+        }
+        return evaluator.getPerplexity();
+    }
+
     /**
      * Creates a sentence that is numWords words long, using the given n-gram model.
      *
@@ -87,27 +198,87 @@ public class Corpus {
      * @return A generated sentence.
      */
     public String createSentence(int n, int numWords) {
-        if (numWords <= 0 || !ngramModels.containsKey(n)) {
-            return "";
-        }
-        NgramModel model = ngramModels.get(n);
-        TokenList previousWords = new LinkedTokenList();
-        StringBuilder result = new StringBuilder(ngramModels.get(1).getWord(null, random.nextDouble()));
-        previousWords.addLast(result.toString());
-        numWords--;
-        while (numWords > 0) {
-            // Get the next word. This involves us keeping a list of previous words up-to-date.
-            final String nextWord = generateNextWord(model, previousWords);
-            if (n > 0) {
-                previousWords.addLast(nextWord);
-                if (previousWords.size() > n - 1) {
-                    previousWords = previousWords.tail();
-                }
+        return createSentence(n, numWords, random::nextDouble, samplers);
+    }
+
+    /**
+     * Creates a generator of numWords words, using the given n-gram model, which samples each word as it is asked
+     * for. The generator shares this corpus's random number generator, so it generates the same words as
+     * {@link #createSentence(int, int)} would have.
+     *
+     * @param n        The n parameter to decide which n-gram model to use.
+     * @param numWords The number of words to generate.
+     * @return A new generator.
+     * @throws IllegalArgumentException If this corpus doesn't have an n-gram model for n.
+     */
+    public TokenGenerator createTokenGenerator(final int n, final long numWords) {
+        return createTokenGenerator(n, numWords, random::nextDouble, samplers);
+    }
+
+    /**
+     * Creates a generator of numWords words, using the given n-gram model, which samples each word as it is asked
+     * for. The generator has its own random number generator and samplers, so it can be used on another thread
+     * while this corpus is used on this one.
+     *
+     * @param n        The n parameter to decide which n-gram model to use.
+     * @param numWords The number of words to generate.
+     * @param seed     The seed of the generator's random number generator.
+     * @return A new generator.
+     * @throws IllegalArgumentException If this corpus doesn't have an n-gram model for n.
+     */
+    public TokenGenerator createTokenGenerator(final int n, final long numWords, final long seed) {
+        return createTokenGenerator(n, numWords, new SplittableRandom(seed)::nextDouble, forkSamplers());
+    }
+
+    /**
+     * Creates many sentences that are numWords words long, using the given n-gram model, on a pool of threads.
+     * <p>
+     * Every sentence gets its own random number generator, split in order from a generator seeded with the given
+     * seed, so the sentences only depend on the seed, and not on the pool or how many threads it has.
+     *
+     * @param n            The n parameter to decide which n-gram model to use.
+     * @param numWords     The number of words that should be in each sentence.
+     * @param numSentences The number of sentences to create.
+     * @param seed         The seed from which every sentence's random number generator is derived.
+     * @param pool         The pool on which sentences are created, or null to create them on this thread.
+     * @return A list of generated sentences.
+     */
+    public List<String> createSentences(final int n, final int numWords, final int numSentences, final long seed,
+                                       final ForkJoinPool pool) {
+        final String[] sentences = new String[numSentences];
+        createSentences(n, numWords, createRandoms(new SplittableRandom(seed), numSentences), sentences,
+                new SamplerForks(pool));
+        return Arrays.asList(sentences);
+    }
+
+    /**
+     * Writes many sentences that are numWords words long to a writer, one per line, using the given n-gram model, on
+     * a pool of threads. The sentences are the same as those returned by
+     * {@link #createSentences(int, int, int, long, ForkJoinPool)}, but only a batch of them is held in memory at a
+     * time.
+     *
+     * @param writer       The writer to write to. It is not closed.
+     * @param n            The n parameter to decide which n-gram model to use.
+     * @param numWords     The number of words that should be in each sentence.
+     * @param numSentences The number of sentences to write.
+     * @param seed         The seed from which every sentence's random number generator is derived.
+     * @param pool         The pool on which sentences are created, or null to create them on this thread.
+     * @throws IOException If the sentences could not be written.
+     */
+    public void writeSentences(final Writer writer, final int n, final int numWords, final int numSentences,
+                               final long seed, final ForkJoinPool pool) throws IOException {
+        final SplittableRandom master = new SplittableRandom(seed);
+        final String[] sentences = new String[Math.min(numSentences, SENTENCES_PER_BATCH)];
+        // Every batch reuses the same forks, so the threads keep their samplers' caches from one batch to the next
+        final SamplerForks forks = new SamplerForks(pool);
+        for (int written = 0; written < numSentences; written += sentences.length) {
+            final int batchSize = Math.min(sentences.length, numSentences - written);
+            createSentences(n, numWords, createRandoms(master, batchSize), sentences, forks);
+            for (int i = 0; i < batchSize; i++) {
+                writer.write(sentences[i]);
+                writer.write('\n');
             }
-            addToStringBuilder(result, nextWord);
-            numWords--;
         }
-        return result.toString();
     }
 
     /**
@@ -119,7 +290,114 @@ public class Corpus {
     }
 
     /**
-     * Returns the probability that the given list of tokens is found in this corpus.
+     * Gets the vocabulary of this corpus. Token lists given to this corpus should be made of IDs from this lexicon.
+     * @return The lexicon of this corpus.
+     */
+    public Lexicon getLexicon() {
+        return lexicon;
+    }
+
+    /**
+     * Writes the lexicon and every n-gram model of this corpus to a binary model file, which can be loaded much
+     * faster than the corpus can be rebuilt. See {@link ModelFile}.
+     * @param path The file to write. It is replaced if it exists.
+     * @throws IOException If the file could not be written.
+     */
+    public void writeModelFile(final Path path) throws IOException {
+        ModelFile.write(path, name, lexicon, ngramModels);
+    }
+
+    /**
+     * Replaces the n-gram models of this corpus with compact, read-only copies, which give the same results in a
+     * fraction of the heap. See {@link CompactModels}.
+     * @param packed Whether to bit-pack the models as well, which saves more memory but makes lookups a bit slower.
+     */
+    public void compact(final boolean packed) {
+        finishCompaction(true);
+        ngramModels = CompactModels.compact(ngramModels, packed);
+        samplers.clear();
+    }
+
+    /**
+     * Adds the text of an input stream to this corpus's n-gram models, without rebuilding them. See
+     * {@link #update(InputStream, IngestOptions, Executor)}.
+     * @param inputStream The input stream to add. It is closed once it has been read.
+     * @throws IOException If the input stream could not be read.
+     */
+    public void update(final InputStream inputStream) throws IOException {
+        update(inputStream, IngestOptions.DEFAULT, null);
+    }
+
+    /**
+     * Adds the text of an input stream to this corpus's n-gram models, without rebuilding them.
+     * <p>
+     * The n-grams of the text are counted into small delta models, which are laid over the current models (see
+     * {@link ModelUpdates}), so an update costs time in proportion to the new text and the updates before it, not to
+     * the size of the corpus. Every statistic, lookup and generated word reflects the update as soon as this returns.
+     * Once the deltas grow past a fraction of the models, they are compacted into the models: on the given executor
+     * if there is one, in which case the overlays keep answering lookups until the compacted models are swapped in by
+     * a later call, or on this thread otherwise.
+     * <p>
+     * The text is counted as a separate document, so no n-gram spans the end of the corpus and the start of the text.
+     * Rare words are not replaced with the unknown word token: every word of the text counts as itself, including
+     * words the corpus has never seen, which are added to its lexicon. This corpus must not be used by other threads
+     * during an update.
+     * @param inputStream The input stream to add. It is closed once it has been read.
+     * @param options The options that control how the input stream is read. The storage options are ignored.
+     * @param compactor The executor on which models are compacted, or null to compact them on this thread.
+     * @throws IOException If the input stream could not be read.
+     * @throws IllegalArgumentException If this corpus has nested or back-off models, which can't be updated.
+     */
+    public void update(final InputStream inputStream, final IngestOptions options, final Executor compactor)
+            throws IOException {
+        final NgramCounter counter = new NgramCounter(new ArrayList<>(ngramModels.keySet()), lexicon,
+                options.withCountingTrie(false).withPackedModels(false));
+        try (InputStream in = inputStream) {
+            options.getTokenizer().tokenize(in, counter);
+        }
+        // Swap in a finished compaction first, so that the new delta is merged into the smaller one
+        finishCompaction(false);
+        ngramModels = ModelUpdates.add(ngramModels, counter.build(0));
+        samplers.clear();
+        if (probabilityCache != null) {
+            probabilityCache.invalidate();
+        }
+        if (compaction == null && ModelUpdates.needsCompaction(ngramModels)) {
+            if (compactor == null) {
+                ngramModels = ModelUpdates.compact(ngramModels);
+            } else {
+                final Map<Integer, NgramModel> compactedFrom = ngramModels;
+                compactionSource = compactedFrom;
+                compaction = CompletableFuture.supplyAsync(() -> ModelUpdates.compact(compactedFrom), compactor);
+            }
+        }
+    }
+
+    /**
+     * Folds every update into this corpus's n-gram models, waiting for a compaction that is under way to finish
+     * first. Lookups are fastest once this is done.
+     */
+    public void compactUpdates() {
+        finishCompaction(true);
+        if (ModelUpdates.hasUpdates(ngramModels)) {
+            ngramModels = ModelUpdates.compact(ngramModels);
+            samplers.clear();
+        }
+    }
+
+    /**
+     * Writes every n-gram model of this corpus in the ARPA format. See {@link ArpaFormat}.
+     * @param writer The writer to write to. It is not closed.
+     * @param smoothOptions The smoothing option used to compute the probabilities of count models.
+     * @throws IOException If the file could not be written.
+     */
+    public void writeArpa(final Writer writer, final SmoothOptions smoothOptions) throws IOException {
+        ArpaFormat.write(writer, ngramModels.values(), smoothOptions);
+    }
+
+    /**
+     * Returns the probability that the given list of tokens is found in this corpus, through the probability cache
+     * if there is one.
      *
      * @param tokens        The token list whose probability should be retrieved.
      * @param smoothOptions The smoothing option.
@@ -128,11 +406,75 @@ public class Corpus {
      * zero is returned.
      */
     public double getProbability(TokenList tokens, SmoothOptions smoothOptions) {
-        final int n = tokens.size();
-        if (ngramModels.containsKey(n)) {
-            return ngramModels.get(n).getProbability(tokens, smoothOptions);
+        return getProbability(tokens, smoothOptions, true);
+    }
+
+    /**
+     * Returns the probability that the given list of tokens is found in this corpus, optionally bypassing the
+     * probability cache. See {@link #setProbabilityCache(int)}.
+     *
+     * @param tokens        The token list whose probability should be retrieved.
+     * @param smoothOptions The smoothing option.
+     * @param useCache      Whether to go through the probability cache, if there is one. A lookup that bypasses it
+     *                      neither reads nor fills it.
+     * @return A probability value between 0 and 1, or zero if this corpus doesn't have an n-gram model for the given
+     * number of tokens.
+     */
+    public double getProbability(final TokenList tokens, final SmoothOptions smoothOptions, final boolean useCache) {
+        final NgramModel model = ngramModels.get(tokens.size());
+        if (model == null) {
+            return 0.0;
         }
-        return 0.0;
+        final ProbabilityCache cache = probabilityCache;
+        return useCache && cache != null ? cache.getProbability(model, tokens, smoothOptions) :
+                model.getProbability(tokens, smoothOptions);
+    }
+
+    /**
+     * Puts a bounded cache in front of {@link #getProbability(TokenList, SmoothOptions)}, for workloads that ask for
+     * the same n-grams over and over, or removes it. The cache may be shared by many threads, and is invalidated
+     * whenever this corpus is updated. See {@link ProbabilityCache}.
+     * @param capacity The most probabilities to cache, or 0 to remove the cache.
+     */
+    public void setProbabilityCache(final int capacity) {
+        probabilityCache = capacity > 0 ? new ProbabilityCache(capacity, lexicon) : null;
+    }
+
+    /**
+     * Gets the cache in front of {@link #getProbability(TokenList, SmoothOptions)}, whose counters tell how well it
+     * is doing.
+     * @return The cache, or null if there is none.
+     */
+    public ProbabilityCache getProbabilityCache() {
+        return probabilityCache;
+    }
+
+    /**
+     * Creates a corpus that shares this corpus's lexicon, with interpolated Kneser-Ney models built from this
+     * corpus's count models. Their probabilities are smoothed across every order once, up front, so a query backs off
+     * through the corpus's orders with at most one lookup per order. See {@link BackoffModels}.
+     * @return A new corpus, whose models ignore smoothing options and can't be updated or written to a model file.
+     * @throws IllegalArgumentException If this corpus doesn't have count models of every order from 1 up.
+     */
+    public Corpus createKneserNeyCorpus() {
+        finishCompaction(true);
+        final Corpus c = new Corpus(name, lexicon);
+        c.ngramModels = BackoffModels.kneserNey(ngramModels);
+        return c;
+    }
+
+    /**
+     * Creates a corpus that shares this corpus's lexicon, with stupid back-off models built from this corpus's count
+     * models. See {@link BackoffModels}.
+     * @param backoffFactor The factor by which the score of a shorter context is multiplied, such as 0.4.
+     * @return A new corpus, whose models ignore smoothing options and can't be updated or written to a model file.
+     * @throws IllegalArgumentException If this corpus doesn't have count models of every order from 1 up.
+     */
+    public Corpus createStupidBackoffCorpus(final double backoffFactor) {
+        finishCompaction(true);
+        final Corpus c = new Corpus(name, lexicon);
+        c.ngramModels = BackoffModels.stupidBackoff(ngramModels, backoffFactor);
+        return c;
     }
 
     public NgramModel getNgramModel(int n) {
@@ -148,28 +490,117 @@ public class Corpus {
     //==========================================================================
 
     /**
-     * Attempts to generate the next word in a model given a list of previous words.
-     * If the list of previous words is too small, this method defaults to using the model with the largest n
-     * for which the number of previous words is sufficient.
+     * Creates a sentence that is numWords words long, using the given n-gram model.
      *
-     * @param model         The model to use when generating the next word.
-     * @param previousWords The previous words to provide the context for the next word.
-     * @return A randomly generated word.
-     */
-    private String generateNextWord(final NgramModel model, final TokenList previousWords) {
-        NgramModel lModel = model;
-        TokenList lPreviousWords = previousWords;
-        if (lModel.getN() - 1 > lPreviousWords.size()) {
-            int n = lPreviousWords.size() + 1;
-            do {
-                lModel = ngramModels.get(n);
-                if (lModel != null && lModel.getN() == lPreviousWords.size()) {
-                    lPreviousWords = lPreviousWords.tail();
-                }
-                n--;
-            } while (lModel == null);
+     * @param n        The n parameter to decide which n-gram model to use.
+     * @param numWords The number of words that should be in the sentence.
+     * @param random   The source of random numbers in the range of [0.0, 1.0).
+     * @param samplers The samplers to generate words with, which are added to as needed.
+     * @return A generated sentence.
+     */
+    private String createSentence(final int n, final int numWords, final DoubleSupplier random,
+                                  final Map<Integer, AliasSampler> samplers) {
+        if (numWords <= 0 || !ngramModels.containsKey(n)) {
+            return "";
         }
-        return lModel.getWord(lPreviousWords, random.nextDouble());
+        return createTokenGenerator(n, numWords, random, samplers).toText();
+    }
+
+    /**
+     * Swaps in the models of a compaction that has finished, carrying over the updates made since it began.
+     * @param wait Whether to wait for a compaction that is still under way.
+     */
+    private void finishCompaction(final boolean wait) {
+        if (compaction == null || (!wait && !compaction.isDone())) {
+            return;
+        }
+        final Map<Integer, NgramModel> compacted = compaction.join();
+        ngramModels = ModelUpdates.rebase(ngramModels, compactionSource, compacted);
+        compaction = null;
+        compactionSource = null;
+        samplers.clear();
+    }
+
+    /**
+     * Creates a generator of numWords words.
+     *
+     * @param n        The n parameter to decide which n-gram model to use.
+     * @param numWords The number of words to generate.
+     * @param random   The source of random numbers in the range of [0.0, 1.0).
+     * @param samplers The samplers to generate words with, which are added to as needed.
+     * @return A new generator.
+     * @throws IllegalArgumentException If this corpus doesn't have an n-gram model for n.
+     */
+    private TokenGenerator createTokenGenerator(final int n, final long numWords, final DoubleSupplier random,
+                                                final Map<Integer, AliasSampler> samplers) {
+        if (!ngramModels.containsKey(n)) {
+            throw new IllegalArgumentException("This corpus has no " + n + "-gram model");
+        }
+        return new TokenGenerator(ngramModels, modelN -> getSampler(samplers, modelN), lexicon, n, numWords, random);
+    }
+
+    /**
+     * Forks a sampler for every n-gram model of this corpus, for use on another thread.
+     * @return The new samplers, by n-value.
+     */
+    private Map<Integer, AliasSampler> forkSamplers() {
+        final Map<Integer, AliasSampler> forks = new HashMap<>();
+        for (final int n : ngramModels.keySet()) {
+            forks.put(n, getSampler(samplers, n).fork());
+        }
+        return forks;
+    }
+
+    /**
+     * Creates a sentence for every random number generator given, on a pool of threads.
+     *
+     * @param n         The n parameter to decide which n-gram model to use.
+     * @param numWords  The number of words that should be in each sentence.
+     * @param randoms   The random number generator of each sentence.
+     * @param sentences Receives the sentence of randoms[i] at index i.
+     * @param forks     The samplers of the threads that create the sentences, and the pool they belong to.
+     */
+    private void createSentences(final int n, final int numWords, final SplittableRandom[] randoms,
+                                 final String[] sentences, final SamplerForks forks) {
+        final SentenceTask task = new SentenceTask(n, numWords, randoms, sentences, forks, 0, randoms.length);
+        if (forks.pool != null) {
+            forks.pool.invoke(task);
+        } else {
+            task.createSentences();
+        }
+    }
+
+    /**
+     * Gets the sampler for one of this corpus's n-gram models, creating it if needed.
+     * @param samplers The samplers created so far, by n-value.
+     * @param n The n-value of the model.
+     * @return The sampler for the model.
+     */
+    private AliasSampler getSampler(final Map<Integer, AliasSampler> samplers, final int n) {
+        AliasSampler sampler = samplers.get(n);
+        if (sampler == null) {
+            sampler = new AliasSampler(ngramModels.get(n), AliasSampler.DEFAULT_CACHE_SIZE);
+            samplers.put(n, sampler);
+        }
+        return sampler;
+    }
+
+    /**
+     * Maps a list of tokens from another corpus's lexicon onto this corpus's lexicon.
+     * Words that this corpus has never seen become the unknown word token.
+     *
+     * @param tokens  The tokens to map.
+     * @param lexicon The lexicon the given tokens come from.
+     * @return A new list of tokens.
+     */
+    private TokenList translateTokens(final TokenList tokens, final Lexicon lexicon) {
+        final TokenList result = new LinkedTokenList();
+        TokenList remaining = tokens;
+        for (int i = 0; i < tokens.size(); i++) {
+            result.addLast(this.lexicon.getId(lexicon.getWord(remaining.head())));
+            remaining = remaining.tail();
+        }
+        return result;
     }
 
     //==========================================================================
@@ -186,6 +617,22 @@ public class Corpus {
      * @return A new corpus.
      */
     public static Corpus createCorpusFromInputStream(final String name, final InputStream inputStream, final int maxN, final int unknownThreshold) {
+        return createCorpusFromInputStream(name, inputStream, maxN, unknownThreshold, IngestOptions.DEFAULT);
+    }
+
+    /**
+     * Creates a corpus from an input stream.
+     * If the options have a pool and the input stream is a {@link FileInputStream}, the file is memory mapped and
+     * its chunks are counted in parallel.
+     * @param name The name to give this corpus.
+     * @param inputStream The input stream from which the corpus should be read.
+     * @param maxN The maximum degree n-gram to generate.
+     * @param unknownThreshold The maximum number of times a word should appear to be considered a rare word and not
+     *                         part of the vocabulary.
+     * @param options The options that control how the input stream is read.
+     * @return A new corpus.
+     */
+    public static Corpus createCorpusFromInputStream(final String name, final InputStream inputStream, final int maxN, final int unknownThreshold, final IngestOptions options) {
         List<InputStream> inputStreams = new ArrayList<>();
         inputStreams.add(inputStream);
         List<Integer> nList = new ArrayList<>();
@@ -193,7 +640,55 @@ public class Corpus {
             nList.add(i);
         }
         Corpus c = new Corpus(name);
-        c.ngramModels = createNgramModels(inputStreams, nList, unknownThreshold);
+        c.ngramModels = createNgramModels(inputStreams, nList, unknownThreshold, c.lexicon, options);
+        return c;
+    }
+
+    /**
+     * Creates a corpus from a model file written by {@link #writeModelFile(Path)}. The file is memory mapped, and
+     * its models answer queries straight from the mapped pages.
+     * @param path The model file to read.
+     * @return A new corpus.
+     * @throws IOException If the file could not be read, or isn't a model file.
+     */
+    public static Corpus createCorpusFromModelFile(final Path path) throws IOException {
+        final ModelFile modelFile = ModelFile.read(path);
+        final Corpus c = new Corpus(modelFile.getName(), modelFile.getLexicon());
+        c.ngramModels = modelFile.getNgramModels();
+        return c;
+    }
+
+    /**
+     * Creates a corpus from an ARPA file, read as UTF-8. Its models hold probabilities and back-off weights rather
+     * than counts, so they ignore smoothing options and can't be written to a model file.
+     * @param name The name of the corpus.
+     * @param inputStream The ARPA file. It is not closed.
+     * @return A new corpus.
+     * @throws IOException If the file could not be read, or is malformed.
+     */
+    public static Corpus createCorpusFromArpa(final String name, final InputStream inputStream) throws IOException {
+        final Corpus c = new Corpus(name);
+        c.ngramModels = ArpaFormat.read(new InputStreamReader(inputStream, StandardCharsets.UTF_8), c.lexicon);
+        return c;
+    }
+
+    /**
+     * Creates a corpus by merging partial count files written by
+     * {@link #writePartialCounts(List, int, Path, IngestOptions)}, which may come from separate processes. Merging
+     * the files in the order of their shards gives the same corpus as counting the shards one after the other.
+     * @param name The name to give this corpus.
+     * @param paths The partial count files, in the order of their shards. They must all have the same maxN.
+     * @param unknownThreshold The maximum number of times a word should appear across every shard to be considered a
+     *                         rare word and not part of the vocabulary.
+     * @param options The options whose heap budget, spill directory and packing apply to the merge.
+     * @return A new corpus with an n-gram model for every n from 1 to the files' maxN.
+     * @throws IOException If a file could not be read, or isn't a partial count file.
+     */
+    public static Corpus createCorpusFromPartialCounts(final String name, final List<Path> paths, final int unknownThreshold, final IngestOptions options) throws IOException {
+        final Corpus c = new Corpus(name);
+        final Map<Integer, NgramModel> ngramModels = PartialCountFile.merge(paths, unknownThreshold, c.lexicon,
+                options.getHeapBudget(), options.getSpillDirectory());
+        c.ngramModels = options.usesPackedModels() ? CompactModels.compact(ngramModels, true) : ngramModels;
         return c;
     }
 
@@ -227,6 +722,24 @@ public class Corpus {
      * @throws IOException If the folder corresponding to the given genre doesn't exist, or a file could not be opened.
      */
     public static Corpus createCorpusFromGenre(final String directory, final String genreName, final int minN, final int maxN, final int unknownThreshold) throws IOException {
+        return createCorpusFromGenre(directory, genreName, minN, maxN, unknownThreshold, IngestOptions.DEFAULT);
+    }
+
+    /**
+     * Creates a corpus from the given genre name.
+     * Returns null if the genre name is not correctly specified.
+     *
+     * @param directory The directory in which the corpus texts are contained.
+     * @param genreName The genre of books on which this corpus should be based.
+     * @param minN The minimum degree n-gram to generate.
+     * @param maxN The maximum degree n-gram to generate.
+     * @param unknownThreshold The maximum number of times a word should appear to be considered a rare word and not
+     *                         part of the vocabulary.
+     * @param options The options that control how the corpus texts are read.
+     * @return A new Corpus object based on the given genre name.
+     * @throws IOException If the folder corresponding to the given genre doesn't exist, or a file could not be opened.
+     */
+    public static Corpus createCorpusFromGenre(final String directory, final String genreName, final int minN, final int maxN, final int unknownThreshold, final IngestOptions options) throws IOException {
         Corpus c = new Corpus(genreName);
         File genreDirectory = new File(directory + "/" + genreName + "/");
         List<Integer> nList = new ArrayList<>();
@@ -240,25 +753,41 @@ public class Corpus {
             for (final File file : filesInGenreDirectory) {
                 inputStreams.add(new FileInputStream(file));
             }
-            c.ngramModels = Corpus.createNgramModels(inputStreams, nList, unknownThreshold);
+            c.ngramModels = Corpus.createNgramModels(inputStreams, nList, unknownThreshold, c.lexicon, options);
             return c;
         }
         return null;
     }
 
     /**
-     * Adds a token string to a StringBuilder object. A space is inserted only if the token
-     * is not punctuation.
-     *
-     * @param stringBuilder The StringBuilder object to which the token should be appended.
-     * @param token         The token to add.
+     * Counts the n-grams of one shard of a corpus, such as some of its books, and writes them to a partial count
+     * file instead of building models. Rare words are left in, since a word is only rare across the whole corpus;
+     * they are replaced when the shards are merged by
+     * {@link #createCorpusFromPartialCounts(String, List, int, IngestOptions)}. The input streams are always
+     * counted with a counting trie, on the options' pool if there is one.
+     * @param inputStreams The input streams of the shard, in order.
+     * @param maxN The maximum degree n-gram to count.
+     * @param path The partial count file to write. It is replaced if it exists.
+     * @param options The options that control how the input streams are read.
+     * @throws IOException If an input stream could not be read, or the file could not be written.
      */
-    private static void addToStringBuilder(StringBuilder stringBuilder, String token) {
-        if (token.matches(PUNCTUATION)) {
-            stringBuilder.append(token);
-        } else {
-            stringBuilder.append(" ").append(token);
+    public static void writePartialCounts(final List<InputStream> inputStreams, final int maxN, final Path path, final IngestOptions options) throws IOException {
+        if (options.usesCountSketch()) {
+            throw new IllegalArgumentException("A sketch can't be written to a partial count file");
+        }
+        final List<Integer> nList = new ArrayList<>();
+        for (int i = 1; i <= maxN; i++) {
+            nList.add(i);
         }
+        final IngestOptions countOptions = options.withCountingTrie(true);
+        final NgramCounter counter;
+        try {
+            counter = NgramCounter.count(NgramCounter.createSources(inputStreams, countOptions), nList,
+                    new Lexicon(), countOptions, null);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        counter.writePartialCounts(path);
     }
 
     /**
@@ -266,63 +795,159 @@ public class Corpus {
      *
      * @param inputStreams The input streams from which the models should be created.
      * @param nList The n-values that should be used. These values should be unique and ideally consecutive.
+     * @param lexicon The lexicon into which every token is interned.
+     * @param options The options that control how the input streams are read.
      * @return A map of n-gram models. There should be an n-gram model for each n given.
      */
-    private static Map<Integer, NgramModel> createNgramModels(final List<InputStream> inputStreams, final List<Integer> nList, int unknownThreshold) {
-        final List<NgramModelBuilder> modelBuilders = new ArrayList<>();
-        final List<TokenList> tokenLists = new ArrayList<>();
-        final Map<String, Integer> wordCounts = new HashMap<>();
-        // Get Max N
-        int maxN = 0;
-        for (final Integer n : nList) {
-            maxN = n > maxN ? n : maxN;
-            modelBuilders.add(NgramModel.getNgramModelBuilder(n));
-            tokenLists.add(new LinkedTokenList());
-        }
-        BufferedReader bufferedReader;
+    private static Map<Integer, NgramModel> createNgramModels(final List<InputStream> inputStreams, final List<Integer> nList, int unknownThreshold, final Lexicon lexicon, final IngestOptions options) {
+        if ((options.usesVocabularyPrepass() || options.usesCountSketch() || options.usesSharedBuilders()) &&
+                NgramCounter.canReread(inputStreams, options)) {
+            try {
+                final List<NgramCounter.Source> sources = NgramCounter.createSources(inputStreams, options);
+                // Fix the vocabulary first, so that rare words are replaced as the n-grams are counted
+                final BitSet rareWords = NgramCounter.countWords(sources, lexicon, options)
+                        .getRareWords(unknownThreshold);
+                // Sketches are counted on one thread, since their statistics can't be merged
+                final IngestOptions countOptions = options.usesCountSketch() ? options.withPool(null) : options;
+                return NgramCounter.count(sources, nList, lexicon, countOptions, rareWords).build(0);
+            } catch (IOException | UncheckedIOException e) {
+                return null;
+            }
+        }
+        if (options.usesCountSketch() && unknownThreshold > 0) {
+            throw new IllegalArgumentException("Rare words can only be replaced in a sketch if the input is files");
+        }
+        if (options.getPool() != null && !options.usesCountSketch()) {
+            try {
+                final List<NgramCounter.Source> sources = NgramCounter.createSources(inputStreams, options);
+                return options.getPool().invoke(new NgramCounter.CountTask(sources, 0, sources.size(), nList, lexicon, options))
+                        .build(unknownThreshold);
+            } catch (IOException | UncheckedIOException e) {
+                return null;
+            }
+        }
+        final NgramCounter counter = new NgramCounter(nList, lexicon, options);
         try {
             for (final InputStream inputStream : inputStreams) {
-                bufferedReader = new BufferedReader(new InputStreamReader(inputStream));
-                String line = bufferedReader.readLine();
-                while (line != null) {
-                    // For each line, extract its tokens
-                    String[] tokens = line.toLowerCase().replaceAll(PUNCTUATION, " $1 ").split("\\s");
-                    for (String token : tokens) {
-                        if (token.length() == 0) {
-                            continue;
-                        }
-                        wordCounts.merge(token, 1, (a, b) -> a + b);
-                        for (int i = 0; i < nList.size(); i++) {
-                            // These are the running lists of n previously seen words
-                            // (n determined by indexing nList[i])
-                            tokenLists.get(i).addLast(token);
-                            if (tokenLists.get(i).size() > nList.get(i)) {
-                                tokenLists.set(i, tokenLists.get(i).tail());
-                            }
-                            // Use the list of n previously seen words, updated above,
-                            // as the n-gram to add to the n-gram model
-                            if (tokenLists.get(i).size() == nList.get(i)) {
-                                modelBuilders.get(i).addTokens(tokenLists.get(i));
-                            }
-                        }
-                    }
-                    line = bufferedReader.readLine();
+                try (InputStream in = inputStream) {
+                    options.getTokenizer().tokenize(in, counter);
                 }
             }
-        } catch (IOException e) {
+            return counter.build(unknownThreshold);
+        } catch (IOException | UncheckedIOException e) {
             return null;
         }
-        Map<Integer, NgramModel> ngramModels = new HashMap<>();
-        Set<String> rareWords = new HashSet<>();
-        wordCounts.entrySet().forEach(e -> {
-            if (e.getValue() <= unknownThreshold) {
-                rareWords.add(e.getKey());
+    }
+
+    /**
+     * Splits a random number generator for each of a run of sentences, in order.
+     * @param master The generator to split.
+     * @param numSentences The number of sentences.
+     * @return An array of new generators.
+     */
+    private static SplittableRandom[] createRandoms(final SplittableRandom master, final int numSentences) {
+        final SplittableRandom[] randoms = new SplittableRandom[numSentences];
+        for (int i = 0; i < numSentences; i++) {
+            randoms[i] = master.split();
+        }
+        return randoms;
+    }
+
+    /**
+     * Creates the sentences of a range of random number generators, splitting it in half until each range is small
+     * enough to create directly. Samplers can't be shared between threads, so each thread samples with its own forks
+     * of this corpus's samplers. See {@link SamplerForks}.
+     */
+    private class SentenceTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int n;
+        private final int numWords;
+        private final SplittableRandom[] randoms;
+        private final String[] sentences;
+        private final SamplerForks forks;
+        private final int from;
+        private final int to;
+
+        SentenceTask(final int n, final int numWords, final SplittableRandom[] randoms, final String[] sentences,
+                     final SamplerForks forks, final int from, final int to) {
+            this.n = n;
+            this.numWords = numWords;
+            this.randoms = randoms;
+            this.sentences = sentences;
+            this.forks = forks;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= SENTENCES_PER_TASK) {
+                createSentences();
+                return;
+            }
+            final int middle = (from + to) >>> 1;
+            invokeAll(new SentenceTask(n, numWords, randoms, sentences, forks, from, middle),
+                    new SentenceTask(n, numWords, randoms, sentences, forks, middle, to));
+        }
+
+        /**
+         * Creates the sentences of this task's whole range on the current thread.
+         */
+        void createSentences() {
+            final Map<Integer, AliasSampler> taskSamplers = forks.get();
+            for (int i = from; i < to; i++) {
+                sentences[i] = createSentence(n, numWords, randoms[i]::nextDouble, taskSamplers);
+            }
+        }
+    }
+
+    /**
+     * The forks of this corpus's samplers that the threads of a pool sample with during one run of sentences. Each
+     * thread forks the samplers the first time it creates a sentence, and keeps them for the rest of the run, whatever
+     * batch it is working on. The forks are dropped along with this object once the run is over.
+     */
+    private final class SamplerForks {
+        final ForkJoinPool pool;
+        // Indexed by the pool index of a worker thread. The forks of each worker of the pool, or null.
+        private final List<Map<Integer, AliasSampler>> workerForks = new ArrayList<>();
+        // The forks of any thread that isn't a worker of the pool, which is the thread that started the run.
+        private Map<Integer, AliasSampler> callerForks = null;
+
+        /**
+         * Creates an empty set of forks.
+         * @param pool The pool on which sentences are created, or null to create them on this thread.
+         */
+        SamplerForks(final ForkJoinPool pool) {
+            this.pool = pool;
+            // Create every sampler up front, on this thread, so that the tasks only ever read this corpus's samplers
+            for (final int modelN : ngramModels.keySet()) {
+                getSampler(samplers, modelN);
+            }
+        }
+
+        /**
+         * Gets the forks of the current thread, forking them if it has none yet.
+         * @return The samplers of the current thread, by n-value.
+         */
+        synchronized Map<Integer, AliasSampler> get() {
+            final Thread thread = Thread.currentThread();
+            if (!(thread instanceof ForkJoinWorkerThread) || ((ForkJoinWorkerThread)thread).getPool() != pool) {
+                if (callerForks == null) {
+                    callerForks = forkSamplers();
+                }
+                return callerForks;
+            }
+            final int index = ((ForkJoinWorkerThread)thread).getPoolIndex();
+            while (workerForks.size() <= index) {
+                workerForks.add(null);
+            }
+            Map<Integer, AliasSampler> forks = workerForks.get(index);
+            if (forks == null) {
+                forks = forkSamplers();
+                workerForks.set(index, forks);
             }
-        });
-        for (final NgramModelBuilder modelBuilder : modelBuilders) {
-            NgramModel model = modelBuilder.collapseRareWords(rareWords).build();
-            ngramModels.put(model.getN(), model);
+            return forks;
         }
-        return ngramModels;
     }
 }
\ No newline at end of file
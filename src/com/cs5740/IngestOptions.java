@@ -0,0 +1,283 @@
+package com.cs5740;
+
+import com.cs5740.tokenizer.Tokenizer;
+
+import java.io.File;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Options that control how a corpus is read and counted. These don't change which models are built, only how.
+ * <p>
+ * Options are immutable; every with method returns a new copy.
+ */
+public class IngestOptions {
+    private Tokenizer tokenizer = Tokenizer.DEFAULT;
+    // The pool on which input streams are counted in parallel, or null to count them one after another.
+    private ForkJoinPool pool = null;
+    private int sourcesPerTask = 1;
+    private long chunkSize = 64L << 20;
+    private boolean countingTrie = true;
+    private boolean packedModels = false;
+    private boolean vocabularyPrepass = false;
+    private boolean sharedBuilders = false;
+    // The size of the Count-Min sketches that n-grams are counted in, or a width of 0 to count them exactly.
+    private int sketchWidth = 0;
+    private int sketchDepth = 0;
+    private int sketchHeavyHitters = 0;
+    // The heap the counting trie may take before it spills to disk, or 0 for no limit.
+    private long heapBudget = 0;
+    private File spillDirectory = null;
+
+    private IngestOptions() {}
+
+    public static final IngestOptions DEFAULT = new IngestOptions();
+
+    /**
+     * Sets the tokenizer that splits the corpus texts into tokens.
+     * @param tokenizer The tokenizer to use.
+     * @return A copy of these options with the given tokenizer.
+     */
+    public IngestOptions withTokenizer(final Tokenizer tokenizer) {
+        final IngestOptions options = copy();
+        options.tokenizer = tokenizer;
+        return options;
+    }
+
+    /**
+     * Counts input streams in parallel on a fork-join pool. Groups of input streams are counted separately and
+     * merged back together, which gives the same models as counting them one after another.
+     * <p>
+     * File input streams are memory mapped and cut into chunks at line breaks (see {@link #withChunkSize(long)}),
+     * so a single large file is counted in parallel as well. This only happens if the tokenizer reads UTF-8.
+     * @param pool The pool to count on, or null to count on the calling thread.
+     * @return A copy of these options with the given pool.
+     */
+    public IngestOptions withPool(final ForkJoinPool pool) {
+        final IngestOptions options = copy();
+        options.pool = pool;
+        return options;
+    }
+
+    /**
+     * Sets how many consecutive input streams, or chunks of a file, a single parallel task counts. Larger groups
+     * mean fewer merges.
+     * @param sourcesPerTask The number of input streams or chunks per task. This must be positive.
+     * @return A copy of these options with the given group size.
+     */
+    public IngestOptions withSourcesPerTask(final int sourcesPerTask) {
+        if (sourcesPerTask <= 0) {
+            throw new IllegalArgumentException("sourcesPerTask must be positive");
+        }
+        final IngestOptions options = copy();
+        options.sourcesPerTask = sourcesPerTask;
+        return options;
+    }
+
+    /**
+     * Sets the size of the chunks that files are cut into when they're counted in parallel.
+     * @param chunkSize The approximate number of bytes in each chunk. This must be positive.
+     * @return A copy of these options with the given chunk size.
+     */
+    public IngestOptions withChunkSize(final long chunkSize) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("chunkSize must be positive");
+        }
+        final IngestOptions options = copy();
+        options.chunkSize = chunkSize;
+        return options;
+    }
+
+    /**
+     * Sets whether every order is counted in a single trie, which is then shared by the models of every order.
+     * Otherwise, each order is counted by its own builder, and each model has its own table.
+     * @param countingTrie Whether to count in a single trie.
+     * @return A copy of these options with the given setting.
+     */
+    public IngestOptions withCountingTrie(final boolean countingTrie) {
+        final IngestOptions options = copy();
+        options.countingTrie = countingTrie;
+        return options;
+    }
+
+    /**
+     * Sets whether the built models are bit-packed into a compact, read-only trie, which takes a fraction of the
+     * heap at a small cost per lookup. See {@link com.cs5740.models.CompactModels}.
+     * @param packedModels Whether to pack the built models.
+     * @return A copy of these options with the given setting.
+     */
+    public IngestOptions withPackedModels(final boolean packedModels) {
+        final IngestOptions options = copy();
+        options.packedModels = packedModels;
+        return options;
+    }
+
+    /**
+     * Sets whether the corpus is read twice: once to count only words, which fixes the vocabulary and the rare
+     * words, and again to count n-grams with the rare words already replaced with the unknown word token. The n-grams
+     * that hold rare words are then never stored, which takes far less memory when most n-grams hold one, at the cost
+     * of tokenizing the corpus twice. The models are the same either way.
+     * <p>
+     * Only memory mapped files can be read twice, so this only happens if every input stream is a file input stream
+     * and the tokenizer reads UTF-8. Otherwise, the corpus is read once as usual.
+     * @param vocabularyPrepass Whether to count words in a separate first pass.
+     * @return A copy of these options with the given setting.
+     */
+    public IngestOptions withVocabularyPrepass(final boolean vocabularyPrepass) {
+        final IngestOptions options = copy();
+        options.vocabularyPrepass = vocabularyPrepass;
+        return options;
+    }
+
+    /**
+     * Sets whether the parallel tasks count into one {@link com.cs5740.models.ConcurrentNgramModelBuilder} per order
+     * that they all share, rather than each into builders of its own that are merged afterwards, which saves holding
+     * a copy of the counts per task. This only applies on a pool, when each order is counted by its own builder (see
+     * {@link #withCountingTrie(boolean)}). The models are the same either way.
+     * <p>
+     * Tasks can only share builders if they share a lexicon, so the vocabulary is counted in a first pass that
+     * interns every word up front (see {@link #withVocabularyPrepass(boolean)}). If the corpus can't be read twice,
+     * each task counts into its own builders as usual.
+     * @param sharedBuilders Whether the parallel tasks share their builders.
+     * @return A copy of these options with the given setting.
+     */
+    public IngestOptions withSharedBuilders(final boolean sharedBuilders) {
+        final IngestOptions options = copy();
+        options.sharedBuilders = sharedBuilders;
+        return options;
+    }
+
+    /**
+     * Approximates the counts of n-grams in a Count-Min sketch for every n above 1, so that counting takes the same
+     * memory however large the corpus is. Each count is overestimated by more than e / width of the total count of
+     * its order with a probability of at most e^-depth, and the most frequent n-grams are counted exactly. See
+     * {@link com.cs5740.models.NgramModel#getCountMinNgramModelBuilder(int, com.cs5740.models.Lexicon, int, int, int)}.
+     * <p>
+     * Rare words must be replaced before n-grams go into a sketch, so the vocabulary is always counted in a first
+     * pass (see {@link #withVocabularyPrepass(boolean)}), and the input must be files for any unknown threshold above
+     * 0. The n-grams are counted on one thread, since the statistics of separate sketches can't be merged, and the
+     * counting trie and packed models are not used.
+     * @param width The number of cells in every row of a sketch. This must be positive.
+     * @param depth The number of rows in a sketch, from 1 to 32.
+     * @param heavyHitters The number of frequent n-grams of each order to count exactly. This must not be negative.
+     * @return A copy of these options with the given sketch size.
+     */
+    public IngestOptions withCountSketch(final int width, final int depth, final int heavyHitters) {
+        if (width <= 0 || depth <= 0 || depth > 32 || heavyHitters < 0) {
+            throw new IllegalArgumentException("width must be positive, depth from 1 to 32 and heavyHitters not negative");
+        }
+        final IngestOptions options = copy();
+        options.sketchWidth = width;
+        options.sketchDepth = depth;
+        options.sketchHeavyHitters = heavyHitters;
+        return options;
+    }
+
+    /**
+     * Limits the heap that the counting trie may take. Once the trie reaches the budget, its counts are sorted and
+     * spilled to a temporary file, and the spilled runs are merged into the final models once counting is done. This
+     * lets corpora with more distinct n-grams than fit in the heap be counted, as long as the built models fit. See
+     * {@link com.cs5740.models.ExternalCountingTrie}.
+     * <p>
+     * The budget only applies to the counting trie (see {@link #withCountingTrie(boolean)}). Rare words are cheapest
+     * to replace before anything is spilled, so this works best with {@link #withVocabularyPrepass(boolean)}.
+     * @param heapBudget The number of bytes the trie may take, or 0 for no limit.
+     * @return A copy of these options with the given budget.
+     */
+    public IngestOptions withHeapBudget(final long heapBudget) {
+        if (heapBudget < 0) {
+            throw new IllegalArgumentException("heapBudget must not be negative");
+        }
+        final IngestOptions options = copy();
+        options.heapBudget = heapBudget;
+        return options;
+    }
+
+    /**
+     * Sets the directory that counts are spilled into when the heap budget is reached.
+     * @param spillDirectory The directory to spill into, or null for the default temporary directory.
+     * @return A copy of these options with the given directory.
+     */
+    public IngestOptions withSpillDirectory(final File spillDirectory) {
+        final IngestOptions options = copy();
+        options.spillDirectory = spillDirectory;
+        return options;
+    }
+
+    public Tokenizer getTokenizer() {
+        return tokenizer;
+    }
+
+    public ForkJoinPool getPool() {
+        return pool;
+    }
+
+    public int getSourcesPerTask() {
+        return sourcesPerTask;
+    }
+
+    public long getChunkSize() {
+        return chunkSize;
+    }
+
+    public boolean usesCountingTrie() {
+        return countingTrie;
+    }
+
+    public boolean usesPackedModels() {
+        return packedModels;
+    }
+
+    public boolean usesVocabularyPrepass() {
+        return vocabularyPrepass;
+    }
+
+    public boolean usesSharedBuilders() {
+        return sharedBuilders && pool != null && !countingTrie && sketchWidth == 0;
+    }
+
+    public boolean usesCountSketch() {
+        return sketchWidth > 0;
+    }
+
+    public int getSketchWidth() {
+        return sketchWidth;
+    }
+
+    public int getSketchDepth() {
+        return sketchDepth;
+    }
+
+    public int getSketchHeavyHitters() {
+        return sketchHeavyHitters;
+    }
+
+    public long getHeapBudget() {
+        return heapBudget;
+    }
+
+    public File getSpillDirectory() {
+        return spillDirectory;
+    }
+
+    //==========================================================================
+    // Private helper methods
+    //==========================================================================
+
+    private IngestOptions copy() {
+        final IngestOptions options = new IngestOptions();
+        options.tokenizer = tokenizer;
+        options.pool = pool;
+        options.sourcesPerTask = sourcesPerTask;
+        options.chunkSize = chunkSize;
+        options.countingTrie = countingTrie;
+        options.packedModels = packedModels;
+        options.vocabularyPrepass = vocabularyPrepass;
+        options.sharedBuilders = sharedBuilders;
+        options.sketchWidth = sketchWidth;
+        options.sketchDepth = sketchDepth;
+        options.sketchHeavyHitters = sketchHeavyHitters;
+        options.heapBudget = heapBudget;
+        options.spillDirectory = spillDirectory;
+        return options;
+    }
+}
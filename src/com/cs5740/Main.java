@@ -4,6 +4,11 @@ import com.cs5740.models.NgramModel;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
 import java.util.Random;
 import java.util.function.Consumer;
 
@@ -38,6 +43,8 @@ public class Main {
     final static int n = 3;
     final static int unknownThreshold = 2;
     final static String[] genreNames = new String[] { "children", "crime", "history" };
+    // Trained corpuses are cached here as model files, so that they only have to be built once
+    final static String modelDirectory = "data/models/";
 
     final static Consumer<Corpus> displayRandomSentences = corpus -> {
         for (int i = 1; i <= n; i++) {
@@ -51,8 +58,7 @@ public class Main {
     final static Consumer<Corpus> displayPerplexity = corpus -> {
         try {
             for (final String testGenreName : genreNames) {
-                double perplexity = corpus.calculatePerplexityFromModel(
-                        Corpus.createCorpusFromGenre(Corpus.PATH_TO_BOOKS_TEST, testGenreName, n, n, 0), n);
+                double perplexity = corpus.calculatePerplexityFromGenre(Corpus.PATH_TO_BOOKS_TEST, testGenreName, n);
                 System.out.println("Train: " + corpus.getName() + " | Test: " + testGenreName +
                         " | N: " + n + " | Perplexity: " + perplexity);
             }
@@ -70,13 +76,61 @@ public class Main {
         System.out.println("N: " + n + " | Perplexity: " + perplexity);
     }
 
+    /**
+     * Loads the corpus for a genre from its model file, or builds it from the genre's books and writes its model
+     * file if there isn't one yet, if any of the books changed since it was written, or if it can't be read, as when
+     * an older version of the program wrote it.
+     */
+    private static Corpus loadOrCreateCorpus(final String genreName) throws IOException {
+        final Path modelFile = Paths.get(modelDirectory, genreName + "-" + n + "-" + unknownThreshold + ".ngrm");
+        if (isUpToDate(modelFile, Paths.get(Corpus.PATH_TO_BOOKS_TRAIN, genreName))) {
+            try {
+                return Corpus.createCorpusFromModelFile(modelFile);
+            } catch (IOException e) {
+                // Most likely written by an older version of ModelFile, so rebuild it from the books
+                System.out.println("rebuilding " + modelFile + ": " + e.getMessage());
+            }
+        }
+        final Corpus corpus = Corpus.createCorpusFromGenre(Corpus.PATH_TO_BOOKS_TRAIN, genreName, n, unknownThreshold);
+        if (corpus != null) {
+            Files.createDirectories(modelFile.getParent());
+            corpus.writeModelFile(modelFile);
+        }
+        return corpus;
+    }
+
+    /**
+     * Returns whether a model file exists and is newer than the directory of books it was built from and every file
+     * in it. A book that is added or removed changes the directory's modification time, so that is caught too.
+     */
+    private static boolean isUpToDate(final Path modelFile, final Path genreDirectory) throws IOException {
+        if (!Files.exists(modelFile)) {
+            return false;
+        }
+        final FileTime modelTime = Files.getLastModifiedTime(modelFile);
+        if (!Files.isDirectory(genreDirectory)) {
+            return true;
+        }
+        if (Files.getLastModifiedTime(genreDirectory).compareTo(modelTime) > 0) {
+            return false;
+        }
+        try (final DirectoryStream<Path> books = Files.newDirectoryStream(genreDirectory)) {
+            for (final Path book : books) {
+                if (Files.getLastModifiedTime(book).compareTo(modelTime) > 0) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
     @SafeVarargs
     private static void processGenreCorpuses(Consumer<Corpus>... actions) {
         try {
             for (final String genreName : genreNames) {
                 long time = System.nanoTime();
                 System.out.print("> Loading corpus " + genreName + "... ");
-                final Corpus corpus = Corpus.createCorpusFromGenre(Corpus.PATH_TO_BOOKS_TRAIN, genreName, n, unknownThreshold);
+                final Corpus corpus = loadOrCreateCorpus(genreName);
                 System.out.println("loaded in " + ((System.nanoTime() - time) / 1000000000.0) + " seconds.");
                 for (final Consumer<Corpus> action : actions) {
                     action.accept(corpus);
@@ -0,0 +1,539 @@
+package com.cs5740;
+
+import com.cs5740.models.CompactModels;
+import com.cs5740.models.CountingTrie;
+import com.cs5740.models.ExternalCountingTrie;
+import com.cs5740.models.Lexicon;
+import com.cs5740.models.NgramModel;
+import com.cs5740.models.PartialCountFile;
+import com.cs5740.tokenizer.TokenSink;
+import com.cs5740.tokenizer.Tokenizer;
+import com.cs5740.tokenlist.RingTokenList;
+
+import static com.cs5740.models.NgramModel.NgramModelBuilder;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Counts the n-grams of every requested order in a stream of tokens.
+ * <p>
+ * Tokens are interned into a lexicon as they arrive, and the last maxN of them are kept in a sliding window. By
+ * default, every order is counted in one {@link CountingTrie}: each time the window fills up, it is added to the
+ * trie, which counts the n-grams of every order that start with its first token in a single walk. The last maxN - 1
+ * tokens, whose windows are never full, are added when the models are built. A counter can also keep a separate
+ * {@link NgramModelBuilder} per order instead, in which case the last n tokens of the window form the n-gram for
+ * every n.
+ * <p>
+ * Counters for consecutive parts of a stream can be merged with {@link #absorb(NgramCounter)}. Each counter also
+ * remembers the first maxN - 1 tokens it saw, so the n-grams that span the two parts are counted when they're
+ * merged, and the result is the same as counting the whole stream with one counter.
+ * <p>
+ * A counter can also be given the set of rare words up front, found by a first pass that only counts words (see
+ * {@link #countWords(List, Lexicon, IngestOptions)}). It then folds rare words into the unknown word token as they
+ * arrive, so the n-grams that hold them are never stored and don't have to be collapsed when the models are built.
+ * Since every word is then in the lexicon, the counters of parallel tasks can also share a
+ * {@link com.cs5740.models.ConcurrentNgramModelBuilder} per order (see {@link IngestOptions#withSharedBuilders}),
+ * and only the n-grams that span two tasks are added when they're merged.
+ */
+class NgramCounter implements TokenSink {
+    final Lexicon lexicon;
+    final List<Integer> nList;
+    final int[] ns;
+    final int maxN;
+    // Either the trie holds every count, or there is a builder for every n-value.
+    CountingTrie trie;
+    final List<NgramModelBuilder> modelBuilders = new ArrayList<>();
+    // Whether the built models are packed into a compact trie.
+    final boolean packedModels;
+    // The running list of the maxN previously seen words.
+    final RingTokenList window;
+    // Indexed by word ID
+    int[] wordCounts = new int[16];
+    // The first maxN - 1 tokens this counter saw, which may end n-grams that start before them.
+    final int[] head;
+    // The number of tokens this counter has seen.
+    long numTokens = 0;
+    // The words that are replaced with the unknown word token as they arrive, or null to keep every word.
+    final BitSet rareWords;
+
+    /**
+     * Creates a counter for the n-values given.
+     * @param nList The n-values that should be used. These values should be unique and ideally consecutive.
+     * @param lexicon The lexicon into which every token is interned.
+     * @param options The options that decide how the n-grams are stored.
+     */
+    NgramCounter(final List<Integer> nList, final Lexicon lexicon, final IngestOptions options) {
+        this(nList, lexicon, options, null);
+    }
+
+    /**
+     * Creates a counter for the n-values given, which replaces rare words with the unknown word token as it counts.
+     * @param nList The n-values that should be used. These values should be unique and ideally consecutive.
+     * @param lexicon The lexicon into which every token is interned.
+     * @param options The options that decide how the n-grams are stored.
+     * @param rareWords The IDs of the words to replace, or null to keep every word.
+     */
+    NgramCounter(final List<Integer> nList, final Lexicon lexicon, final IngestOptions options,
+                 final BitSet rareWords) {
+        this(nList, lexicon, options, rareWords, null);
+    }
+
+    /**
+     * Creates a counter for the n-values given, which replaces rare words with the unknown word token as it counts.
+     * @param nList The n-values that should be used. These values should be unique and ideally consecutive.
+     * @param lexicon The lexicon into which every token is interned.
+     * @param options The options that decide how the n-grams are stored.
+     * @param rareWords The IDs of the words to replace, or null to keep every word.
+     * @param sharedBuilders The builders to count into, one per n-value in the same order, which other counters may be
+     *                       adding to at the same time, or null for the counter to create its own.
+     */
+    NgramCounter(final List<Integer> nList, final Lexicon lexicon, final IngestOptions options,
+                 final BitSet rareWords, final List<NgramModelBuilder> sharedBuilders) {
+        this.lexicon = lexicon;
+        this.nList = nList;
+        this.ns = new int[nList.size()];
+        int maxN = 0;
+        for (int i = 0; i < ns.length; i++) {
+            ns[i] = nList.get(i);
+            maxN = ns[i] > maxN ? ns[i] : maxN;
+        }
+        this.maxN = maxN;
+        this.packedModels = options.usesPackedModels() && !options.usesCountSketch();
+        if (sharedBuilders != null) {
+            modelBuilders.addAll(sharedBuilders);
+        } else if (options.usesCountSketch()) {
+            for (final int n : ns) {
+                modelBuilders.add(NgramModel.getCountMinNgramModelBuilder(n, lexicon, options.getSketchWidth(),
+                        options.getSketchDepth(), options.getSketchHeavyHitters()));
+            }
+        } else if (options.usesCountingTrie() && options.getHeapBudget() > 0) {
+            trie = new ExternalCountingTrie(maxN, lexicon, options.getHeapBudget(), options.getSpillDirectory());
+        } else if (options.usesCountingTrie()) {
+            trie = new CountingTrie(maxN, lexicon);
+        } else {
+            for (final int n : ns) {
+                modelBuilders.add(NgramModel.getNgramModelBuilder(n, lexicon));
+            }
+        }
+        this.window = new RingTokenList(Math.max(1, maxN));
+        this.head = new int[Math.max(0, maxN - 1)];
+        this.rareWords = rareWords;
+    }
+
+    @Override
+    public void accept(final char[] chars, final int offset, final int length) {
+        final int token = lexicon.getOrAdd(chars, offset, length);
+        addToken(rareWords != null && rareWords.get(token) ? Lexicon.UNKNOWN_ID : token);
+    }
+
+    /**
+     * Counts a token, along with the n-grams that end with it.
+     * @param token The ID of the token.
+     */
+    void addToken(final int token) {
+        if (token >= wordCounts.length) {
+            wordCounts = Arrays.copyOf(wordCounts, Math.max(wordCounts.length * 2, token + 1));
+        }
+        wordCounts[token]++;
+        if (numTokens < head.length) {
+            head[(int)numTokens] = token;
+        }
+        numTokens++;
+        window.addLast(token);
+        if (trie != null) {
+            // Count every n-gram that starts with the first token of the window
+            if (window.size() == window.capacity()) {
+                trie.add(window);
+            }
+            return;
+        }
+        for (int i = 0; i < ns.length; i++) {
+            // Use the last n previously seen words as the n-gram to add to the n-gram model
+            if (window.size() >= ns[i]) {
+                modelBuilders.get(i).addTokens(window.view(window.size() - ns[i]));
+            }
+        }
+    }
+
+    /**
+     * Merges the counts of another counter into this one, as if its tokens had been given to this counter after
+     * the ones it has already seen. The other counter should not be used afterwards.
+     * @param other A counter for the same n-values, which may use a different lexicon.
+     * @return A reference to this object.
+     */
+    NgramCounter absorb(final NgramCounter other) {
+        // Interning the other lexicon's words in ID order keeps IDs in order of first appearance
+        final int[] mapping = new int[other.lexicon.size()];
+        for (int token = 0; token < mapping.length; token++) {
+            mapping[token] = other.lexicon == lexicon ? token : lexicon.getOrAdd(other.lexicon.getWord(token));
+        }
+        countBoundaryNgrams(other, mapping);
+        if (trie != null) {
+            trie.addAll(other.trie, other.lexicon == lexicon ? null : mapping);
+        }
+        for (int i = 0; i < modelBuilders.size(); i++) {
+            if (modelBuilders.get(i) == other.modelBuilders.get(i)) {
+                // The other counter counted into the same builder
+                continue;
+            }
+            final NgramModelBuilder otherBuilder = other.lexicon == lexicon ?
+                    other.modelBuilders.get(i) : other.modelBuilders.get(i).translate(mapping, lexicon);
+            modelBuilders.get(i).absorb(otherBuilder);
+        }
+        for (int token = 0; token < other.wordCounts.length; token++) {
+            if (other.wordCounts[token] == 0) {
+                continue;
+            }
+            final int newToken = mapping[token];
+            if (newToken >= wordCounts.length) {
+                wordCounts = Arrays.copyOf(wordCounts, Math.max(wordCounts.length * 2, newToken + 1));
+            }
+            wordCounts[newToken] += other.wordCounts[token];
+        }
+        for (int i = 0; numTokens + i < head.length && i < other.numTokens && i < head.length; i++) {
+            head[(int)numTokens + i] = mapping[other.head[i]];
+        }
+        for (int i = 0; i < other.window.size(); i++) {
+            window.addLast(mapping[other.window.get(i)]);
+        }
+        numTokens += other.numTokens;
+        return this;
+    }
+
+    /**
+     * Builds every model, replacing rare words with the unknown word token first. This counter should not be used
+     * afterwards.
+     * @param unknownThreshold The maximum number of times a word should appear to be considered a rare word and not
+     *                         part of the vocabulary.
+     * @return A map of n-gram models. There should be an n-gram model for each n given.
+     */
+    Map<Integer, NgramModel> build(final int unknownThreshold) {
+        final BitSet rareWords = getRareWords(unknownThreshold);
+        if (trie != null) {
+            countTailNgrams();
+            final Map<Integer, NgramModel> ngramModels = trie.collapseRareWords(rareWords).build(nList);
+            return packedModels ? CompactModels.compact(ngramModels, true) : ngramModels;
+        }
+        final Map<Integer, NgramModel> ngramModels = new HashMap<>();
+        for (final NgramModelBuilder modelBuilder : modelBuilders) {
+            final NgramModel model = modelBuilder.collapseRareWords(rareWords).build();
+            ngramModels.put(model.getN(), model);
+        }
+        return packedModels ? CompactModels.compact(ngramModels, true) : ngramModels;
+    }
+
+    /**
+     * Writes every count to a partial count file, without replacing any rare words, so that it can be merged with
+     * the counts of other shards of the corpus. The counter must use a counting trie, and should not be used
+     * afterwards.
+     * @param path The file to write. It is replaced if it exists.
+     * @throws IOException If the file could not be written.
+     */
+    void writePartialCounts(final Path path) throws IOException {
+        countTailNgrams();
+        final int[] tail = new int[Math.min(window.size(), head.length)];
+        for (int i = 0; i < tail.length; i++) {
+            tail[i] = window.get(window.size() - tail.length + i);
+        }
+        PartialCountFile.write(path, trie, lexicon, wordCounts, numTokens,
+                Arrays.copyOf(head, (int)Math.min(numTokens, head.length)), tail);
+    }
+
+    /**
+     * Finds the words this counter has seen no more than a given number of times.
+     * @param unknownThreshold The maximum number of times a word should appear to be considered a rare word and not
+     *                         part of the vocabulary.
+     * @return The IDs of the rare words.
+     */
+    BitSet getRareWords(final int unknownThreshold) {
+        final BitSet rareWords = new BitSet();
+        for (int token = 0; token < wordCounts.length; token++) {
+            if (wordCounts[token] > 0 && wordCounts[token] <= unknownThreshold) {
+                rareWords.set(token);
+            }
+        }
+        return rareWords;
+    }
+
+    //==========================================================================
+    // Private helper methods
+    //==========================================================================
+
+    /**
+     * Counts the n-grams that start in the last maxN - 1 tokens, which never filled the window.
+     */
+    private void countTailNgrams() {
+        for (int offset = window.size() == window.capacity() ? 1 : 0; offset < window.size(); offset++) {
+            trie.add(window.view(offset));
+        }
+    }
+
+    /**
+     * Counts the n-grams that start with the last tokens of this counter and end with the first tokens of another.
+     * With a trie, these are the full windows that start in the last maxN - 1 tokens of this counter.
+     */
+    private void countBoundaryNgrams(final NgramCounter other, final int[] mapping) {
+        final RingTokenList boundary = new RingTokenList(window.capacity());
+        final int numLeft = Math.min(window.size(), head.length);
+        for (int i = window.size() - numLeft; i < window.size(); i++) {
+            boundary.addLast(window.get(i));
+        }
+        final int numRight = (int)Math.min(other.numTokens, head.length);
+        for (int j = 0; j < numRight; j++) {
+            boundary.addLast(mapping[other.head[j]]);
+            final int end = numLeft + j;
+            if (trie != null) {
+                if (boundary.size() == maxN && end - maxN + 1 < numLeft) {
+                    trie.add(boundary);
+                }
+                continue;
+            }
+            for (int i = 0; i < ns.length; i++) {
+                final int start = end - ns[i] + 1;
+                if (start >= 0 && start < numLeft) {
+                    modelBuilders.get(i).addTokens(boundary.view(boundary.size() - ns[i]));
+                }
+            }
+        }
+    }
+
+    //==========================================================================
+    // Package-private static helper methods
+    //==========================================================================
+
+    /**
+     * Turns input streams into sources that can be counted in parallel. Large files are memory mapped and cut into
+     * chunks at line breaks, so that each chunk can be tokenized on its own; the n-grams that span two chunks are
+     * counted when their counters are merged. Every other input stream becomes a single source.
+     * @param inputStreams The input streams to read, in order.
+     * @param options The options that control how the input streams are read.
+     * @return A list of sources, in the same order as the input they cover.
+     * @throws IOException If a file could not be mapped.
+     */
+    static List<Source> createSources(final List<InputStream> inputStreams, final IngestOptions options) throws IOException {
+        final boolean canChunk = canChunk(options);
+        final List<Source> sources = new ArrayList<>();
+        for (final InputStream inputStream : inputStreams) {
+            if (!canChunk || !(inputStream instanceof FileInputStream)) {
+                sources.add((tokenizer, sink) -> {
+                    try (InputStream in = inputStream) {
+                        tokenizer.tokenize(in, sink);
+                    }
+                });
+                continue;
+            }
+            try (FileChannel channel = ((FileInputStream)inputStream).getChannel()) {
+                // Mappings stay valid after their channel is closed
+                for (final ByteBuffer chunk : mapChunks(channel, options.getChunkSize())) {
+                    sources.add((tokenizer, sink) -> tokenizer.tokenize(chunk, sink));
+                }
+            }
+        }
+        return sources;
+    }
+
+    /**
+     * Returns whether every input stream would be memory mapped by {@link #createSources(List, IngestOptions)}, in
+     * which case its sources can be tokenized more than once.
+     * @param inputStreams The input streams to test.
+     * @param options The options that control how the input streams are read.
+     * @return Whether every source of the input streams can be read again.
+     */
+    static boolean canReread(final List<InputStream> inputStreams, final IngestOptions options) {
+        if (!canChunk(options)) {
+            return false;
+        }
+        for (final InputStream inputStream : inputStreams) {
+            if (!(inputStream instanceof FileInputStream)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Counts the words of every source, without counting any n-grams, and interns them into a lexicon in order of
+     * first appearance, which is the same order a full count would intern them in. The sources are counted on the
+     * options' pool, if there is one.
+     * @param sources The sources to count, in order.
+     * @param lexicon The lexicon into which every word is interned.
+     * @param options The options that control how the sources are read.
+     * @return A counter holding the count of every word.
+     */
+    static NgramCounter countWords(final List<Source> sources, final Lexicon lexicon, final IngestOptions options) {
+        return count(sources, Collections.emptyList(), lexicon, options.withCountingTrie(false), null);
+    }
+
+    /**
+     * Counts the n-grams of every source, on the options' pool if there is one, or on the calling thread otherwise.
+     * @param sources The sources to count, in order.
+     * @param nList The n-values that should be used.
+     * @param lexicon The lexicon into which every token is interned.
+     * @param options The options that control how the sources are read and counted.
+     * @param rareWords The IDs of the words to replace with the unknown word token, or null to keep every word.
+     *                  Every word must already be in the lexicon if this is given, in which case the tasks share
+     *                  their builders if the options say so.
+     * @return A counter holding the counts of every source.
+     */
+    static NgramCounter count(final List<Source> sources, final List<Integer> nList, final Lexicon lexicon,
+                              final IngestOptions options, final BitSet rareWords) {
+        if (options.getPool() != null) {
+            List<NgramModelBuilder> sharedBuilders = null;
+            if (options.usesSharedBuilders() && rareWords != null) {
+                sharedBuilders = new ArrayList<>();
+                for (final int n : nList) {
+                    sharedBuilders.add(NgramModel.getConcurrentNgramModelBuilder(n, lexicon,
+                            options.getPool().getParallelism()));
+                }
+            }
+            return options.getPool().invoke(new CountTask(sources, 0, sources.size(), nList, lexicon, options,
+                    rareWords, sharedBuilders));
+        }
+        final NgramCounter counter = new NgramCounter(nList, lexicon, options, rareWords);
+        for (final Source source : sources) {
+            try {
+                source.tokenize(options.getTokenizer(), counter);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return counter;
+    }
+
+    //==========================================================================
+    // Private static helper methods
+    //==========================================================================
+
+    /**
+     * Returns whether files can be cut into chunks, which are tokenized as UTF-8. That is also the only encoding we
+     * can safely cut at any newline byte.
+     */
+    private static boolean canChunk(final IngestOptions options) {
+        final Charset charset = options.getTokenizer().getCharset();
+        return charset.equals(StandardCharsets.UTF_8) || charset.equals(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Maps the rest of a file into chunks of roughly the given size. Every chunk but the last ends with a newline.
+     */
+    private static List<ByteBuffer> mapChunks(final FileChannel channel, final long chunkSize) throws IOException {
+        final List<ByteBuffer> chunks = new ArrayList<>();
+        final long size = channel.size();
+        long start = channel.position();
+        while (start < size) {
+            long end = Math.min(size, start + chunkSize);
+            if (end < size) {
+                end = findLineEnd(channel, end);
+            }
+            // A single mapping can't be larger than 2GB, so cut inside a line if one is that long
+            end = Math.min(end, start + Integer.MAX_VALUE);
+            chunks.add(channel.map(FileChannel.MapMode.READ_ONLY, start, end - start));
+            start = end;
+        }
+        return chunks;
+    }
+
+    /**
+     * Finds the position just after the first newline at or after the given position.
+     * @return The position after the newline, or the size of the file if there is no newline.
+     */
+    private static long findLineEnd(final FileChannel channel, final long from) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(1 << 13);
+        long position = from;
+        while (true) {
+            buffer.clear();
+            final int read = channel.read(buffer, position);
+            if (read <= 0) {
+                return channel.size();
+            }
+            for (int i = 0; i < read; i++) {
+                if (buffer.get(i) == '\n') {
+                    return position + i + 1;
+                }
+            }
+            position += read;
+        }
+    }
+
+    /**
+     * A piece of input, such as a file or a chunk of one, that can be tokenized independently.
+     */
+    interface Source {
+        /**
+         * Tokenizes this piece of input.
+         * @param tokenizer The tokenizer to use.
+         * @param sink The sink that receives every token.
+         * @throws IOException If the input could not be read.
+         */
+        void tokenize(final Tokenizer tokenizer, final TokenSink sink) throws IOException;
+    }
+
+    /**
+     * Counts a range of sources, splitting it in half and merging the halves until each range is small enough to
+     * count directly. The left half always counts into the given lexicon, so the leftmost range ends up holding the
+     * merged counts. When rare words are given, every word is already in the lexicon, so it is only read and every
+     * range shares it, and may share its builders as well.
+     */
+    static class CountTask extends RecursiveTask<NgramCounter> {
+        private static final long serialVersionUID = 1L;
+
+        private final List<Source> sources;
+        private final int from;
+        private final int to;
+        private final List<Integer> nList;
+        private final Lexicon lexicon;
+        private final IngestOptions options;
+        private final BitSet rareWords;
+        private final List<NgramModelBuilder> sharedBuilders;
+
+        CountTask(final List<Source> sources, final int from, final int to, final List<Integer> nList,
+                  final Lexicon lexicon, final IngestOptions options) {
+            this(sources, from, to, nList, lexicon, options, null, null);
+        }
+
+        CountTask(final List<Source> sources, final int from, final int to, final List<Integer> nList,
+                  final Lexicon lexicon, final IngestOptions options, final BitSet rareWords,
+                  final List<NgramModelBuilder> sharedBuilders) {
+            this.sources = sources;
+            this.from = from;
+            this.to = to;
+            this.nList = nList;
+            this.lexicon = lexicon;
+            this.options = options;
+            this.rareWords = rareWords;
+            this.sharedBuilders = sharedBuilders;
+        }
+
+        @Override
+        protected NgramCounter compute() {
+            if (to - from <= options.getSourcesPerTask()) {
+                final NgramCounter counter = new NgramCounter(nList, lexicon, options, rareWords, sharedBuilders);
+                for (int i = from; i < to; i++) {
+                    try {
+                        sources.get(i).tokenize(options.getTokenizer(), counter);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+                return counter;
+            }
+            final int middle = (from + to) >>> 1;
+            final CountTask right = new CountTask(sources, middle, to, nList,
+                    rareWords != null ? lexicon : new Lexicon(), options, rareWords, sharedBuilders);
+            right.fork();
+            final NgramCounter left = new CountTask(sources, from, middle, nList, lexicon, options, rareWords,
+                    sharedBuilders).compute();
+            return left.absorb(right.join());
+        }
+    }
+}
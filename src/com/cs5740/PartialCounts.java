@@ -0,0 +1,53 @@
+package com.cs5740;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A command line tool that trains a corpus in shards, so that it isn't limited to what one process can count. Each
+ * shard, such as a set of books, is counted by its own process into a partial count file, and the files are then
+ * merged into a model file:
+ * <pre>
+ *   PartialCounts count &lt;maxN&gt; &lt;partial count file&gt; &lt;text file&gt;...
+ *   PartialCounts merge &lt;name&gt; &lt;unknownThreshold&gt; &lt;model file&gt; &lt;partial count file&gt;...
+ * </pre>
+ * The partial count files should be given to the merge in the order of their shards. Both steps keep their counts
+ * within half of the maximum heap, spilling the rest to the default temporary directory.
+ */
+public class PartialCounts {
+    private static final String USAGE = "Usage:\n" +
+            "  PartialCounts count <maxN> <partial count file> <text file>...\n" +
+            "  PartialCounts merge <name> <unknownThreshold> <model file> <partial count file>...";
+
+    public static void main(String[] args) {
+        final IngestOptions options = IngestOptions.DEFAULT.withHeapBudget(Runtime.getRuntime().maxMemory() / 2);
+        try {
+            if (args.length >= 4 && args[0].equals("count")) {
+                final List<InputStream> inputStreams = new ArrayList<>();
+                for (int i = 3; i < args.length; i++) {
+                    inputStreams.add(new FileInputStream(args[i]));
+                }
+                Corpus.writePartialCounts(inputStreams, Integer.parseInt(args[1]), Paths.get(args[2]), options);
+            } else if (args.length >= 5 && args[0].equals("merge")) {
+                final List<Path> paths = new ArrayList<>();
+                for (int i = 4; i < args.length; i++) {
+                    paths.add(Paths.get(args[i]));
+                }
+                final Corpus corpus = Corpus.createCorpusFromPartialCounts(args[1], paths, Integer.parseInt(args[2]),
+                        options);
+                corpus.writeModelFile(Paths.get(args[3]));
+            } else {
+                System.err.println(USAGE);
+                System.exit(2);
+            }
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package com.cs5740;
+
+import com.cs5740.models.Lexicon;
+import com.cs5740.models.NgramModel;
+import com.cs5740.tokenizer.TokenSink;
+import com.cs5740.tokenizer.Tokenizer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.function.DoubleConsumer;
+
+/**
+ * Measures the perplexity of a training model on a stream of test text, without building a model of the test text.
+ * <p>
+ * Tokens are looked up in the training lexicon as they arrive and buffered. Whenever the buffer fills up, the n-grams
+ * in it are scored in one batch (see {@link NgramModel#getLogProbabilities}), added to a running sum, and dropped,
+ * except for the last n - 1 tokens, which start the next batch's first n-gram. Memory use doesn't depend on the
+ * size of the test text. Words the training corpus has never seen become the unknown word token.
+ * <p>
+ * Tokens given to separate calls are treated as one stream, so n-grams may span the end of one input stream and the
+ * start of the next, the same way a corpus built from several files counts them.
+ */
+public class PerplexityEvaluator implements TokenSink {
+    private static final int BATCH_SIZE = 4096;
+
+    private final NgramModel model;
+    private final Lexicon lexicon;
+    private final SmoothOptions smoothOptions;
+    private final Tokenizer tokenizer;
+    private final int n;
+    // Tokens that haven't been scored yet, as IDs in the training lexicon, preceded by the last n - 1 tokens that
+    // have been
+    private final int[] buffer;
+    private int bufferSize = 0;
+    private final double[] logProbabilities = new double[BATCH_SIZE];
+    // The sum of the anomaly scores of every n-gram seen so far
+    private double anomalySum = 0.0;
+    private long numNgrams = 0;
+    // Called with the running perplexity every progressInterval n-grams, if not null
+    private DoubleConsumer progressListener = null;
+    private long progressInterval = 0;
+
+    /**
+     * Creates an evaluator for a training model. See {@link Corpus#createPerplexityEvaluator(int, SmoothOptions)}.
+     * @param model The training model.
+     * @param smoothOptions The smoothing option with which n-gram probabilities are computed.
+     * @param tokenizer The tokenizer that splits input streams into tokens.
+     */
+    PerplexityEvaluator(final NgramModel model, final SmoothOptions smoothOptions, final Tokenizer tokenizer) {
+        this.model = model;
+        this.lexicon = model.getLexicon();
+        this.smoothOptions = smoothOptions;
+        this.tokenizer = tokenizer;
+        this.n = model.getN();
+        this.buffer = new int[BATCH_SIZE + n - 1];
+    }
+
+    /**
+     * Reports the running perplexity while text is being evaluated.
+     * @param interval The number of n-grams between reports. This must be positive.
+     * @param listener Called with the running perplexity, or null to stop reporting.
+     * @return A reference to this object.
+     */
+    public PerplexityEvaluator setProgressListener(final long interval, final DoubleConsumer listener) {
+        if (interval <= 0) {
+            throw new IllegalArgumentException("interval must be positive");
+        }
+        this.progressInterval = interval;
+        this.progressListener = listener;
+        return this;
+    }
+
+    @Override
+    public void accept(final char[] chars, final int offset, final int length) {
+        addToken(lexicon.getId(chars, offset, length));
+    }
+
+    /**
+     * Adds a token to the stream. The n-gram that ends with it is scored once the buffer fills up, or the results
+     * are asked for.
+     * @param token The ID of the token in the training lexicon.
+     */
+    public void addToken(final int token) {
+        buffer[bufferSize++] = token;
+        if (bufferSize == buffer.length) {
+            flush();
+        }
+    }
+
+    /**
+     * Evaluates every token that can be read from an input stream.
+     * @param inputStream The input stream. It is not closed.
+     * @return A reference to this object.
+     * @throws IOException If the input stream couldn't be read.
+     */
+    public PerplexityEvaluator evaluate(final InputStream inputStream) throws IOException {
+        tokenizer.tokenize(inputStream, this);
+        return this;
+    }
+
+    /**
+     * Evaluates every token in a file.
+     * @param path The file to read.
+     * @return A reference to this object.
+     * @throws IOException If the file couldn't be read.
+     */
+    public PerplexityEvaluator evaluate(final Path path) throws IOException {
+        try (InputStream inputStream = Files.newInputStream(path)) {
+            return evaluate(inputStream);
+        }
+    }
+
+    /**
+     * Gets the perplexity of the training model on every n-gram seen so far. This may be called at any time, to
+     * get a running value.
+     * @return The perplexity, or NaN if no n-grams have been seen yet.
+     */
+    public double getPerplexity() {
+        flush();
+        if (numNgrams == 0) {
+            return Double.NaN;
+        }
+        return Math.exp(anomalySum / numNgrams);
+    }
+
+    /**
+     * Gets the sum of the natural log probabilities of every n-gram seen so far.
+     * @return A log probability, which is at most zero.
+     */
+    public double getLogProbability() {
+        flush();
+        return -anomalySum;
+    }
+
+    /**
+     * Gets the number of n-grams seen so far.
+     * @return The number of n-grams that have been scored.
+     */
+    public long getNgramCount() {
+        flush();
+        return numNgrams;
+    }
+
+    //==========================================================================
+    // Private helper methods
+    //==========================================================================
+
+    /**
+     * Scores every buffered n-gram, keeping the last n - 1 tokens for the next one.
+     */
+    private void flush() {
+        final int numNew = bufferSize - (n - 1);
+        if (numNew <= 0) {
+            return;
+        }
+        model.getLogProbabilities(buffer, 0, numNew, smoothOptions, logProbabilities);
+        for (int i = 0; i < numNew; i++) {
+            anomalySum -= logProbabilities[i];
+            numNgrams++;
+            if (progressListener != null && numNgrams % progressInterval == 0) {
+                progressListener.accept(Math.exp(anomalySum / numNgrams));
+            }
+        }
+        System.arraycopy(buffer, numNew, buffer, 0, n - 1);
+        bufferSize = n - 1;
+    }
+}
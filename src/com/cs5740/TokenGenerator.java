@@ -0,0 +1,207 @@
+package com.cs5740;
+
+import com.cs5740.models.AliasSampler;
+import com.cs5740.models.Lexicon;
+import com.cs5740.models.NgramModel;
+import com.cs5740.tokenizer.SimpleTokenizer;
+import com.cs5740.tokenlist.RingTokenList;
+import com.cs5740.tokenlist.TokenList;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.util.*;
+import java.util.function.DoubleSupplier;
+import java.util.function.IntFunction;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Generates random text from an n-gram model one word at a time, as it is consumed.
+ * <p>
+ * Each word is sampled when it is asked for, with the last n - 1 words kept in a fixed-size buffer as its context,
+ * so memory use doesn't depend on how many words are generated. Words can be taken as IDs, as strings, as streams of
+ * either, or written straight to a writer as text. Every way of consuming words advances the same generator. This
+ * class is not thread-safe.
+ */
+public class TokenGenerator implements PrimitiveIterator.OfInt {
+    private final Map<Integer, NgramModel> ngramModels;
+    private final IntFunction<AliasSampler> samplers;
+    private final Lexicon lexicon;
+    private final NgramModel model;
+    private final DoubleSupplier random;
+    // Only the last n - 1 words are kept, since that's all the context an n-gram model can use.
+    private final RingTokenList previousWords;
+    private long remaining;
+    private boolean started = false;
+
+    /**
+     * Creates a generator. See {@link Corpus#createTokenGenerator(int, long)}.
+     * @param ngramModels The n-gram models of the corpus, by n-value.
+     * @param samplers Gets the sampler of the model with a given n-value.
+     * @param lexicon The lexicon of the corpus.
+     * @param n The n-value of the model to generate words with, which must be in ngramModels.
+     * @param numWords The number of words to generate.
+     * @param random The source of random numbers in the range of [0.0, 1.0).
+     */
+    TokenGenerator(final Map<Integer, NgramModel> ngramModels, final IntFunction<AliasSampler> samplers,
+                   final Lexicon lexicon, final int n, final long numWords, final DoubleSupplier random) {
+        this.ngramModels = ngramModels;
+        this.samplers = samplers;
+        this.lexicon = lexicon;
+        this.model = ngramModels.get(n);
+        this.random = random;
+        this.previousWords = new RingTokenList(Math.max(1, n - 1));
+        this.remaining = Math.max(0, numWords);
+    }
+
+    @Override
+    public boolean hasNext() {
+        return remaining > 0;
+    }
+
+    /**
+     * Generates the ID of the next word.
+     * @return The ID of the next word.
+     * @throws NoSuchElementException If every word has been generated.
+     */
+    @Override
+    public int nextInt() {
+        if (remaining <= 0) {
+            throw new NoSuchElementException();
+        }
+        remaining--;
+        final int word;
+        if (!started) {
+            started = true;
+            word = samplers.apply(1).sampleWordId(null, random.getAsDouble());
+        } else {
+            word = generateNextWord(model.getN() > 1 ? previousWords : previousWords.tail());
+        }
+        previousWords.addLast(word);
+        return word;
+    }
+
+    /**
+     * Generates the next word.
+     * @return The next word.
+     * @throws NoSuchElementException If every word has been generated.
+     */
+    public String nextWord() {
+        return lexicon.getWord(nextInt());
+    }
+
+    /**
+     * Gets the number of words left to generate.
+     * @return The number of remaining words.
+     */
+    public long getRemaining() {
+        return remaining;
+    }
+
+    /**
+     * Returns an iterator over the words left to generate, as strings.
+     * @return An iterator that advances this generator.
+     */
+    public Iterator<String> words() {
+        return new Iterator<String>() {
+            @Override
+            public boolean hasNext() {
+                return TokenGenerator.this.hasNext();
+            }
+
+            @Override
+            public String next() {
+                return nextWord();
+            }
+        };
+    }
+
+    /**
+     * Returns a sequential stream of the IDs of the words left to generate.
+     * @return A stream that advances this generator.
+     */
+    public IntStream ids() {
+        return StreamSupport.intStream(Spliterators.spliterator(this, remaining,
+                Spliterator.ORDERED | Spliterator.NONNULL), false);
+    }
+
+    /**
+     * Returns a sequential stream of the words left to generate.
+     * @return A stream that advances this generator.
+     */
+    public Stream<String> stream() {
+        return StreamSupport.stream(Spliterators.spliterator(words(), remaining,
+                Spliterator.ORDERED | Spliterator.NONNULL), false);
+    }
+
+    /**
+     * Generates every remaining word and writes it to a writer as text. Punctuation is written without a space
+     * before it, and every other word but the first is written with one.
+     * @param writer The writer to write to. It is not closed.
+     * @throws IOException If the text could not be written.
+     */
+    public void writeTo(final Writer writer) throws IOException {
+        appendTo(writer);
+    }
+
+    /**
+     * Generates every remaining word and appends it to an appendable as text, like {@link #writeTo(Writer)}.
+     * @param appendable The appendable to append to.
+     * @throws IOException If the text could not be appended.
+     */
+    public void appendTo(final Appendable appendable) throws IOException {
+        while (hasNext()) {
+            final boolean first = !started;
+            final String word = nextWord();
+            if (!first && !SimpleTokenizer.isPunctuation(word)) {
+                appendable.append(' ');
+            }
+            appendable.append(word);
+        }
+    }
+
+    /**
+     * Generates every remaining word and returns it as text, like {@link #writeTo(Writer)}.
+     * @return The generated text.
+     */
+    public String toText() {
+        final StringBuilder result = new StringBuilder();
+        try {
+            appendTo(result);
+        } catch (IOException e) {
+            // A StringBuilder never throws
+            throw new UncheckedIOException(e);
+        }
+        return result.toString();
+    }
+
+    //==========================================================================
+    // Private helper methods
+    //==========================================================================
+
+    /**
+     * Attempts to generate the next word in a model given a list of previous words.
+     * If the list of previous words is too small, this method defaults to using the model with the largest n
+     * for which the number of previous words is sufficient.
+     *
+     * @param previousWords The previous words to provide the context for the next word.
+     * @return The ID of a randomly generated word.
+     */
+    private int generateNextWord(final TokenList previousWords) {
+        NgramModel lModel = model;
+        TokenList lPreviousWords = previousWords;
+        if (lModel.getN() - 1 > lPreviousWords.size()) {
+            int n = lPreviousWords.size() + 1;
+            do {
+                lModel = ngramModels.get(n);
+                if (lModel != null && lModel.getN() == lPreviousWords.size()) {
+                    lPreviousWords = lPreviousWords.tail();
+                }
+                n--;
+            } while (lModel == null);
+        }
+        return samplers.apply(lModel.getN()).sampleWordId(lPreviousWords, random.getAsDouble());
+    }
+}
@@ -0,0 +1,144 @@
+package com.cs5740.models;
+
+import com.cs5740.tokenlist.TokenList;
+
+import java.util.*;
+
+/**
+ * Samples words from an n-gram model in constant time, with Vose's alias method.
+ * <p>
+ * The first time a context is sampled, the counts of the words that follow it are turned into an {@link AliasTable}.
+ * Tables are kept in a cache of bounded size, which evicts the least recently used context first. A unigram model has
+ * a single table, which is built up front.
+ * <p>
+ * The distribution of sampled words is the same as {@link NgramModel#getWordId(TokenList, double)}'s, but a given
+ * random number generally maps to a different word. Models that can't list the words that follow a context are
+ * sampled with getWordId instead. This class is not thread-safe, but {@link #fork()} creates a cheap sampler for another
+ * thread.
+ */
+public class AliasSampler {
+    public static final int DEFAULT_CACHE_SIZE = 1 << 16;
+
+    private final NgramModel model;
+    // The table of a unigram model, which has no context
+    private final AliasTable unigramTable;
+    private final Map<Context, AliasTable> cache;
+    private final int cacheSize;
+    // Reused to look contexts up in the cache without allocating
+    private final Context probe;
+
+    /**
+     * Creates a sampler for a model.
+     * @param model The model to sample from.
+     * @param cacheSize The maximum number of contexts whose tables are kept. This must be positive.
+     */
+    public AliasSampler(final NgramModel model, final int cacheSize) {
+        if (cacheSize <= 0) {
+            throw new IllegalArgumentException("cacheSize must be positive");
+        }
+        this.model = model;
+        this.unigramTable = model.getN() == 1 ? model.createAliasTable(null) : null;
+        this.cache = createCache(cacheSize);
+        this.cacheSize = cacheSize;
+        this.probe = new Context(new int[Math.max(0, model.getN() - 1)]);
+    }
+
+    private AliasSampler(final AliasSampler other) {
+        this.model = other.model;
+        this.unigramTable = other.unigramTable;
+        this.cache = createCache(other.cacheSize);
+        this.cacheSize = other.cacheSize;
+        this.probe = new Context(new int[other.probe.tokens.length]);
+    }
+
+    /**
+     * Creates a sampler for the same model, with an empty cache of the same size. The unigram table is shared rather
+     * than rebuilt, so this is cheap. Use one fork per thread to sample a model from several threads at once.
+     * @return A new sampler.
+     */
+    public AliasSampler fork() {
+        return new AliasSampler(this);
+    }
+
+    /**
+     * Returns the ID of a randomly chosen word that follows a context.
+     * @param previousTokens The context, which should hold at least n - 1 tokens. Only the first n - 1 are used.
+     *                       This is ignored for unigram models.
+     * @param p A number in the range of [0.0, 1.0). This number should ideally be randomly generated.
+     * @return The ID of the word determined by the given number. {@link Lexicon#NO_ID} is returned if p falls
+     * outside of the required range, or no words follow the context.
+     */
+    public int sampleWordId(final TokenList previousTokens, final double p) {
+        if (model.getN() == 1) {
+            return unigramTable != null ? unigramTable.sample(p) : model.getWordId(previousTokens, p);
+        }
+        probe.set(previousTokens);
+        AliasTable table = cache.get(probe);
+        if (table == null) {
+            table = model.createAliasTable(previousTokens);
+            if (table == null) {
+                return model.getWordId(previousTokens, p);
+            }
+            cache.put(probe.copy(), table);
+        }
+        return table.sample(p);
+    }
+
+    /**
+     * Gets the number of contexts whose tables are cached.
+     * @return The number of cached tables.
+     */
+    public int getCachedContextCount() {
+        return cache.size();
+    }
+
+    //==========================================================================
+    // Private static helper methods
+    //==========================================================================
+
+    /**
+     * Creates an empty cache that evicts its least recently used table once it holds more than the given number.
+     */
+    private static Map<Context, AliasTable> createCache(final int cacheSize) {
+        return new LinkedHashMap<Context, AliasTable>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<Context, AliasTable> eldest) {
+                return size() > cacheSize;
+            }
+        };
+    }
+
+    /**
+     * The first n - 1 tokens of a context, as a hash key.
+     */
+    private static final class Context {
+        private final int[] tokens;
+        private int hash;
+
+        Context(final int[] tokens) {
+            this.tokens = tokens;
+            this.hash = Arrays.hashCode(tokens);
+        }
+
+        void set(final TokenList previousTokens) {
+            for (int i = 0; i < tokens.length; i++) {
+                tokens[i] = previousTokens.get(i);
+            }
+            hash = Arrays.hashCode(tokens);
+        }
+
+        Context copy() {
+            return new Context(tokens.clone());
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(final Object other) {
+            return other instanceof Context && Arrays.equals(tokens, ((Context)other).tokens);
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package com.cs5740.models;
+
+/**
+ * A discrete distribution over words that can be sampled in constant time, built with Vose's alias method.
+ * <p>
+ * The table has one column per word, each of which is split between its own word and an alias. Sampling picks a
+ * column, then either its word or its alias, with a single random number.
+ */
+final class AliasTable {
+    static final AliasTable EMPTY = new AliasTable(new int[0], new double[0]);
+
+    private final int[] words;
+    // Indexed by column. The chance of picking the column's own word rather than its alias.
+    private final double[] probabilities;
+    private final int[] aliases;
+
+    /**
+     * Creates a table for a distribution.
+     * @param words The words of the distribution.
+     * @param weights Indexed like words. The weight of each word, which must be positive.
+     */
+    AliasTable(final int[] words, final double[] weights) {
+        final int size = words.length;
+        this.words = words;
+        this.probabilities = new double[size];
+        this.aliases = new int[size];
+        double total = 0.0;
+        for (final double weight : weights) {
+            total += weight;
+        }
+        // Scale the weights so that they average one, then pair each column under one with a column over one
+        final double[] scaled = new double[size];
+        final int[] small = new int[size];
+        final int[] large = new int[size];
+        int numSmall = 0;
+        int numLarge = 0;
+        for (int i = 0; i < size; i++) {
+            scaled[i] = weights[i] * size / total;
+            if (scaled[i] < 1.0) {
+                small[numSmall++] = i;
+            } else {
+                large[numLarge++] = i;
+            }
+        }
+        while (numSmall > 0 && numLarge > 0) {
+            final int less = small[--numSmall];
+            final int more = large[--numLarge];
+            probabilities[less] = scaled[less];
+            aliases[less] = words[more];
+            scaled[more] = (scaled[more] + scaled[less]) - 1.0;
+            if (scaled[more] < 1.0) {
+                small[numSmall++] = more;
+            } else {
+                large[numLarge++] = more;
+            }
+        }
+        // Whatever is left is one, up to rounding
+        while (numLarge > 0) {
+            probabilities[large[--numLarge]] = 1.0;
+        }
+        while (numSmall > 0) {
+            probabilities[small[--numSmall]] = 1.0;
+        }
+    }
+
+    /**
+     * Returns the word determined by the given number.
+     * @param p A number in the range of [0.0, 1.0). This number should ideally be randomly generated.
+     * @return The ID of a word, or {@link Lexicon#NO_ID} if p falls outside of the required range, or the table is
+     * empty.
+     */
+    int sample(final double p) {
+        if (words.length == 0 || p < 0.0 || p >= 1.0) {
+            return Lexicon.NO_ID;
+        }
+        final double x = p * words.length;
+        final int column = Math.min((int)x, words.length - 1);
+        return x - column < probabilities[column] ? words[column] : aliases[column];
+    }
+
+    /**
+     * Gets the number of words in this table.
+     * @return The size of this table.
+     */
+    int size() {
+        return words.length;
+    }
+}
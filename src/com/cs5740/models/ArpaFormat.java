@@ -0,0 +1,232 @@
+package com.cs5740.models;
+
+import com.cs5740.SmoothOptions;
+import com.cs5740.tokenlist.TokenList;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Reads and writes n-gram models in the ARPA back-off format used by most language modeling toolkits.
+ * <p>
+ * Both directions stream: the writer walks each model's iterator one order at a time, and the reader stores each
+ * entry straight into the tables of a {@link BackoffNgramModel} as its line is parsed. Neither ever holds the whole
+ * file in memory.
+ */
+public final class ArpaFormat {
+    private ArpaFormat() {}
+
+    /**
+     * Writes n-gram models to an ARPA file. Most readers expect the models to cover every order from 1 up.
+     * <p>
+     * Back-off models, including those built by {@link BackoffModels}, are written exactly as stored. Count models
+     * are written as conditional probabilities: the smoothed frequency of each n-gram divided by the total count of
+     * the n-grams that share its context. Since count models never back off, no back-off weights are written for
+     * them.
+     * @param writer The writer to write the file to. It is not closed.
+     * @param ngramModels The models to write, which must share a lexicon.
+     * @param smoothOptions The smoothing option for count models.
+     * @throws IOException If the file could not be written.
+     */
+    public static void write(final Writer writer, final Collection<NgramModel> ngramModels,
+                             final SmoothOptions smoothOptions) throws IOException {
+        final List<NgramModel> models = new ArrayList<>(ngramModels);
+        models.sort(Comparator.comparingInt(NgramModel::getN));
+        final BufferedWriter out = new BufferedWriter(writer, 1 << 16);
+        out.write("\n\\data\\\n");
+        for (final NgramModel model : models) {
+            out.write("ngram " + model.getN() + "=" + model.getTotalUniqueCount() + "\n");
+        }
+        for (final NgramModel model : models) {
+            out.write("\n\\" + model.getN() + "-grams:\n");
+            if (model instanceof BackoffModel) {
+                writeBackoffEntries(out, (BackoffModel)model);
+            } else {
+                writeCountEntries(out, model, smoothOptions);
+            }
+        }
+        out.write("\n\\end\\\n");
+        out.flush();
+    }
+
+    /**
+     * Reads an ARPA file into back-off models, one per order.
+     * @param reader The reader to read the file from. It is not closed.
+     * @param lexicon The lexicon into which every word is interned.
+     * @return A map of n-gram models, keyed by n.
+     * @throws IOException If the file could not be read, or is malformed.
+     */
+    public static Map<Integer, NgramModel> read(final Reader reader, final Lexicon lexicon) throws IOException {
+        final BufferedReader in = new BufferedReader(reader, 1 << 16);
+        int lineNumber = 0;
+        String line = in.readLine();
+        while (line != null && !line.trim().equals("\\data\\")) {
+            line = in.readLine();
+            lineNumber++;
+        }
+        if (line == null) {
+            throw new IOException("Missing \\data\\ section");
+        }
+        // Read the number of n-grams of each order
+        final List<Integer> sizes = new ArrayList<>();
+        sizes.add(0);
+        line = in.readLine();
+        lineNumber++;
+        while (line != null && !line.startsWith("\\")) {
+            line = line.trim();
+            if (line.startsWith("ngram ")) {
+                final int equals = line.indexOf('=');
+                final int order = Integer.parseInt(line.substring(6, equals).trim());
+                while (sizes.size() <= order) {
+                    sizes.add(0);
+                }
+                sizes.set(order, Integer.parseInt(line.substring(equals + 1).trim()));
+            }
+            line = in.readLine();
+            lineNumber++;
+        }
+        final int maxN = sizes.size() - 1;
+        final int[] expectedSizes = new int[maxN + 1];
+        for (int order = 1; order <= maxN; order++) {
+            expectedSizes[order] = sizes.get(order);
+        }
+        final BackoffNgramModel.Levels levels = new BackoffNgramModel.Levels(maxN, lexicon, expectedSizes);
+        // Read every section
+        final int[] ids = new int[Math.max(1, maxN)];
+        char[] chars = new char[256];
+        int order = 0;
+        while (line != null) {
+            final String trimmed = line.trim();
+            if (trimmed.equals("\\end\\")) {
+                break;
+            } else if (trimmed.startsWith("\\") && trimmed.endsWith("-grams:")) {
+                order = Integer.parseInt(trimmed.substring(1, trimmed.indexOf('-')));
+                if (order < 1 || order > maxN) {
+                    throw new IOException("Unexpected section " + trimmed + " on line " + lineNumber);
+                }
+            } else if (!trimmed.isEmpty()) {
+                if (order == 0) {
+                    throw new IOException("Entry outside of any section on line " + lineNumber);
+                }
+                if (chars.length < line.length()) {
+                    chars = new char[line.length() * 2];
+                }
+                line.getChars(0, line.length(), chars, 0);
+                // Fields are separated by whitespace: a log10 probability, the words, then maybe a back-off weight
+                int start = skipWhitespace(chars, 0, line.length());
+                int end = skipField(chars, start, line.length());
+                final float logProb = parseFloat(line, start, end, lineNumber);
+                for (int i = 0; i < order; i++) {
+                    start = skipWhitespace(chars, end, line.length());
+                    end = skipField(chars, start, line.length());
+                    if (start == end) {
+                        throw new IOException("Too few words on line " + lineNumber);
+                    }
+                    ids[i] = lexicon.getOrAdd(chars, start, end - start);
+                }
+                start = skipWhitespace(chars, end, line.length());
+                end = skipField(chars, start, line.length());
+                final float backoff = start == end ? 0.0f : parseFloat(line, start, end, lineNumber);
+                levels.put(order, ids, 0, logProb, backoff);
+            }
+            line = in.readLine();
+            lineNumber++;
+        }
+        return levels.build();
+    }
+
+    //==========================================================================
+    // Private static helper methods
+    //==========================================================================
+
+    private static void writeBackoffEntries(final Writer out, final BackoffModel model) throws IOException {
+        final Iterator<TokenList> iterator = model.getIterator();
+        while (iterator.hasNext()) {
+            final TokenList tokens = iterator.next();
+            final double backoff = model.getStoredLog10Backoff(tokens);
+            writeEntry(out, model.getLexicon(), tokens, model.getStoredLog10Probability(tokens), backoff != 0.0, backoff);
+        }
+    }
+
+    /**
+     * Writes the n-grams of a count model, one context at a time, so only one context's n-grams are held at once.
+     * This relies on the model's iterator listing the n-grams of a context one after another. Hashed, trie and
+     * overlay models list their n-grams in order, and nested models list them one context at a time.
+     */
+    private static void writeCountEntries(final Writer out, final NgramModel model, final SmoothOptions smoothOptions)
+            throws IOException {
+        final int n = model.getN();
+        final List<TokenList> group = new ArrayList<>();
+        final List<Double> frequencies = new ArrayList<>();
+        long total = 0;
+        final Iterator<TokenList> iterator = model.getIterator();
+        while (iterator.hasNext()) {
+            final TokenList tokens = iterator.next();
+            if (!group.isEmpty() && !sharesContext(group.get(0), tokens, n - 1)) {
+                writeGroup(out, model.getLexicon(), group, frequencies, total);
+                group.clear();
+                frequencies.clear();
+                total = 0;
+            }
+            group.add(tokens);
+            frequencies.add(model.getTokenFrequency(tokens, smoothOptions));
+            total += model.getUnsmoothedTokenFrequency(tokens);
+        }
+        writeGroup(out, model.getLexicon(), group, frequencies, total);
+    }
+
+    private static void writeGroup(final Writer out, final Lexicon lexicon, final List<TokenList> group,
+                                   final List<Double> frequencies, final long total) throws IOException {
+        for (int i = 0; i < group.size(); i++) {
+            writeEntry(out, lexicon, group.get(i), Math.log10(frequencies.get(i) / total), false, 0.0);
+        }
+    }
+
+    private static void writeEntry(final Writer out, final Lexicon lexicon, final TokenList tokens, final double logProb,
+                                   final boolean hasBackoff, final double backoff) throws IOException {
+        out.write(Float.toString((float)logProb));
+        for (int i = 0; i < tokens.size(); i++) {
+            out.write(i == 0 ? '\t' : ' ');
+            out.write(lexicon.getWord(tokens.get(i)));
+        }
+        if (hasBackoff) {
+            out.write('\t');
+            out.write(Float.toString((float)backoff));
+        }
+        out.write('\n');
+    }
+
+    private static boolean sharesContext(final TokenList a, final TokenList b, final int length) {
+        for (int i = 0; i < length; i++) {
+            if (a.get(i) != b.get(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int skipWhitespace(final char[] chars, final int from, final int to) {
+        int i = from;
+        while (i < to && (chars[i] == ' ' || chars[i] == '\t')) {
+            i++;
+        }
+        return i;
+    }
+
+    private static int skipField(final char[] chars, final int from, final int to) {
+        int i = from;
+        while (i < to && chars[i] != ' ' && chars[i] != '\t') {
+            i++;
+        }
+        return i;
+    }
+
+    private static float parseFloat(final String line, final int start, final int end, final int lineNumber)
+            throws IOException {
+        try {
+            return Float.parseFloat(line.substring(start, end));
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed number on line " + lineNumber, e);
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package com.cs5740.models;
+
+import com.cs5740.tokenlist.TokenList;
+
+import java.util.Iterator;
+
+/**
+ * An n-gram model that stores a log10 probability and a log10 back-off weight for each of its n-grams, as in the
+ * ARPA format, and backs off to shorter n-grams for those it doesn't store. Both {@link BackoffNgramModel}, which is
+ * read from ARPA files, and {@link BackoffTrieNgramModel}, which {@link BackoffModels} builds from counts, are
+ * back-off models.
+ */
+interface BackoffModel {
+    /**
+     * Gets the log10 conditional probability of the last word of an n-gram given the words before it, backing off to
+     * shorter contexts if the n-gram isn't stored. Words that aren't in the vocabulary are treated as unknown words.
+     * @param tokens The n-gram.
+     * @return A log10 probability.
+     */
+    double getLog10Probability(final TokenList tokens);
+
+    /**
+     * Gets the stored log10 probability of an n-gram of this model's order, without backing off.
+     * @param tokens The n-gram.
+     * @return The log10 probability, or NaN if the n-gram isn't stored.
+     */
+    double getStoredLog10Probability(final TokenList tokens);
+
+    /**
+     * Gets the stored log10 back-off weight of an n-gram of this model's order.
+     * @param tokens The n-gram.
+     * @return The log10 back-off weight, which is zero if none is stored.
+     */
+    double getStoredLog10Backoff(final TokenList tokens);
+
+    /**
+     * Gets an iterator over every n-gram this model stores of its order. See {@link NgramModel#getIterator()}.
+     * @return An iterator object.
+     */
+    Iterator<TokenList> getIterator();
+
+    /**
+     * Gets the lexicon that maps the word IDs used by this model to strings.
+     * @return The lexicon of this model.
+     */
+    Lexicon getLexicon();
+}
@@ -0,0 +1,309 @@
+package com.cs5740.models;
+
+import com.cs5740.tokenlist.TokenList;
+
+import java.util.*;
+
+/**
+ * Turns count models into back-off models whose probabilities are smoothed across every order once, when they are
+ * built, rather than on every query.
+ * <p>
+ * The n-grams of every order are copied into one {@link BackoffTrie}, along with the log10 probability of every
+ * n-gram and the log10 back-off weight of every context. A query then finds the longest context of its n-gram that
+ * was seen, and the word after it, with at most one lookup per order, and never renormalizes anything. Two smoothing
+ * methods are supported:
+ * <ul>
+ *   <li>Interpolated Kneser-Ney, with one absolute discount per order, D = n1 / (n1 + 2 n2), where n1 and n2 are the
+ *   numbers of n-grams of the order that were seen once and twice. Every order but the highest counts the n-grams
+ *   by the number of distinct words seen before them, so a word that only ever follows one context gets little of the
+ *   mass left for unseen contexts. The probability of an n-gram is its discounted count over the count of its
+ *   context, plus the discounted mass times the probability of the n-gram without its first word. A word outside the
+ *   vocabulary gets the unigram share of the discounted mass, as if it were one more word.</li>
+ *   <li>Stupid back-off, which isn't a distribution: the probability of a seen n-gram is its relative frequency
+ *   given its context, and every back-off costs a fixed factor, including a back-off from a context that was never
+ *   seen. ARPA files have no weight for contexts they don't list, so a stupid back-off model written to one loses
+ *   the factor for those.</li>
+ * </ul>
+ * The built models still hold the raw counts, so their frequencies and statistics are those of the count models.
+ */
+public final class BackoffModels {
+    private BackoffModels() {}
+
+    /**
+     * Builds interpolated Kneser-Ney models from count models.
+     * @param ngramModels The count models, keyed by n, which must cover every n from 1 up, and share a lexicon. The
+     *                    models of every order must come from the same text.
+     * @return A map of back-off n-gram models, keyed by n, which share one trie.
+     */
+    public static Map<Integer, NgramModel> kneserNey(final Map<Integer, NgramModel> ngramModels) {
+        return build(ngramModels, true, 0.0);
+    }
+
+    /**
+     * Builds stupid back-off models from count models.
+     * @param ngramModels The count models, keyed by n, which must cover every n from 1 up, and share a lexicon. The
+     *                    models of every order must come from the same text.
+     * @param backoffFactor The factor by which the score of a shorter context is multiplied, such as 0.4.
+     * @return A map of back-off n-gram models, keyed by n, which share one trie.
+     */
+    public static Map<Integer, NgramModel> stupidBackoff(final Map<Integer, NgramModel> ngramModels,
+                                                         final double backoffFactor) {
+        if (!(backoffFactor > 0.0)) {
+            throw new IllegalArgumentException("The back-off factor must be positive");
+        }
+        return build(ngramModels, false, backoffFactor);
+    }
+
+    //==========================================================================
+    // Private static helper methods
+    //==========================================================================
+
+    private static Map<Integer, NgramModel> build(final Map<Integer, NgramModel> ngramModels,
+                                                  final boolean kneserNey, final double backoffFactor) {
+        final int maxN = ngramModels.size();
+        for (int n = 1; n <= maxN; n++) {
+            final NgramModel model = ngramModels.get(n);
+            if (model == null) {
+                throw new IllegalArgumentException("Back-off models need count models of every order from 1 to " +
+                        maxN);
+            } else if (model instanceof BackoffModel) {
+                throw new IllegalArgumentException("Back-off models hold no counts to smooth");
+            } else if (model instanceof CountMinNgramModel) {
+                throw new IllegalArgumentException("Count-Min models don't hold their n-grams, and can't be smoothed");
+            }
+        }
+        final Lexicon lexicon = ngramModels.get(1).lexicon;
+        final BackoffTrie trie = createTrie(ngramModels, maxN, lexicon.size());
+        final double[][] counts = kneserNey ? continuationCounts(trie) : rawCounts(trie);
+        // Level 1
+        double total = 0.0;
+        for (final double count : counts[1]) {
+            total += count;
+        }
+        final int vocabularySize = trie.size(1);
+        if (kneserNey) {
+            // The unknown word is one more word of the vocabulary if it was never seen
+            final double discount = discount(counts[1]);
+            final boolean unknownSeen = trie.isInVocabulary(Lexicon.UNKNOWN_ID);
+            final double uniform = discount * vocabularySize / (vocabularySize + (unknownSeen ? 0 : 1));
+            for (int node = 0; node < vocabularySize; node++) {
+                trie.logProbs[1][node] = (float)Math.log10((Math.max(counts[1][node] - discount, 0.0) + uniform) /
+                        total);
+            }
+            trie.unknownLogProb = unknownSeen ? trie.logProbs[1][trie.unigrams[Lexicon.UNKNOWN_ID]] :
+                    (float)Math.log10(uniform / total);
+        } else {
+            for (int node = 0; node < vocabularySize; node++) {
+                trie.logProbs[1][node] = (float)Math.log10(counts[1][node] / total);
+            }
+            trie.unknownLogProb = trie.isInVocabulary(Lexicon.UNKNOWN_ID) ?
+                    trie.logProbs[1][trie.unigrams[Lexicon.UNKNOWN_ID]] : Float.NEGATIVE_INFINITY;
+        }
+        // Every higher level, which only needs the probabilities of the levels below it
+        final float logBackoffFactor = (float)Math.log10(backoffFactor);
+        if (!kneserNey) {
+            trie.unseenContextLogBackoff = logBackoffFactor;
+        }
+        final int[] ngram = new int[maxN];
+        for (int depth = 2; depth <= maxN; depth++) {
+            final double discount = kneserNey ? discount(counts[depth]) : 0.0;
+            final int[] childStarts = trie.childStarts[depth - 1];
+            for (int context = 0; context < trie.size(depth - 1); context++) {
+                final int from = childStarts[context];
+                final int to = childStarts[context + 1];
+                if (!kneserNey) {
+                    // Even a context that nothing follows costs the factor to back off from
+                    trie.backoffs[depth - 1][context] = logBackoffFactor;
+                }
+                if (from == to) {
+                    continue;
+                }
+                double contextTotal = 0.0;
+                for (int node = from; node < to; node++) {
+                    contextTotal += counts[depth][node];
+                }
+                final int numWords = to - from;
+                if (kneserNey) {
+                    final double interpolated = discount * numWords / contextTotal;
+                    trie.backoffs[depth - 1][context] = (float)Math.log10(interpolated);
+                    getNgram(trie, depth - 1, context, ngram);
+                    for (int node = from; node < to; node++) {
+                        ngram[depth - 1] = trie.words[depth][node];
+                        final double lower = Math.pow(10.0, trie.getLog10Probability(ngram, 1, depth - 1));
+                        trie.logProbs[depth][node] = (float)Math.log10(
+                                Math.max(counts[depth][node] - discount, 0.0) / contextTotal + interpolated * lower);
+                    }
+                } else {
+                    for (int node = from; node < to; node++) {
+                        trie.logProbs[depth][node] = (float)Math.log10(counts[depth][node] / contextTotal);
+                    }
+                }
+            }
+        }
+        final BitSet vocabulary = new BitSet();
+        for (int node = 0; node < vocabularySize; node++) {
+            vocabulary.set(trie.words[1][node]);
+        }
+        final Map<Integer, NgramModel> backoffModels = new HashMap<>();
+        for (int n = 1; n <= maxN; n++) {
+            backoffModels.put(n, BackoffTrieNgramModel.create(trie, n, lexicon, vocabulary));
+        }
+        return backoffModels;
+    }
+
+    /**
+     * Copies the n-grams of every order into a trie, without any probabilities.
+     */
+    private static BackoffTrie createTrie(final Map<Integer, NgramModel> ngramModels, final int maxN,
+                                          final int vocabularySize) {
+        final NgramTable[] tables = new NgramTable[maxN + 1];
+        final int[][] sortedSlots = new int[maxN + 1][];
+        for (int n = 1; n <= maxN; n++) {
+            final NgramModel model = ngramModels.get(n);
+            tables[n] = new NgramTable(n, Math.max(16, model.getTotalUniqueCount()));
+            final Iterator<TokenList> iterator = model.getIterator();
+            while (iterator.hasNext()) {
+                final TokenList tokens = iterator.next();
+                final int count = model.getUnsmoothedTokenFrequency(tokens);
+                if (count > 0) {
+                    tables[n].add(tokens, count);
+                }
+            }
+            sortedSlots[n] = tables[n].sortedSlots();
+        }
+        final int[][] words = new int[maxN + 1][];
+        final int[][] counts = new int[maxN + 1][];
+        final int[][] childStarts = new int[maxN + 1][];
+        childStarts[0] = new int[] {0, sortedSlots[1].length};
+        for (int depth = 1; depth <= maxN; depth++) {
+            final NgramTable table = tables[depth];
+            final int[] slots = sortedSlots[depth];
+            words[depth] = new int[slots.length];
+            counts[depth] = new int[slots.length];
+            for (int node = 0; node < slots.length; node++) {
+                words[depth][node] = table.getId(slots[node], depth - 1);
+                counts[depth][node] = table.counts[slots[node]];
+            }
+            // Both levels are sorted, so the children of every node are the run of the next level that starts with it
+            childStarts[depth] = new int[slots.length + 1];
+            int child = 0;
+            if (depth < maxN) {
+                final NgramTable childTable = tables[depth + 1];
+                final int[] childSlots = sortedSlots[depth + 1];
+                for (int node = 0; node < slots.length; node++) {
+                    childStarts[depth][node] = child;
+                    while (child < childSlots.length && startsWith(childTable, childSlots[child], table, slots[node])) {
+                        child++;
+                    }
+                }
+                if (child != childSlots.length) {
+                    throw new IllegalArgumentException("The " + NgramModel.getNgramName(depth + 1) + " model has " +
+                            "n-grams whose prefixes aren't in the " + NgramModel.getNgramName(depth) + " model");
+                }
+            }
+            childStarts[depth][slots.length] = child;
+        }
+        return new BackoffTrie(maxN, words, counts, childStarts, vocabularySize);
+    }
+
+    /**
+     * Gets the counts that Kneser-Ney smooths: the number of distinct words seen before every n-gram of every order
+     * but the highest, and the raw counts of the highest. An n-gram that was only ever seen at the start of the text
+     * has no words before it, and keeps its raw count.
+     * @return The counts, indexed by depth, then by node.
+     */
+    private static double[][] continuationCounts(final BackoffTrie trie) {
+        final double[][] counts = new double[trie.maxN + 1][];
+        counts[trie.maxN] = rawCounts(trie)[trie.maxN];
+        final int[] ngram = new int[trie.maxN];
+        for (int depth = 1; depth < trie.maxN; depth++) {
+            final double[] levelCounts = new double[trie.size(depth)];
+            // Every (depth + 1)-gram adds one to the count of its suffix
+            for (int node = 0; node < trie.size(depth + 1); node++) {
+                getNgram(trie, depth + 1, node, ngram);
+                final int suffix = trie.findNode(ngram, 1, depth);
+                if (suffix >= 0) {
+                    levelCounts[suffix]++;
+                }
+            }
+            for (int node = 0; node < levelCounts.length; node++) {
+                if (levelCounts[node] == 0) {
+                    levelCounts[node] = trie.counts[depth][node];
+                }
+            }
+            counts[depth] = levelCounts;
+        }
+        return counts;
+    }
+
+    private static double[][] rawCounts(final BackoffTrie trie) {
+        final double[][] counts = new double[trie.maxN + 1][];
+        for (int depth = 1; depth <= trie.maxN; depth++) {
+            counts[depth] = new double[trie.size(depth)];
+            for (int node = 0; node < counts[depth].length; node++) {
+                counts[depth][node] = trie.counts[depth][node];
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * Estimates the absolute discount of an order from the numbers of its n-grams that were counted once and twice.
+     */
+    private static double discount(final double[] counts) {
+        int n1 = 0;
+        int n2 = 0;
+        for (final double count : counts) {
+            if (count == 1) {
+                n1++;
+            } else if (count == 2) {
+                n2++;
+            }
+        }
+        return n1 == 0 ? 0.5 : n1 / (n1 + 2.0 * n2);
+    }
+
+    /**
+     * Gets the words of a node. Nodes are found by walking down from the root in the order of their levels, so this
+     * binary searches each level for the ancestor whose children hold the node.
+     */
+    private static void getNgram(final BackoffTrie trie, final int depth, final int node, final int[] ngram) {
+        int current = node;
+        for (int d = depth; d >= 1; d--) {
+            ngram[d - 1] = trie.words[d][current];
+            if (d > 1) {
+                current = findParent(trie.childStarts[d - 1], current);
+            }
+        }
+    }
+
+    /**
+     * Finds the node whose range of children holds a child.
+     */
+    private static int findParent(final int[] childStarts, final int child) {
+        int left = 0;
+        int right = childStarts.length - 2;
+        while (left < right) {
+            final int mid = (left + right + 1) >>> 1;
+            if (childStarts[mid] <= child) {
+                left = mid;
+            } else {
+                right = mid - 1;
+            }
+        }
+        return left;
+    }
+
+    /**
+     * Returns whether the key in a slot of one table starts with the whole key in a slot of another.
+     */
+    private static boolean startsWith(final NgramTable table, final int slot, final NgramTable prefixTable,
+                                      final int prefixSlot) {
+        for (int i = 0; i < prefixTable.width; i++) {
+            if (table.getId(slot, i) != prefixTable.getId(prefixSlot, i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,300 @@
+package com.cs5740.models;
+
+import com.cs5740.SmoothOptions;
+import com.cs5740.tokenlist.LinkedTokenList;
+import com.cs5740.tokenlist.TokenList;
+
+import java.util.*;
+
+/**
+ * Represents an n-gram model that stores probabilities and back-off weights rather than counts, as in the ARPA
+ * format.
+ * <p>
+ * Every n-gram of every order up to maxN has a log10 probability of its last word given the words before it, and
+ * may have a log10 back-off weight. The probability of an n-gram that isn't stored is found by backing off: it is
+ * the probability of the n-gram without its first word, times the back-off weight of its first n - 1 words.
+ * <p>
+ * The models of every order built together share one set of {@link Levels}. Since there are no counts,
+ * {@link #getProbability(TokenList, SmoothOptions)} ignores its smoothing options, and
+ * {@link #getUnsmoothedTokenFrequency(TokenList)} is always zero.
+ */
+class BackoffNgramModel extends NgramModel implements BackoffModel {
+    final Levels levels;
+    final int n;
+
+    private BackoffNgramModel(final Levels levels, final int n) {
+        this.levels = levels;
+        this.n = n;
+    }
+
+    /**
+     * Gets the conditional probability of the last word of an n-gram given the words before it, backing off to
+     * lower orders if the n-gram isn't stored. Words that aren't in the vocabulary are treated as unknown words.
+     * @param tokens The n-gram.
+     * @param smoothOptions Ignored, since this model holds no counts.
+     * @return A probability value between 0 and 1.
+     */
+    @Override
+    public double getProbability(final TokenList tokens, final SmoothOptions smoothOptions) {
+        return Math.pow(10.0, getLog10Probability(tokens));
+    }
+
+    @Override
+    public void getProbabilities(final int[] tokens, final int from, final int numNgrams,
+                                 final SmoothOptions smoothOptions, final double[] probabilities) {
+        if (numNgrams == 0) {
+            return;
+        }
+        final int[] ids = new int[numNgrams + n - 1];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = toKnownId(tokens[from + i]);
+        }
+        for (int i = 0; i < numNgrams; i++) {
+            probabilities[i] = Math.pow(10.0, levels.getLog10Probability(ids, i, n));
+        }
+    }
+
+    /**
+     * Gets the log10 of {@link #getProbability(TokenList, SmoothOptions)}.
+     * @param tokens The n-gram.
+     * @return A log10 probability, which is negative infinity if the last word can't be found at all.
+     */
+    @Override
+    public double getLog10Probability(final TokenList tokens) {
+        final int[] ids = new int[n];
+        for (int i = 0; i < n; i++) {
+            ids[i] = toKnownId(tokens.get(i));
+        }
+        return levels.getLog10Probability(ids, 0, n);
+    }
+
+    /**
+     * Returns the word whose range of the conditional distribution contains p. The words stored after the context
+     * come first, in order, followed by every other word in the vocabulary, in order. This walks the whole
+     * vocabulary if p doesn't fall among the stored words.
+     */
+    @Override
+    public int getWordId(final TokenList previousTokens, final double p) {
+        if (p < 0.0 || p >= 1.0 || vocabulary.isEmpty()) {
+            return Lexicon.NO_ID;
+        }
+        final int[] ids = new int[n];
+        for (int i = 0; i < n - 1; i++) {
+            ids[i] = toKnownId(previousTokens.get(i));
+        }
+        double remaining = p;
+        int lastWord = Lexicon.NO_ID;
+        final NgramTable table = levels.tables[n];
+        final int[] sortedSlots = levels.sortedSlots[n];
+        final int end = levels.lowerBound(n, ids, n - 1, false);
+        for (int i = levels.lowerBound(n, ids, n - 1, true); i < end; i++) {
+            ids[n - 1] = table.getId(sortedSlots[i], n - 1);
+            remaining -= Math.pow(10.0, levels.getLog10Probability(ids, 0, n));
+            lastWord = ids[n - 1];
+            if (remaining < 0) {
+                return lastWord;
+            }
+        }
+        for (int token = vocabulary.nextSetBit(0); token >= 0; token = vocabulary.nextSetBit(token + 1)) {
+            ids[n - 1] = token;
+            if (table.find(ids, 0) >= 0) {
+                // Already counted above
+                continue;
+            }
+            remaining -= Math.pow(10.0, levels.getLog10Probability(ids, 0, n));
+            lastWord = token;
+            if (remaining < 0) {
+                return lastWord;
+            }
+        }
+        // Rounding can leave a sliver of probability at the end
+        return lastWord;
+    }
+
+    @Override
+    public int getUnsmoothedTokenFrequency(final TokenList tokens) {
+        return 0;
+    }
+
+    @Override
+    public int getN() {
+        return n;
+    }
+
+    @Override
+    public Iterator<TokenList> getIterator() {
+        return new Iterator<TokenList>() {
+            final int[] sortedSlots = levels.sortedSlots[n];
+            int index = 0;
+
+            @Override
+            public boolean hasNext() {
+                return index < sortedSlots.length;
+            }
+
+            @Override
+            public TokenList next() {
+                if (!hasNext()) {
+                    return null;
+                }
+                final int slot = sortedSlots[index++];
+                final TokenList tokenList = new LinkedTokenList();
+                for (int i = 0; i < n; i++) {
+                    tokenList.addLast(levels.tables[n].getId(slot, i));
+                }
+                return tokenList;
+            }
+        };
+    }
+
+    @Override
+    public double getStoredLog10Probability(final TokenList tokens) {
+        final int entry = levels.tables[n].find(tokens);
+        return entry >= 0 ? levels.logProbs[n][levels.tables[n].counts[entry] - 1] : Double.NaN;
+    }
+
+    @Override
+    public double getStoredLog10Backoff(final TokenList tokens) {
+        final int entry = levels.tables[n].find(tokens);
+        return entry >= 0 ? levels.backoffs[n][levels.tables[n].counts[entry] - 1] : 0.0;
+    }
+
+    /**
+     * Turns a word that isn't in the vocabulary into the unknown word token.
+     */
+    private int toKnownId(final int token) {
+        return isInVocabulary(token) ? token : Lexicon.UNKNOWN_ID;
+    }
+
+    /**
+     * The n-grams of every order, along with their log10 probabilities and back-off weights. Each order is a flat
+     * {@link NgramTable} whose counts hold the index of each n-gram's entry, plus one.
+     */
+    static final class Levels {
+        final int maxN;
+        final Lexicon lexicon;
+        // Indexed by order
+        final NgramTable[] tables;
+        // Indexed by order, then by entry
+        final float[][] logProbs;
+        final float[][] backoffs;
+        final int[] sizes;
+        // Indexed by order. Every slot of the order's table, ordered by n-gram.
+        final int[][] sortedSlots;
+
+        /**
+         * Creates empty levels.
+         * @param maxN The highest order.
+         * @param lexicon The lexicon from which the word IDs come.
+         * @param expectedSizes Indexed by order. The number of n-grams expected of each order.
+         */
+        Levels(final int maxN, final Lexicon lexicon, final int[] expectedSizes) {
+            this.maxN = maxN;
+            this.lexicon = lexicon;
+            this.tables = new NgramTable[maxN + 1];
+            this.logProbs = new float[maxN + 1][];
+            this.backoffs = new float[maxN + 1][];
+            this.sizes = new int[maxN + 1];
+            this.sortedSlots = new int[maxN + 1][];
+            for (int order = 1; order <= maxN; order++) {
+                final int expectedSize = Math.max(16, expectedSizes[order]);
+                tables[order] = new NgramTable(order, expectedSize);
+                logProbs[order] = new float[expectedSize];
+                backoffs[order] = new float[expectedSize];
+            }
+        }
+
+        /**
+         * Stores an n-gram, replacing it if it's already stored.
+         * @param order The order of the n-gram.
+         * @param ids An array containing the n-gram.
+         * @param from The index in the array at which the n-gram starts.
+         * @param logProb The log10 probability of the n-gram's last word given the words before it.
+         * @param backoff The log10 back-off weight of the n-gram.
+         */
+        void put(final int order, final int[] ids, final int from, final float logProb, final float backoff) {
+            final NgramTable table = tables[order];
+            int entry;
+            final int slot = table.find(ids, from);
+            if (slot >= 0) {
+                entry = table.counts[slot] - 1;
+            } else {
+                entry = sizes[order]++;
+                table.add(ids, from, entry + 1);
+                if (entry == logProbs[order].length) {
+                    logProbs[order] = Arrays.copyOf(logProbs[order], entry * 2);
+                    backoffs[order] = Arrays.copyOf(backoffs[order], entry * 2);
+                }
+            }
+            logProbs[order][entry] = logProb;
+            backoffs[order][entry] = backoff;
+        }
+
+        /**
+         * Builds a model for every order.
+         * @return A map of n-gram models, keyed by n.
+         */
+        Map<Integer, NgramModel> build() {
+            final BitSet vocabulary = new BitSet();
+            for (int slot = 0; slot < tables[1].capacity(); slot++) {
+                if (tables[1].isOccupied(slot)) {
+                    vocabulary.set(tables[1].getId(slot, 0));
+                }
+            }
+            final Map<Integer, NgramModel> ngramModels = new HashMap<>();
+            for (int order = 1; order <= maxN; order++) {
+                sortedSlots[order] = tables[order].sortedSlots();
+                final BackoffNgramModel model = new BackoffNgramModel(this, order);
+                model.lexicon = lexicon;
+                model.vocabulary = vocabulary;
+                model.totalUniqueCount = sizes[order];
+                model.frequencyCountMap = new HashMap<>();
+                model.frequencyCountMap.put(0, 0);
+                ngramModels.put(order, model);
+            }
+            return ngramModels;
+        }
+
+        /**
+         * Gets the log10 probability of the last word of an n-gram given the words before it, backing off as
+         * needed.
+         */
+        double getLog10Probability(final int[] ids, final int from, final int length) {
+            double backoff = 0.0;
+            for (int order = Math.min(length, maxN); order >= 1; order--) {
+                final int start = from + length - order;
+                final int slot = tables[order].find(ids, start);
+                if (slot >= 0) {
+                    return backoff + logProbs[order][tables[order].counts[slot] - 1];
+                }
+                if (order > 1) {
+                    final int contextSlot = tables[order - 1].find(ids, start);
+                    if (contextSlot >= 0) {
+                        backoff += backoffs[order - 1][tables[order - 1].counts[contextSlot] - 1];
+                    }
+                }
+            }
+            return Double.NEGATIVE_INFINITY;
+        }
+
+        /**
+         * Binary searches the sorted n-grams of an order for the first one that is not less than, or greater than,
+         * a prefix.
+         */
+        int lowerBound(final int order, final int[] prefix, final int length, final boolean inclusive) {
+            final int[] slots = sortedSlots[order];
+            int left = 0;
+            int right = slots.length;
+            while (left < right) {
+                final int mid = (left + right) >>> 1;
+                final int comparison = tables[order].comparePrefix(slots[mid], prefix, length);
+                if (comparison < 0 || (comparison == 0 && !inclusive)) {
+                    left = mid + 1;
+                } else {
+                    right = mid;
+                }
+            }
+            return left;
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package com.cs5740.models;
+
+import java.util.Arrays;
+
+/**
+ * A frozen trie of n-grams of every order, with the log10 probability and back-off weight of every n-gram worked
+ * out in advance, so that finding the probability of any n-gram takes at most one lookup per order and no
+ * arithmetic beyond adding up back-off weights. See {@link BackoffModels}.
+ * <p>
+ * Level d holds every d-gram, sorted, and the continuations of every node are contiguous in the next level, like in
+ * an {@link NgramTrie}. Every node holds its raw count, the log10 probability of its last word given the words before
+ * it, and the log10 back-off weight of the node as a context. An index maps every n-gram shorter than maxN to its
+ * node, so a context is found with a single hash lookup, and a word after it with a binary search among that
+ * context's continuations.
+ * <p>
+ * A query starts with the longest context and works down. If the word follows the context, its stored probability is
+ * the answer; otherwise the context's back-off weight is added and the next shorter context is tried. A context that
+ * was never seen has the trie's weight for unseen contexts, and a word that isn't in the vocabulary at all gets the
+ * probability of the unknown word.
+ */
+final class BackoffTrie {
+    final int maxN;
+    // Indexed by depth, then by node. The element at depth 0 is unused, except in childStarts.
+    final int[][] words;
+    final int[][] counts;
+    final float[][] logProbs;
+    final float[][] backoffs;
+    // Indexed by depth, then by node, with one extra entry at the end of every level. The index in the next level of
+    // the node's first continuation. Depth 0 holds just the root.
+    final int[][] childStarts;
+    // Indexed by depth, from 2 to maxN - 1. Maps every n-gram of that length to its node, plus one. Unigrams are
+    // found through their word IDs instead.
+    final NgramTable[] index;
+    // Indexed by word ID. The node of every word at depth 1, or -1 if the word isn't in the vocabulary.
+    final int[] unigrams;
+    // The log10 probability of a word that isn't in the vocabulary.
+    float unknownLogProb;
+    // The log10 back-off weight of a context that was never seen.
+    float unseenContextLogBackoff;
+
+    /**
+     * Creates a trie from the words, counts and child ranges of every level, and indexes it. The probabilities and
+     * back-off weights start at zero, and must be filled in by the caller.
+     * @param maxN The depth of the trie.
+     * @param words Indexed by depth, then by node. Every level must be sorted by n-gram.
+     * @param counts Indexed by depth, then by node.
+     * @param childStarts Indexed by depth, then by node, with one extra entry at the end of every level.
+     * @param vocabularySize One more than the largest word ID in the trie.
+     */
+    BackoffTrie(final int maxN, final int[][] words, final int[][] counts, final int[][] childStarts,
+                final int vocabularySize) {
+        this.maxN = maxN;
+        this.words = words;
+        this.counts = counts;
+        this.childStarts = childStarts;
+        this.logProbs = new float[maxN + 1][];
+        this.backoffs = new float[maxN + 1][];
+        for (int depth = 1; depth <= maxN; depth++) {
+            logProbs[depth] = new float[words[depth].length];
+            backoffs[depth] = new float[words[depth].length];
+        }
+        this.unigrams = new int[vocabularySize];
+        Arrays.fill(unigrams, -1);
+        for (int node = 0; node < words[1].length; node++) {
+            unigrams[words[1][node]] = node;
+        }
+        this.index = new NgramTable[maxN];
+        final int[] ngram = new int[maxN];
+        for (int depth = 2; depth < maxN; depth++) {
+            index[depth] = new NgramTable(depth, words[depth].length);
+            indexNodes(depth, 1, 0, words[1].length, ngram);
+        }
+    }
+
+    /**
+     * Gets the number of nodes at a depth.
+     * @param depth The depth, from 1 to maxN.
+     * @return The number of n-grams of that length.
+     */
+    int size(final int depth) {
+        return words[depth].length;
+    }
+
+    /**
+     * Returns whether a word is in the vocabulary, which is every word of the unigrams.
+     * @param token The ID of the word.
+     * @return Whether the word is in the vocabulary.
+     */
+    boolean isInVocabulary(final int token) {
+        return token >= 0 && token < unigrams.length && unigrams[token] >= 0;
+    }
+
+    /**
+     * Gets the log10 probability of the last word of an n-gram given the words before it, backing off to shorter
+     * contexts as needed.
+     * @param ids An array holding the n-gram, whose words must all be in the vocabulary or be the unknown word token.
+     * @param from The index in the array at which the n-gram starts.
+     * @param length The length of the n-gram. Only its last maxN words are used.
+     * @return The log10 probability.
+     */
+    double getLog10Probability(final int[] ids, final int from, final int length) {
+        final int word = ids[from + length - 1];
+        double backoff = 0.0;
+        for (int order = Math.min(length, maxN); order >= 2; order--) {
+            final int context = findNode(ids, from + length - order, order - 1);
+            if (context < 0) {
+                backoff += unseenContextLogBackoff;
+                continue;
+            }
+            final int node = find(order, childStarts[order - 1][context], childStarts[order - 1][context + 1], word);
+            if (node >= 0) {
+                return backoff + logProbs[order][node];
+            }
+            backoff += backoffs[order - 1][context];
+        }
+        final int node = isInVocabulary(word) ? unigrams[word] : -1;
+        return backoff + (node >= 0 ? logProbs[1][node] : unknownLogProb);
+    }
+
+    /**
+     * Finds the node of an n-gram.
+     * @param ids An array holding the n-gram.
+     * @param from The index in the array at which the n-gram starts.
+     * @param length The length of the n-gram, from 1 to maxN.
+     * @return The node at depth length, or -1 if the n-gram isn't in the trie.
+     */
+    int findNode(final int[] ids, final int from, final int length) {
+        if (length == 1) {
+            return isInVocabulary(ids[from]) ? unigrams[ids[from]] : -1;
+        }
+        if (length < maxN) {
+            final int slot = index[length].find(ids, from);
+            return slot >= 0 ? index[length].counts[slot] - 1 : -1;
+        }
+        final int context = findNode(ids, from, length - 1);
+        if (context < 0) {
+            return -1;
+        }
+        return find(length, childStarts[length - 1][context], childStarts[length - 1][context + 1],
+                ids[from + length - 1]);
+    }
+
+    /**
+     * Binary searches a range of nodes of a level for a word.
+     * @return The node, or -1 if no node of the range holds the word.
+     */
+    int find(final int depth, final int from, final int to, final int word) {
+        final int[] levelWords = words[depth];
+        int left = from;
+        int right = to - 1;
+        while (left <= right) {
+            final int mid = (left + right) >>> 1;
+            final int midWord = levelWords[mid];
+            if (midWord < word) {
+                left = mid + 1;
+            } else if (midWord > word) {
+                right = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    //==========================================================================
+    // Private helper methods
+    //==========================================================================
+
+    /**
+     * Adds every node of a range, and the nodes under them down to the given depth, to the index of that depth.
+     */
+    private void indexNodes(final int indexDepth, final int depth, final int from, final int to, final int[] ngram) {
+        for (int node = from; node < to; node++) {
+            ngram[depth - 1] = words[depth][node];
+            if (depth == indexDepth) {
+                index[depth].add(ngram, 0, node + 1);
+            } else {
+                indexNodes(indexDepth, depth + 1, childStarts[depth][node], childStarts[depth][node + 1], ngram);
+            }
+        }
+    }
+}
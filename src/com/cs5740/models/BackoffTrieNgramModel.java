@@ -0,0 +1,218 @@
+package com.cs5740.models;
+
+import com.cs5740.SmoothOptions;
+import com.cs5740.tokenlist.LinkedTokenList;
+import com.cs5740.tokenlist.TokenList;
+
+import java.util.*;
+
+/**
+ * Represents the n-grams of one order in a {@link BackoffTrie}, which is shared with the models of every other order.
+ * <p>
+ * The probabilities were smoothed when the trie was built, so {@link #getProbability(TokenList, SmoothOptions)}
+ * ignores its smoothing options, and every query is a few lookups with no arithmetic beyond adding up back-off
+ * weights. Unlike a {@link BackoffNgramModel}, this model still holds the raw counts it was built from, so its
+ * frequencies and statistics are those of the count model of the same order.
+ */
+class BackoffTrieNgramModel extends NgramModel implements BackoffModel {
+    final BackoffTrie trie;
+    final int n;
+
+    private BackoffTrieNgramModel(final BackoffTrie trie, final int n, final Lexicon lexicon) {
+        this.trie = trie;
+        this.n = n;
+        this.lexicon = lexicon;
+    }
+
+    /**
+     * Creates a view of the n-grams of one order in a trie.
+     * @param trie The trie holding the n-grams.
+     * @param n The order of the n-grams.
+     * @param lexicon The lexicon from which the word IDs in the trie come.
+     * @param vocabulary The words of the unigrams, which is shared by the models of every order.
+     * @return A new n-gram model.
+     */
+    static BackoffTrieNgramModel create(final BackoffTrie trie, final int n, final Lexicon lexicon,
+                                        final BitSet vocabulary) {
+        final BackoffTrieNgramModel model = new BackoffTrieNgramModel(trie, n, lexicon);
+        model.vocabulary = vocabulary;
+        model.frequencyCountMap = new HashMap<>();
+        for (int node = 0; node < trie.size(n); node++) {
+            final int count = trie.counts[n][node];
+            model.totalCount += count;
+            model.totalUniqueCount++;
+            model.frequencyCountMap.merge(count, 1, (a, b) -> a + b);
+        }
+        model.frequencyCountMap.put(0, 0);
+        return model;
+    }
+
+    /**
+     * Gets the conditional probability of the last word of an n-gram given the words before it, backing off to
+     * shorter contexts if the n-gram wasn't seen. Words that aren't in the vocabulary are treated as unknown words.
+     * @param tokens The n-gram.
+     * @param smoothOptions Ignored, since the probabilities were smoothed when the model was built.
+     * @return A probability value between 0 and 1.
+     */
+    @Override
+    public double getProbability(final TokenList tokens, final SmoothOptions smoothOptions) {
+        return Math.pow(10.0, getLog10Probability(tokens));
+    }
+
+    @Override
+    public void getProbabilities(final int[] tokens, final int from, final int numNgrams,
+                                 final SmoothOptions smoothOptions, final double[] probabilities) {
+        final int[] ids = toKnownIds(tokens, from, numNgrams);
+        for (int i = 0; i < numNgrams; i++) {
+            probabilities[i] = Math.pow(10.0, trie.getLog10Probability(ids, i, n));
+        }
+    }
+
+    @Override
+    public void getLogProbabilities(final int[] tokens, final int from, final int numNgrams,
+                                    final SmoothOptions smoothOptions, final double[] logProbabilities) {
+        // The probabilities are stored as logs, so there's no need to raise them and take their logs again
+        final int[] ids = toKnownIds(tokens, from, numNgrams);
+        final double ln10 = Math.log(10.0);
+        for (int i = 0; i < numNgrams; i++) {
+            logProbabilities[i] = trie.getLog10Probability(ids, i, n) * ln10;
+        }
+    }
+
+    /**
+     * Gets the log10 of {@link #getProbability(TokenList, SmoothOptions)}.
+     * @param tokens The n-gram.
+     * @return A log10 probability.
+     */
+    @Override
+    public double getLog10Probability(final TokenList tokens) {
+        final int[] ids = new int[n];
+        for (int i = 0; i < n; i++) {
+            ids[i] = toKnownId(tokens.get(i));
+        }
+        return trie.getLog10Probability(ids, 0, n);
+    }
+
+    /**
+     * Returns the word whose range of the conditional distribution contains p, with every word in the vocabulary in
+     * order. This walks the vocabulary up to the word it returns.
+     */
+    @Override
+    public int getWordId(final TokenList previousTokens, final double p) {
+        if (p < 0.0 || p >= 1.0 || vocabulary.isEmpty()) {
+            return Lexicon.NO_ID;
+        }
+        final int[] ids = new int[n];
+        for (int i = 0; i < n - 1; i++) {
+            ids[i] = toKnownId(previousTokens.get(i));
+        }
+        double remaining = p;
+        int lastWord = Lexicon.NO_ID;
+        for (int token = vocabulary.nextSetBit(0); token >= 0; token = vocabulary.nextSetBit(token + 1)) {
+            ids[n - 1] = token;
+            remaining -= Math.pow(10.0, trie.getLog10Probability(ids, 0, n));
+            lastWord = token;
+            if (remaining < 0) {
+                return lastWord;
+            }
+        }
+        // Rounding, or the probability held back for words outside the vocabulary, can leave a sliver at the end
+        return lastWord;
+    }
+
+    @Override
+    int getCount(final int[] ngram) {
+        final int node = trie.findNode(ngram, 0, n);
+        return node >= 0 ? trie.counts[n][node] : 0;
+    }
+
+    @Override
+    public int getUnsmoothedTokenFrequency(final TokenList tokens) {
+        final int[] ids = new int[n];
+        for (int i = 0; i < n; i++) {
+            ids[i] = toKnownId(tokens.get(i));
+        }
+        return getCount(ids);
+    }
+
+    @Override
+    public int getN() {
+        return n;
+    }
+
+    @Override
+    public Iterator<TokenList> getIterator() {
+        return new Iterator<TokenList>() {
+            // Indexed by depth. The nodes on the path to the next n-gram.
+            final int[] path = new int[n + 1];
+            int index = 0;
+
+            @Override
+            public boolean hasNext() {
+                return index < trie.size(n);
+            }
+
+            @Override
+            public TokenList next() {
+                if (!hasNext()) {
+                    return null;
+                }
+                // The n-grams are in order, so each ancestor only ever moves forward
+                path[n] = index++;
+                for (int depth = n - 1; depth >= 1; depth--) {
+                    while (trie.childStarts[depth][path[depth] + 1] <= path[depth + 1]) {
+                        path[depth]++;
+                    }
+                }
+                final TokenList tokenList = new LinkedTokenList();
+                for (int depth = 1; depth <= n; depth++) {
+                    tokenList.addLast(trie.words[depth][path[depth]]);
+                }
+                return tokenList;
+            }
+        };
+    }
+
+    @Override
+    public double getStoredLog10Probability(final TokenList tokens) {
+        final int node = findNode(tokens);
+        return node >= 0 ? trie.logProbs[n][node] : Double.NaN;
+    }
+
+    @Override
+    public double getStoredLog10Backoff(final TokenList tokens) {
+        final int node = findNode(tokens);
+        return node >= 0 ? trie.backoffs[n][node] : 0.0;
+    }
+
+    //==========================================================================
+    // Private helper methods
+    //==========================================================================
+
+    private int findNode(final TokenList tokens) {
+        final int[] ids = new int[n];
+        for (int i = 0; i < n; i++) {
+            ids[i] = tokens.get(i);
+        }
+        return trie.findNode(ids, 0, n);
+    }
+
+    /**
+     * Turns a word that isn't in the vocabulary into the unknown word token.
+     */
+    private int toKnownId(final int token) {
+        return trie.isInVocabulary(token) ? token : Lexicon.UNKNOWN_ID;
+    }
+
+    /**
+     * Copies the tokens of a run of overlapping n-grams, turning words that aren't in the vocabulary into the unknown
+     * word token.
+     */
+    private int[] toKnownIds(final int[] tokens, final int from, final int numNgrams) {
+        final int[] ids = new int[numNgrams == 0 ? 0 : numNgrams + n - 1];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = toKnownId(tokens[from + i]);
+        }
+        return ids;
+    }
+}
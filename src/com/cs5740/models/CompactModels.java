@@ -0,0 +1,51 @@
+package com.cs5740.models;
+
+import java.util.*;
+
+/**
+ * Turns built n-gram models into compact, read-only ones.
+ * <p>
+ * The compact models of every order share one {@link NgramTrie}: per-order sorted arrays of word IDs and counts, with
+ * each node's children in a contiguous range of the next order. Compared to the nested hash maps of a
+ * {@link MultigramModel}, this takes a fraction of the heap and keeps each lookup within a few cache lines. The arrays
+ * can also be bit-packed, which shrinks them further at a small cost per lookup.
+ * <p>
+ * Compact models give exactly the same frequencies, probabilities, iteration order and sampled words as the models
+ * they are made from.
+ */
+public final class CompactModels {
+    private CompactModels() {}
+
+    /**
+     * Copies n-gram models into a shared trie. Models that already share a trie keep it, unless it is to be packed.
+     * @param ngramModels The models to copy, keyed by n. They must share a lexicon.
+     * @param packed Whether to bit-pack the trie. See {@link NgramTrie#pack()}.
+     * @return A map of compact n-gram models, keyed by n.
+     */
+    public static Map<Integer, NgramModel> compact(final Map<Integer, NgramModel> ngramModels, final boolean packed) {
+        for (final NgramModel model : ngramModels.values()) {
+            if (model instanceof BackoffNgramModel) {
+                throw new IllegalArgumentException("Back-off models hold no counts, and can't be compacted");
+            } else if (model instanceof BackoffTrieNgramModel) {
+                throw new IllegalArgumentException("Smoothed back-off models are already compact");
+            } else if (model instanceof CountMinNgramModel) {
+                throw new IllegalArgumentException("Count-Min models don't hold their n-grams, and can't be compacted");
+            }
+        }
+        NgramTrie trie = NgramTrie.fromModels(ngramModels);
+        if (packed) {
+            trie = trie.pack();
+        }
+        final Map<Integer, NgramModel> compactModels = new HashMap<>();
+        for (final NgramModel model : ngramModels.values()) {
+            final TrieNgramModel compactModel = new TrieNgramModel(trie, model.getN(), model.lexicon);
+            // The statistics are copied rather than recomputed, so that they match exactly
+            compactModel.totalCount = model.totalCount;
+            compactModel.totalUniqueCount = model.totalUniqueCount;
+            compactModel.frequencyCountMap = new HashMap<>(model.frequencyCountMap);
+            compactModel.vocabulary = (BitSet)model.vocabulary.clone();
+            compactModels.put(model.getN(), compactModel);
+        }
+        return compactModels;
+    }
+}
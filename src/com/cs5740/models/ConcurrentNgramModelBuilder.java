@@ -0,0 +1,218 @@
+package com.cs5740.models;
+
+import com.cs5740.tokenlist.TokenList;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+import static com.cs5740.models.NgramModel.NgramModelBuilder;
+
+/**
+ * A builder that many threads can add n-grams to at the same time, so that they can share a single table instead of
+ * each counting into their own and merging them afterwards.
+ * <p>
+ * The counts are split into stripes by a hash of the n-gram, each guarded by its own lock, so threads only wait on
+ * each other when they add n-grams that fall into the same stripe. An n-gram stripe is an ordinary
+ * {@link HashedNgramModel.HashedNgramModelBuilder}. A unigram stripe is a dense array of the counts of every word
+ * whose ID falls into it, so all the stripes together take about as much memory as a single
+ * {@link UnigramModel.UnigramModelBuilder}. The stripes are merged when the model is built, which gives the same
+ * model as {@link NgramModel#getNgramModelBuilder(int, Lexicon)} would have given for the same n-grams.
+ * <p>
+ * Only {@link #addTokens(TokenList)} and {@link #addTokensNumTimes(TokenList, int)} may be called concurrently. The
+ * other methods must be called once every thread is done adding. The lexicon is not thread-safe, so word IDs should
+ * be interned before they are added, which is what the vocabulary pre-pass does for
+ * {@link com.cs5740.IngestOptions#withSharedBuilders(boolean)}.
+ */
+public class ConcurrentNgramModelBuilder implements NgramModelBuilder {
+    final int n;
+    final Lexicon lexicon;
+    // The number of stripes is 1 << stripeBits.
+    private final int stripeBits;
+    private final Object[] locks;
+    // Indexed by stripe. The counts of n-grams, when n > 1.
+    private final NgramModelBuilder[] stripes;
+    // Indexed by stripe, then by word ID >>> stripeBits. The counts of the words whose IDs end in the stripe's bits,
+    // when n = 1.
+    private final int[][] unigramStripes;
+
+    /**
+     * Creates an empty builder.
+     * @param n The parameter for the n-gram model.
+     * @param lexicon The lexicon from which the word IDs given to the builder come.
+     * @param concurrency The number of threads expected to add n-grams at the same time. This must be positive.
+     */
+    public ConcurrentNgramModelBuilder(final int n, final Lexicon lexicon, final int concurrency) {
+        if (concurrency <= 0) {
+            throw new IllegalArgumentException("concurrency must be positive");
+        }
+        this.n = n;
+        this.lexicon = lexicon;
+        // Four stripes per thread keeps the chance of two threads wanting the same stripe low
+        int bits = 0;
+        while ((1 << bits) < concurrency * 4 && bits < 16) {
+            bits++;
+        }
+        this.stripeBits = bits;
+        final int numStripes = 1 << bits;
+        this.locks = new Object[numStripes];
+        for (int i = 0; i < numStripes; i++) {
+            locks[i] = new Object();
+        }
+        if (n == 1) {
+            this.stripes = null;
+            this.unigramStripes = new int[numStripes][16];
+        } else {
+            this.stripes = new NgramModelBuilder[numStripes];
+            for (int i = 0; i < numStripes; i++) {
+                stripes[i] = new HashedNgramModel.HashedNgramModelBuilder(n, lexicon);
+            }
+            this.unigramStripes = null;
+        }
+    }
+
+    @Override
+    public NgramModelBuilder collapseRareWords(final BitSet rareWords) {
+        if (rareWords.isEmpty()) {
+            return this;
+        }
+        if (n > 1) {
+            // An n-gram may now belong to another stripe, but that only matters to build(), which merges every
+            // stripe anyway
+            for (int i = 0; i < stripes.length; i++) {
+                stripes[i] = stripes[i].collapseRareWords(rareWords);
+            }
+            return this;
+        }
+        for (int token = rareWords.nextSetBit(0); token >= 0; token = rareWords.nextSetBit(token + 1)) {
+            if (token == Lexicon.UNKNOWN_ID) {
+                continue;
+            }
+            final int[] counts = unigramStripes[stripeOf(token)];
+            final int index = token >>> stripeBits;
+            if (index < counts.length && counts[index] != 0) {
+                addUnigram(Lexicon.UNKNOWN_ID, counts[index]);
+                counts[index] = 0;
+            }
+        }
+        return this;
+    }
+
+    @Override
+    public NgramModelBuilder addTokens(final TokenList tokens) {
+        return addTokensNumTimes(tokens, 1);
+    }
+
+    @Override
+    public NgramModelBuilder addTokensNumTimes(final TokenList tokens, final int num) {
+        if (num == 0) {
+            return this;
+        }
+        if (n == 1) {
+            // Assume just one token
+            addUnigram(tokens.head(), num);
+            return this;
+        }
+        int hash = 0;
+        for (int i = 0; i < n; i++) {
+            hash = 31 * hash + tokens.get(i);
+        }
+        // The stripe comes from the high bits of the hash, since the stripe's own table uses the low bits
+        final int stripe = (hash * 0x9e3779b9) >>> (32 - stripeBits);
+        synchronized (locks[stripe]) {
+            stripes[stripe].addTokensNumTimes(tokens, num);
+        }
+        return this;
+    }
+
+    @Override
+    public NgramModelBuilder absorb(final NgramModelBuilder other) {
+        final NgramModelBuilder otherBuilder = other instanceof ConcurrentNgramModelBuilder ?
+                ((ConcurrentNgramModelBuilder)other).merge() : other;
+        if (n == 1) {
+            final int[] frequencyMap = ((UnigramModel.UnigramModelBuilder)otherBuilder).frequencyMap;
+            for (int token = 0; token < frequencyMap.length; token++) {
+                if (frequencyMap[token] != 0) {
+                    addUnigram(token, frequencyMap[token]);
+                }
+            }
+            return this;
+        }
+        // The other builder's n-grams don't need to be spread over the stripes, since build() merges every stripe
+        synchronized (locks[0]) {
+            stripes[0].absorb(otherBuilder);
+        }
+        return this;
+    }
+
+    /**
+     * Creates a single-threaded builder holding the same n-grams as this one, with every word ID translated into
+     * another lexicon. This builder should not be used afterwards, since the new builder may share its data.
+     * @param mapping The new ID of every word, indexed by its old ID.
+     * @param lexicon The lexicon from which the new IDs come.
+     * @return A new builder.
+     */
+    @Override
+    public NgramModelBuilder translate(final int[] mapping, final Lexicon lexicon) {
+        return merge().translate(mapping, lexicon);
+    }
+
+    /**
+     * Builds a new n-gram model from this object. This builder should not be used afterwards, since the model may
+     * share its data.
+     * @return A new n-gram model object.
+     */
+    @Override
+    public NgramModel build() {
+        return merge().build();
+    }
+
+    //==========================================================================
+    // Private helper methods
+    //==========================================================================
+
+    /**
+     * Merges every stripe into a single-threaded builder, which may share the stripes' data.
+     */
+    private NgramModelBuilder merge() {
+        if (n > 1) {
+            for (int i = 1; i < stripes.length; i++) {
+                stripes[0].absorb(stripes[i]);
+                // Let the stripe's table be collected as soon as it has been merged
+                stripes[i] = new HashedNgramModel.HashedNgramModelBuilder(n, lexicon);
+            }
+            final NgramModelBuilder merged = stripes[0];
+            stripes[0] = new HashedNgramModel.HashedNgramModelBuilder(n, lexicon);
+            return merged;
+        }
+        int maxLength = 0;
+        for (final int[] counts : unigramStripes) {
+            maxLength = Math.max(maxLength, counts.length);
+        }
+        final UnigramModel.UnigramModelBuilder merged = new UnigramModel.UnigramModelBuilder(lexicon);
+        merged.frequencyMap = new int[maxLength << stripeBits];
+        for (int stripe = 0; stripe < unigramStripes.length; stripe++) {
+            final int[] counts = unigramStripes[stripe];
+            for (int index = 0; index < counts.length; index++) {
+                merged.frequencyMap[(index << stripeBits) | stripe] = counts[index];
+            }
+        }
+        return merged;
+    }
+
+    private int stripeOf(final int token) {
+        return token & (locks.length - 1);
+    }
+
+    private void addUnigram(final int token, final int num) {
+        final int stripe = stripeOf(token);
+        final int index = token >>> stripeBits;
+        synchronized (locks[stripe]) {
+            int[] counts = unigramStripes[stripe];
+            if (index >= counts.length) {
+                counts = Arrays.copyOf(counts, Math.max(index + 1, counts.length * 2));
+                unigramStripes[stripe] = counts;
+            }
+            counts[index] += num;
+        }
+    }
+}
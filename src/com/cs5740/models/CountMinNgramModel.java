@@ -0,0 +1,245 @@
+package com.cs5740.models;
+
+import com.cs5740.Utils;
+import com.cs5740.tokenlist.TokenList;
+
+import java.util.*;
+
+/**
+ * Represents an n-gram model whose counts are approximated by a {@link CountMinSketch}, so that it takes the same
+ * memory however large the corpus is.
+ * <p>
+ * Every count is an estimate that is never below the true count, and that is above it by more than e * N / width,
+ * where N is the total count of the model, with a probability of at most e^-depth. The frequent n-grams, which
+ * carry most of the probability mass, are counted exactly once they enter the sketch's table of heavy hitters. The
+ * statistics that smoothing uses, the number of n-grams seen once, twice and so on, are tracked from the estimates
+ * as each n-gram is added, so they are estimates too: an n-gram that collides with others when it is first added
+ * looks as if it had been seen before. Probabilities and perplexities built on these are approximations of the exact
+ * model's, which are mostly off for n-grams that appear only a few times.
+ * <p>
+ * A sketch doesn't hold the n-grams themselves, so the model can't list them. It does record the prefixes of its
+ * n-grams in a filter beside the sketch, so unknown words are resolved one word at a time as in the exact models,
+ * except that a prefix whose bits in the filter were all set by others, like an n-gram whose estimate comes only
+ * from collisions, looks as if it had been seen. Generating a word asks for the estimate of the context followed by
+ * every word in the vocabulary, which is slow. The model can't be iterated, compacted or updated.
+ */
+class CountMinNgramModel extends NgramModel {
+    CountMinSketch sketch;
+    int n;
+
+    private CountMinNgramModel() {}
+
+    @Override
+    public int getWordId(final TokenList previousTokens, final double p) {
+        if (totalCount == 0 || p < 0.0 || p >= 1.0) {
+            return Lexicon.NO_ID;
+        }
+        final Continuations continuations = getContinuations(previousTokens);
+        long total = 0;
+        for (final int count : continuations.counts) {
+            total += count;
+        }
+        final double prob = p * total;
+        long cumulativeCount = 0;
+        for (int i = 0; i < continuations.words.length; i++) {
+            cumulativeCount += continuations.counts[i];
+            if (prob < cumulativeCount) {
+                return continuations.words[i];
+            }
+        }
+        return Lexicon.NO_ID;
+    }
+
+    @Override
+    Continuations getContinuations(final TokenList previousTokens) {
+        // Every word in the vocabulary with a nonzero estimate after the context, which includes words that only
+        // collide with the n-grams that do follow it
+        final int[] ngram = new int[n];
+        for (int i = 0; i < n - 1; i++) {
+            ngram[i] = previousTokens.get(i);
+        }
+        final int[] words = new int[vocabulary.cardinality()];
+        final int[] counts = new int[words.length];
+        int size = 0;
+        for (int word = vocabulary.nextSetBit(0); word >= 0; word = vocabulary.nextSetBit(word + 1)) {
+            ngram[n - 1] = word;
+            final int count = sketch.estimate(ngram);
+            if (count > 0) {
+                words[size] = word;
+                counts[size] = count;
+                size++;
+            }
+        }
+        return new Continuations(Arrays.copyOf(words, size), Arrays.copyOf(counts, size));
+    }
+
+    @Override
+    int getCount(final int[] ngram) {
+        return sketch.estimate(ngram);
+    }
+
+    @Override
+    boolean containsPrefix(final int[] prefix, final int length) {
+        return sketch.containsPrefix(prefix, length);
+    }
+
+    @Override
+    boolean containsLastWord(final int[] prefix, final int length, final int word) {
+        return sketch.containsLastWord(prefix, length, word);
+    }
+
+    @Override
+    public int getUnsmoothedTokenFrequency(final TokenList tokens) {
+        return getResolvedTokenFrequency(tokens);
+    }
+
+    @Override
+    public int getN() {
+        return n;
+    }
+
+    @Override
+    public Iterator<TokenList> getIterator() {
+        throw new UnsupportedOperationException("A Count-Min sketch can't list its n-grams");
+    }
+
+    public static class CountMinNgramModelBuilder implements NgramModelBuilder {
+        // Estimates below this are tallied in an array, and the rest in a map.
+        private static final int SMALL_COUNT_LIMIT = 1024;
+
+        CountMinSketch sketch;
+        final int n;
+        final Lexicon lexicon;
+        int totalCount = 0;
+        final BitSet vocabulary = new BitSet();
+        // Indexed by estimate. The number of n-grams added so far whose estimate was that when they were last added.
+        final int[] smallFrequencyCounts = new int[SMALL_COUNT_LIMIT];
+        final Map<Integer, Integer> largeFrequencyCounts = new HashMap<>();
+
+        /**
+         * Creates an empty builder.
+         * @param n The parameter for the n-gram model.
+         * @param lexicon The lexicon from which the word IDs given to the builder come.
+         * @param width The number of cells in every row of the sketch.
+         * @param depth The number of rows in the sketch, from 1 to 32.
+         * @param heavyHitters The number of frequent n-grams to count exactly.
+         */
+        public CountMinNgramModelBuilder(final int n, final Lexicon lexicon, final int width, final int depth,
+                                         final int heavyHitters) {
+            this.n = n;
+            this.lexicon = lexicon;
+            this.sketch = new CountMinSketch(n, width, depth, heavyHitters);
+        }
+
+        /**
+         * Rare words can't be collapsed once they're in a sketch, so they must be replaced before they're added. See
+         * {@link com.cs5740.IngestOptions#withVocabularyPrepass(boolean)}.
+         * @param rareWords The IDs of the words to turn into unknown words. This must be empty.
+         * @return A reference to this object.
+         */
+        @Override
+        public NgramModelBuilder collapseRareWords(final BitSet rareWords) {
+            if (!rareWords.isEmpty()) {
+                throw new UnsupportedOperationException("A Count-Min sketch can't collapse rare words");
+            }
+            return this;
+        }
+
+        @Override
+        public NgramModelBuilder addTokens(final TokenList tokens) {
+            return addTokensNumTimes(tokens, 1);
+        }
+
+        @Override
+        public NgramModelBuilder addTokensNumTimes(final TokenList tokens, final int num) {
+            if (num == 0) {
+                return this;
+            }
+            // The n-gram moves up from its old estimate. If no n-gram was tallied there, its estimate came only from
+            // collisions, and it is new.
+            final int estimate = sketch.add(tokens, num);
+            sketch.addPrefixes(tokens);
+            if (estimate > 0) {
+                removeFrequencyCount(estimate);
+            }
+            addFrequencyCount(estimate + num);
+            totalCount += num;
+            vocabulary.set(tokens.get(n - 1));
+            return this;
+        }
+
+        /**
+         * Merges another builder into this one. Its sketch must be the same size. The n-grams of the two builders
+         * can't be told apart, so their statistics are added as if no n-gram were in both, which overestimates the
+         * number of unique n-grams.
+         * @param other The n-gram model builder to merge into this one.
+         * @return A reference to this object.
+         */
+        @Override
+        public NgramModelBuilder absorb(final NgramModelBuilder other) {
+            final CountMinNgramModelBuilder otherBuilder = (CountMinNgramModelBuilder)other;
+            sketch.absorb(otherBuilder.sketch);
+            totalCount += otherBuilder.totalCount;
+            vocabulary.or(otherBuilder.vocabulary);
+            for (int count = 1; count < SMALL_COUNT_LIMIT; count++) {
+                smallFrequencyCounts[count] += otherBuilder.smallFrequencyCounts[count];
+            }
+            for (final Map.Entry<Integer, Integer> entry : otherBuilder.largeFrequencyCounts.entrySet()) {
+                largeFrequencyCounts.merge(entry.getKey(), entry.getValue(), (a, b) -> a + b);
+            }
+            return this;
+        }
+
+        @Override
+        public NgramModelBuilder translate(final int[] mapping, final Lexicon lexicon) {
+            throw new UnsupportedOperationException("A Count-Min sketch can't translate its n-grams");
+        }
+
+        @Override
+        public NgramModel build() {
+            final CountMinNgramModel model = new CountMinNgramModel();
+            model.n = n;
+            model.lexicon = lexicon;
+            model.sketch = sketch;
+            model.totalCount = totalCount;
+            model.vocabulary = vocabulary;
+            model.frequencyCountMap = new HashMap<>(largeFrequencyCounts);
+            for (int count = 1; count < SMALL_COUNT_LIMIT; count++) {
+                if (smallFrequencyCounts[count] != 0) {
+                    model.frequencyCountMap.put(count, smallFrequencyCounts[count]);
+                }
+            }
+            for (final int uniqueCount : model.frequencyCountMap.values()) {
+                model.totalUniqueCount += uniqueCount;
+            }
+            int unseen = Utils.pow(model.getVocabularySize(), n);
+            if (unseen < Integer.MAX_VALUE) {
+                unseen -= model.getTotalUniqueCount();
+            }
+            model.frequencyCountMap.put(0, unseen);
+            return model;
+        }
+
+        //==========================================================================
+        // Private helper methods
+        //==========================================================================
+
+        private void addFrequencyCount(final int count) {
+            if (count < SMALL_COUNT_LIMIT) {
+                smallFrequencyCounts[count]++;
+            } else {
+                largeFrequencyCounts.merge(count, 1, (a, b) -> a + b);
+            }
+        }
+
+        private void removeFrequencyCount(final int count) {
+            if (count < SMALL_COUNT_LIMIT) {
+                if (smallFrequencyCounts[count] > 0) {
+                    smallFrequencyCounts[count]--;
+                }
+            } else if (largeFrequencyCounts.containsKey(count)) {
+                largeFrequencyCounts.merge(count, -1, (a, b) -> a + b == 0 ? null : a + b);
+            }
+        }
+    }
+}
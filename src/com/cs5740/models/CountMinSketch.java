@@ -0,0 +1,417 @@
+package com.cs5740.models;
+
+import com.cs5740.tokenlist.TokenList;
+
+/**
+ * Approximate counts of n-grams in a fixed amount of memory, however many distinct n-grams are added.
+ * <p>
+ * The counts live in a Count-Min sketch: depth rows of width int cells, where every n-gram is hashed to one cell per
+ * row. Adding an n-gram only raises the cells that hold its smallest count, and only as far as its new count
+ * (conservative update), and its count is estimated as the smallest of its cells. An estimate is never below the true
+ * count. With N the total count of every n-gram added, an estimate is above the true count by more than e * N / width
+ * with a probability of at most e^-depth, and is usually far closer than that.
+ * <p>
+ * The most frequent n-grams are also kept in a small exact table beside the sketch, which is where most of the
+ * probability mass of a corpus lies. An n-gram enters the table once its estimate passes the smallest count in a
+ * full table, which sends the n-gram it replaces back to the sketch. From then on its count is exact, apart from
+ * whatever error its estimate had when it entered.
+ * <p>
+ * The sketch also records which prefixes its n-grams start with, and which words end the n-grams of each prefix,
+ * which is what resolving unknown words one word at a time needs. These only need to be found, not counted, so they
+ * go in a Bloom filter beside the cells, with one bit for every 8 bits of cells, which leaves the counts alone. Each
+ * is a key of its own, padded out to n IDs with markers that no word ID equals. A prefix that was recorded is always
+ * found, and one that wasn't may be found too if all of its bits were set by other keys.
+ */
+final class CountMinSketch {
+    // The largest number of rows, since the row hashes come from one 64-bit hash.
+    private static final int MAX_DEPTH = 32;
+    // Fill out the keys of recorded prefixes, and of prefixes with the words that end their n-grams.
+    private static final int PREFIX_MARKER = -2;
+    private static final int LAST_WORD_MARKER = -3;
+    // The largest number of bits in the filter of prefixes, so that every row hash can be mapped onto it.
+    private static final long MAX_PREFIX_BITS = 1L << 31;
+
+    final int n;
+    final int width;
+    final int depth;
+    // The cells of every row, back to back. Row i starts at cells[i * width].
+    private final int[] cells;
+    // The Bloom filter of prefixes, which sets depth bits for every key, one from each row hash.
+    private final long[] prefixBits;
+    private final long numPrefixBits;
+    // The exact table of frequent n-grams. Entry e holds the key starting at keys[e * n].
+    private final int capacity;
+    private final int[] keys;
+    // Indexed by entry. The count of the n-gram.
+    private final int[] counts;
+    // Indexed by entry. The part of the count that is also in the sketch, which is its estimate when it entered.
+    private final int[] sketchedCounts;
+    // Open-addressing index from n-gram hashes to entry + 1, or 0 for an empty slot.
+    private final int[] index;
+    // A min-heap of entries by count, and the position of every entry in it.
+    private final int[] heap;
+    private final int[] heapPositions;
+    private int size = 0;
+
+    /**
+     * Creates an empty sketch.
+     * @param n The number of word IDs in every n-gram.
+     * @param width The number of cells in every row. This must be positive.
+     * @param depth The number of rows, from 1 to 32.
+     * @param heavyHitters The number of n-grams to count exactly. This may be 0.
+     */
+    CountMinSketch(final int n, final int width, final int depth, final int heavyHitters) {
+        if (width <= 0 || depth <= 0 || depth > MAX_DEPTH || heavyHitters < 0) {
+            throw new IllegalArgumentException("width must be positive, depth from 1 to " + MAX_DEPTH +
+                    " and heavyHitters not negative");
+        }
+        this.n = n;
+        this.width = width;
+        this.depth = depth;
+        this.cells = new int[width * depth];
+        this.numPrefixBits = Math.min((4L * cells.length + 63) & ~63L, MAX_PREFIX_BITS);
+        this.prefixBits = new long[(int)(numPrefixBits >>> 6)];
+        this.capacity = heavyHitters;
+        this.keys = new int[heavyHitters * n];
+        this.counts = new int[heavyHitters];
+        this.sketchedCounts = new int[heavyHitters];
+        int indexSize = 2;
+        while (indexSize < heavyHitters * 2) {
+            indexSize <<= 1;
+        }
+        this.index = new int[indexSize];
+        this.heap = new int[heavyHitters];
+        this.heapPositions = new int[heavyHitters];
+    }
+
+    /**
+     * Adds an n-gram a number of times.
+     * @param tokens A list starting with the n-gram.
+     * @param num The number of times to add it. This must be positive.
+     * @return The estimate of the n-gram's count before it was added. Its estimate afterwards is this plus num.
+     */
+    int add(final TokenList tokens, final int num) {
+        final int[] ids = new int[n];
+        for (int i = 0; i < n; i++) {
+            ids[i] = tokens.get(i);
+        }
+        return add(ids, num);
+    }
+
+    /**
+     * Records the prefixes of an n-gram, and the last word of the n-gram as a word that ends an n-gram of each prefix
+     * of up to n - 2 words. See {@link #containsPrefix(int[], int)} and {@link #containsLastWord(int[], int, int)}.
+     * @param tokens A list starting with the n-gram.
+     */
+    void addPrefixes(final TokenList tokens) {
+        final int[] key = new int[n];
+        for (int i = 0; i < n - 1; i++) {
+            key[i] = tokens.get(i);
+        }
+        final int word = tokens.get(n - 1);
+        for (int length = n - 1; length >= 1; length--) {
+            // Only the IDs from length on are overwritten, so the key still starts with the prefix
+            fillKey(key, length, PREFIX_MARKER, PREFIX_MARKER);
+            setPrefixBits(hash(key, 0));
+            if (length <= n - 2) {
+                fillKey(key, length, LAST_WORD_MARKER, word);
+                setPrefixBits(hash(key, 0));
+            }
+        }
+    }
+
+    /**
+     * Returns whether an n-gram or recorded prefix starts with the given word IDs. Like an estimate, this is never
+     * wrong for a prefix that was recorded, but may be for one that wasn't.
+     * @param prefix An array starting with the word IDs to find.
+     * @param length The number of word IDs in the prefix, from 1 to n.
+     * @return Whether the prefix was probably recorded.
+     */
+    boolean containsPrefix(final int[] prefix, final int length) {
+        if (length == n) {
+            return estimate(prefix) > 0;
+        }
+        final int[] key = new int[n];
+        System.arraycopy(prefix, 0, key, 0, length);
+        fillKey(key, length, PREFIX_MARKER, PREFIX_MARKER);
+        return hasPrefixBits(hash(key, 0));
+    }
+
+    /**
+     * Returns whether a word was recorded as ending an n-gram that starts with the given word IDs. Like an estimate,
+     * this is never wrong for a word that was recorded, but may be for one that wasn't.
+     * @param prefix An array starting with the word IDs to find.
+     * @param length The number of word IDs in the prefix, from 1 to n - 2.
+     * @param word The last word of the n-gram.
+     * @return Whether the word was probably recorded.
+     */
+    boolean containsLastWord(final int[] prefix, final int length, final int word) {
+        final int[] key = new int[n];
+        System.arraycopy(prefix, 0, key, 0, length);
+        fillKey(key, length, LAST_WORD_MARKER, word);
+        return hasPrefixBits(hash(key, 0));
+    }
+
+    /**
+     * Estimates the count of an n-gram.
+     * @param ids An array starting with the n-gram.
+     * @return The estimate, which is never below the true count.
+     */
+    int estimate(final int[] ids) {
+        final long hash = hash(ids, 0);
+        final int entry = findEntry(ids, hash);
+        return entry >= 0 ? counts[entry] : estimate(hash);
+    }
+
+    /**
+     * Adds every count of another sketch to this one. An estimate of the sum is still never below the true count,
+     * and the error bound is that of a single sketch of every n-gram added to either.
+     * @param other A sketch of the same order and size, which should not be used afterwards.
+     */
+    void absorb(final CountMinSketch other) {
+        if (other.n != n || other.width != width || other.depth != depth) {
+            throw new IllegalArgumentException("Only sketches of the same order and size can be merged");
+        }
+        for (int i = 0; i < cells.length; i++) {
+            cells[i] += other.cells[i];
+        }
+        for (int i = 0; i < prefixBits.length; i++) {
+            prefixBits[i] |= other.prefixBits[i];
+        }
+        // The other table's counts beyond what its sketch holds were never added to a sketch
+        final int[] ids = new int[n];
+        for (int entry = 0; entry < other.size; entry++) {
+            final int unsketched = other.counts[entry] - other.sketchedCounts[entry];
+            if (unsketched > 0) {
+                System.arraycopy(other.keys, entry * n, ids, 0, n);
+                add(ids, unsketched);
+            }
+        }
+    }
+
+    /**
+     * Gets the number of bytes of counts this sketch holds, which is fixed when it is created.
+     * @return The size of this sketch in bytes.
+     */
+    long getSizeInBytes() {
+        return 4L * (cells.length + keys.length + counts.length + sketchedCounts.length + index.length +
+                heap.length + heapPositions.length) + 8L * prefixBits.length;
+    }
+
+    //==========================================================================
+    // Private helper methods
+    //==========================================================================
+
+    private int add(final int[] ids, final int num) {
+        final long hash = hash(ids, 0);
+        final int entry = findEntry(ids, hash);
+        if (entry >= 0) {
+            final int previous = counts[entry];
+            counts[entry] += num;
+            siftDown(heapPositions[entry]);
+            return previous;
+        }
+        final int previous = addToSketch(hash, num);
+        final int estimate = previous + num;
+        if (size < capacity) {
+            insertEntry(size++, ids, hash, estimate);
+            heap[size - 1] = size - 1;
+            heapPositions[size - 1] = size - 1;
+            siftUp(size - 1);
+        } else if (capacity > 0 && estimate > counts[heap[0]]) {
+            // Send the least frequent n-gram back to the sketch, and take its place
+            final int victim = heap[0];
+            final long victimHash = hash(keys, victim * n);
+            removeEntry(victimHash, victim);
+            final int unsketched = counts[victim] - sketchedCounts[victim];
+            if (unsketched > 0) {
+                addToSketch(victimHash, unsketched);
+            }
+            insertEntry(victim, ids, hash, estimate);
+            siftDown(0);
+        }
+        return previous;
+    }
+
+    private void setPrefixBits(final long hash) {
+        final int h1 = (int)hash;
+        final int h2 = (int)(hash >>> 32) | 1;
+        for (int row = 0; row < depth; row++) {
+            final long bit = prefixBit(h1 + row * h2);
+            prefixBits[(int)(bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    private boolean hasPrefixBits(final long hash) {
+        final int h1 = (int)hash;
+        final int h2 = (int)(hash >>> 32) | 1;
+        for (int row = 0; row < depth; row++) {
+            final long bit = prefixBit(h1 + row * h2);
+            if ((prefixBits[(int)(bit >>> 6)] & 1L << bit) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Adds a count to the cells of an n-gram with a conservative update.
+     * @return The estimate before the update.
+     */
+    private int addToSketch(final long hash, final int num) {
+        final int estimate = estimate(hash);
+        final int target = estimate + num;
+        final int h1 = (int)hash;
+        final int h2 = (int)(hash >>> 32) | 1;
+        for (int row = 0; row < depth; row++) {
+            final int cell = row * width + column(h1 + row * h2);
+            if (cells[cell] < target) {
+                cells[cell] = target;
+            }
+        }
+        return estimate;
+    }
+
+    private int estimate(final long hash) {
+        final int h1 = (int)hash;
+        final int h2 = (int)(hash >>> 32) | 1;
+        int estimate = Integer.MAX_VALUE;
+        for (int row = 0; row < depth; row++) {
+            estimate = Math.min(estimate, cells[row * width + column(h1 + row * h2)]);
+        }
+        return estimate;
+    }
+
+    /**
+     * Maps a row hash onto a column, without the bias of taking a remainder.
+     */
+    private int column(final int rowHash) {
+        return (int)(((rowHash & 0xffffffffL) * width) >>> 32);
+    }
+
+    /**
+     * Maps a row hash onto a bit of the filter of prefixes, like {@link #column(int)} does onto a column.
+     */
+    private long prefixBit(final int rowHash) {
+        return ((rowHash & 0xffffffffL) * numPrefixBits) >>> 32;
+    }
+
+    /**
+     * Hashes an n-gram into 64 bits, from which every row's hash and its slot in the index are derived.
+     */
+    private long hash(final int[] ids, final int from) {
+        long hash = 0x9e3779b97f4a7c15L;
+        for (int i = from; i < from + n; i++) {
+            hash = (hash ^ ids[i]) * 0xbf58476d1ce4e5b9L;
+            hash ^= hash >>> 31;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    /**
+     * Fills the part of a key after its prefix with a marker, and puts a word at the end.
+     */
+    private void fillKey(final int[] key, final int length, final int marker, final int last) {
+        for (int i = length; i < n - 1; i++) {
+            key[i] = marker;
+        }
+        key[n - 1] = last;
+    }
+
+    private int findEntry(final int[] ids, final long hash) {
+        if (capacity == 0) {
+            return -1;
+        }
+        final int mask = index.length - 1;
+        for (int slot = (int)(hash >>> 40) & mask; index[slot] != 0; slot = (slot + 1) & mask) {
+            final int entry = index[slot] - 1;
+            if (keyEquals(entry, ids)) {
+                return entry;
+            }
+        }
+        return -1;
+    }
+
+    private void insertEntry(final int entry, final int[] ids, final long hash, final int count) {
+        System.arraycopy(ids, 0, keys, entry * n, n);
+        counts[entry] = count;
+        sketchedCounts[entry] = count;
+        final int mask = index.length - 1;
+        int slot = (int)(hash >>> 40) & mask;
+        while (index[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        index[slot] = entry + 1;
+    }
+
+    /**
+     * Removes an entry from the index, shifting back the entries after it so that no probe chain is broken.
+     */
+    private void removeEntry(final long hash, final int entry) {
+        final int mask = index.length - 1;
+        int slot = (int)(hash >>> 40) & mask;
+        while (index[slot] != entry + 1) {
+            slot = (slot + 1) & mask;
+        }
+        int next = (slot + 1) & mask;
+        while (index[next] != 0) {
+            final int home = (int)(hash(keys, (index[next] - 1) * n) >>> 40) & mask;
+            // Move the entry back if its home slot isn't between the hole and where it is now
+            if (((next - home) & mask) >= ((next - slot) & mask)) {
+                index[slot] = index[next];
+                slot = next;
+            }
+            next = (next + 1) & mask;
+        }
+        index[slot] = 0;
+    }
+
+    private boolean keyEquals(final int entry, final int[] ids) {
+        final int offset = entry * n;
+        for (int i = 0; i < n; i++) {
+            if (keys[offset + i] != ids[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void siftUp(int position) {
+        final int entry = heap[position];
+        while (position > 0) {
+            final int parent = (position - 1) >>> 1;
+            if (counts[heap[parent]] <= counts[entry]) {
+                break;
+            }
+            heap[position] = heap[parent];
+            heapPositions[heap[position]] = position;
+            position = parent;
+        }
+        heap[position] = entry;
+        heapPositions[entry] = position;
+    }
+
+    private void siftDown(int position) {
+        final int entry = heap[position];
+        while (true) {
+            int child = 2 * position + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && counts[heap[child + 1]] < counts[heap[child]]) {
+                child++;
+            }
+            if (counts[heap[child]] >= counts[entry]) {
+                break;
+            }
+            heap[position] = heap[child];
+            heapPositions[heap[position]] = position;
+            position = child;
+        }
+        heap[position] = entry;
+        heapPositions[entry] = position;
+    }
+}
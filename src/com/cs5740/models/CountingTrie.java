@@ -0,0 +1,299 @@
+package com.cs5740.models;
+
+import com.cs5740.tokenlist.TokenList;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Counts the n-grams of every order from 1 to maxN in a single trie.
+ * <p>
+ * Each node stands for an n-gram, and its children for the n-grams that extend it by one word, so adding a run of
+ * maxN tokens counts the n-grams of every order that start with its first token, all along one path. Nodes live in
+ * parallel int arrays, and a single open-addressing table maps a (parent, word) pair to the child node.
+ * <p>
+ * Once counting is done, {@link #build(List)} freezes the trie into sorted arrays and returns one {@link NgramModel}
+ * per order, all of which are views of the same frozen trie.
+ */
+public class CountingTrie {
+    private static final float MAX_LOAD_FACTOR = 0.5f;
+
+    final int maxN;
+    final Lexicon lexicon;
+    // Indexed by node. Node 0 is the root, which stands for the empty n-gram. A parent always comes before its
+    // children.
+    int[] words = new int[16];
+    int[] parents = new int[16];
+    int[] counts = new int[16];
+    int size = 1;
+    // Holds child nodes, hashed by parent and word. Zero marks an empty slot, since the root is nobody's child.
+    private int[] childLookupTable = new int[32];
+
+    /**
+     * Creates an empty trie.
+     * @param maxN The highest order of n-gram to count.
+     * @param lexicon The lexicon from which the word IDs given to the trie come.
+     */
+    public CountingTrie(final int maxN, final Lexicon lexicon) {
+        this.maxN = maxN;
+        this.lexicon = lexicon;
+        words[0] = Lexicon.NO_ID;
+        parents[0] = -1;
+    }
+
+    /**
+     * Counts every prefix of a token list, up to maxN tokens long. These are the n-grams of every order that start
+     * with the first token.
+     * @param tokens The tokens to add.
+     * @return A reference to this object.
+     */
+    public CountingTrie add(final TokenList tokens) {
+        final int length = Math.min(tokens.size(), maxN);
+        int node = 0;
+        for (int i = 0; i < length; i++) {
+            node = getOrAddChild(node, tokens.get(i));
+            counts[node]++;
+        }
+        return this;
+    }
+
+    /**
+     * Adds to the count of a single n-gram, without counting its prefixes.
+     * @param tokens The n-gram to add. It must be at most maxN tokens long.
+     * @param num The amount to add.
+     * @return A reference to this object.
+     */
+    CountingTrie addNgram(final TokenList tokens, final int num) {
+        int node = 0;
+        for (int i = 0; i < tokens.size(); i++) {
+            node = getOrAddChild(node, tokens.get(i));
+        }
+        counts[node] += num;
+        return this;
+    }
+
+    /**
+     * Adds to the count of a single n-gram held in an array, without counting its prefixes.
+     * @param ids An array starting with the n-gram.
+     * @param length The length of the n-gram, which must be at most maxN.
+     * @param num The amount to add.
+     * @return A reference to this object.
+     */
+    CountingTrie addNgram(final int[] ids, final int length, final int num) {
+        int node = 0;
+        for (int i = 0; i < length; i++) {
+            node = getOrAddChild(node, ids[i]);
+        }
+        counts[node] += num;
+        return this;
+    }
+
+    /**
+     * Adds every count in another trie to this one.
+     * @param other The trie whose counts should be added. It must count n-grams of the same orders.
+     * @param mapping The ID in this trie's lexicon of every word in the other trie, indexed by its ID in the other
+     *                trie's lexicon. If this is null, the two tries share IDs.
+     * @return A reference to this object.
+     */
+    public CountingTrie addAll(final CountingTrie other, final int[] mapping) {
+        // Parents come before their children, so every parent has been placed by the time its children are
+        final int[] nodes = new int[other.size];
+        for (int node = 1; node < other.size; node++) {
+            final int word = mapping == null ? other.words[node] : mapping[other.words[node]];
+            nodes[node] = getOrAddChild(nodes[other.parents[node]], word);
+            counts[nodes[node]] += other.counts[node];
+        }
+        return this;
+    }
+
+    /**
+     * Turns every occurrence of a word into the unknown word token, merging the n-grams that become the same.
+     * @param rareWords The IDs of the words the turn into unknown words.
+     * @return A reference to this object.
+     */
+    public CountingTrie collapseRareWords(final BitSet rareWords) {
+        if (rareWords.isEmpty()) {
+            return this;
+        }
+        final int[] mapping = new int[lexicon.size()];
+        for (int token = 0; token < mapping.length; token++) {
+            mapping[token] = rareWords.get(token) ? Lexicon.UNKNOWN_ID : token;
+        }
+        final CountingTrie collapsed = new CountingTrie(maxN, lexicon).addAll(this, mapping);
+        words = collapsed.words;
+        parents = collapsed.parents;
+        counts = collapsed.counts;
+        size = collapsed.size;
+        childLookupTable = collapsed.childLookupTable;
+        return this;
+    }
+
+    /**
+     * Writes every count as records in pre-order (see {@link NgramRecords}), sorted by the rank of each word rather
+     * than its ID. The records hold the word IDs. This trie is emptied.
+     * @param out The stream to write to.
+     * @param ranks The rank of every word, indexed by its ID. No two words may have the same rank.
+     * @throws IOException If the records could not be written.
+     */
+    void writeRecords(final DataOutputStream out, final int[] ranks) throws IOException {
+        final int[] words = new int[ranks.length];
+        for (int token = 0; token < ranks.length; token++) {
+            words[ranks[token]] = token;
+        }
+        final CountingTrie ranked = new CountingTrie(maxN, lexicon).addAll(this, ranks);
+        clear();
+        NgramRecords.write(out, ranked.freeze(), words);
+    }
+
+    /**
+     * Gets the number of bytes of heap the nodes of this trie and its lookup table take.
+     * @return The size of this trie in bytes.
+     */
+    long getSizeInBytes() {
+        return 4L * (words.length + parents.length + counts.length + childLookupTable.length);
+    }
+
+    /**
+     * Removes every node but the root, and lets go of the arrays that held them.
+     */
+    void clear() {
+        words = new int[16];
+        parents = new int[16];
+        counts = new int[16];
+        size = 1;
+        childLookupTable = new int[32];
+        words[0] = Lexicon.NO_ID;
+        parents[0] = -1;
+    }
+
+    /**
+     * Gets the highest order of n-gram this trie counts.
+     * @return The value of maxN.
+     */
+    public int getMaxN() {
+        return maxN;
+    }
+
+    /**
+     * Builds n-gram models of the given orders, which all share a frozen copy of this trie.
+     * @param ns The orders of the models to build. Each must be between 1 and maxN.
+     * @return A map of n-gram models, keyed by n.
+     */
+    public Map<Integer, NgramModel> build(final List<Integer> ns) {
+        final NgramTrie trie = freeze();
+        final Map<Integer, NgramModel> ngramModels = new HashMap<>();
+        for (final Integer n : ns) {
+            ngramModels.put(n, TrieNgramModel.create(trie, n, lexicon));
+        }
+        return ngramModels;
+    }
+
+    /**
+     * Lays the nodes out level by level, sorting the children of each node by word.
+     * @return A new frozen trie.
+     */
+    NgramTrie freeze() {
+        // Group the children of every node together
+        final int[] childOffsets = new int[size + 1];
+        for (int node = 1; node < size; node++) {
+            childOffsets[parents[node] + 1]++;
+        }
+        for (int node = 0; node < size; node++) {
+            childOffsets[node + 1] += childOffsets[node];
+        }
+        final long[] children = new long[size];
+        final int[] next = Arrays.copyOf(childOffsets, size);
+        for (int node = 1; node < size; node++) {
+            // Pack the word above the node, so that sorting a group sorts it by word
+            children[next[parents[node]]++] = ((long)words[node] << 32) | node;
+        }
+        for (int node = 0; node < size; node++) {
+            Arrays.sort(children, childOffsets[node], childOffsets[node + 1]);
+        }
+        final int[][] levelWords = new int[maxN + 1][];
+        final int[][] levelCounts = new int[maxN + 1][];
+        final int[][] childStarts = new int[maxN + 1][];
+        int[] level = new int[] { 0 };
+        for (int depth = 1; depth <= maxN; depth++) {
+            int levelSize = 0;
+            for (final int parent : level) {
+                levelSize += childOffsets[parent + 1] - childOffsets[parent];
+            }
+            final int[] nextLevel = new int[levelSize];
+            levelWords[depth] = new int[levelSize];
+            levelCounts[depth] = new int[levelSize];
+            childStarts[depth - 1] = new int[level.length + 1];
+            int index = 0;
+            for (int i = 0; i < level.length; i++) {
+                childStarts[depth - 1][i] = index;
+                for (int j = childOffsets[level[i]]; j < childOffsets[level[i] + 1]; j++) {
+                    final int node = (int)children[j];
+                    nextLevel[index] = node;
+                    levelWords[depth][index] = words[node];
+                    levelCounts[depth][index] = counts[node];
+                    index++;
+                }
+            }
+            childStarts[depth - 1][level.length] = index;
+            level = nextLevel;
+        }
+        childStarts[maxN] = new int[level.length + 1];
+        return NgramTrie.fromArrays(maxN, levelWords, levelCounts, childStarts);
+    }
+
+    //==========================================================================
+    // Private helper methods
+    //==========================================================================
+
+    private int getOrAddChild(final int parent, final int word) {
+        final int mask = childLookupTable.length - 1;
+        int slot = mix(parent, word) & mask;
+        int node = childLookupTable[slot];
+        while (node != 0) {
+            if (parents[node] == parent && words[node] == word) {
+                return node;
+            }
+            slot = (slot + 1) & mask;
+            node = childLookupTable[slot];
+        }
+        if (size == words.length) {
+            words = Arrays.copyOf(words, size * 2);
+            parents = Arrays.copyOf(parents, size * 2);
+            counts = Arrays.copyOf(counts, size * 2);
+        }
+        node = size++;
+        words[node] = word;
+        parents[node] = parent;
+        childLookupTable[slot] = node;
+        if (size > childLookupTable.length * MAX_LOAD_FACTOR) {
+            rehash();
+        }
+        return node;
+    }
+
+    private void rehash() {
+        final int[] newTable = new int[childLookupTable.length * 2];
+        final int mask = newTable.length - 1;
+        for (int node = 1; node < size; node++) {
+            int slot = mix(parents[node], words[node]) & mask;
+            while (newTable[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            newTable[slot] = node;
+        }
+        childLookupTable = newTable;
+    }
+
+    //==========================================================================
+    // Private static helper methods
+    //==========================================================================
+
+    private static int mix(final int parent, final int word) {
+        long hash = ((long)parent << 32) | (word & 0xFFFFFFFFL);
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        return (int)hash;
+    }
+}
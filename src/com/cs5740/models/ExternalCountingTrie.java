@@ -0,0 +1,333 @@
+package com.cs5740.models;
+
+import com.cs5740.tokenlist.TokenList;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * A {@link CountingTrie} that keeps its heap use within a budget by spilling its counts to disk.
+ * <p>
+ * Whenever the trie grows past half the budget (freezing it to sort it takes about as much again), it is frozen and
+ * written to a temporary file as a run: every node in pre-order, so that each n-gram comes just before the n-grams
+ * that extend it. The trie is then emptied and counting goes on. When the models are built, the runs are merged in a
+ * streaming pass, which adds up the counts of the n-grams found in several runs and lays the result out level
+ * by level as the frozen {@link NgramTrie} that the models share, without ever holding more than one record of each
+ * run. If nothing was ever spilled, this behaves exactly like a plain counting trie.
+ * <p>
+ * A run holds a record per node, in the format of {@link NgramRecords}.
+ */
+public class ExternalCountingTrie extends CountingTrie {
+    // The most runs that are read at once, which keeps the number of open files down.
+    private static final int MAX_MERGE_WIDTH = 64;
+
+    private final long heapBudget;
+    private final File directory;
+    // The runs spilled so far. Their order doesn't matter, since they're merged by key.
+    private final List<File> runs = new ArrayList<>();
+
+    /**
+     * Creates an empty trie.
+     * @param maxN The highest order of n-gram to count.
+     * @param lexicon The lexicon from which the word IDs given to the trie come.
+     * @param heapBudget The number of bytes of heap the trie may take while counting.
+     * @param directory The directory to spill runs into, or null for the default temporary directory.
+     */
+    public ExternalCountingTrie(final int maxN, final Lexicon lexicon, final long heapBudget, final File directory) {
+        super(maxN, lexicon);
+        this.heapBudget = heapBudget;
+        this.directory = directory;
+    }
+
+    @Override
+    public CountingTrie add(final TokenList tokens) {
+        super.add(tokens);
+        spillIfFull();
+        return this;
+    }
+
+    @Override
+    CountingTrie addNgram(final int[] ids, final int length, final int num) {
+        super.addNgram(ids, length, num);
+        spillIfFull();
+        return this;
+    }
+
+    /**
+     * Adds every count in another trie to this one. If the other trie has spilled runs, they are taken over as they
+     * are when the two tries share IDs, and streamed back through this trie otherwise.
+     * @param other The trie whose counts should be added. It must count n-grams of the same orders, and should not
+     *              be used afterwards.
+     * @param mapping The ID in this trie's lexicon of every word in the other trie, indexed by its ID in the other
+     *                trie's lexicon. If this is null, the two tries share IDs.
+     * @return A reference to this object.
+     */
+    @Override
+    public CountingTrie addAll(final CountingTrie other, final int[] mapping) {
+        super.addAll(other, mapping);
+        spillIfFull();
+        if (other instanceof ExternalCountingTrie) {
+            final List<File> otherRuns = ((ExternalCountingTrie)other).runs;
+            for (final File run : otherRuns) {
+                if (mapping == null) {
+                    runs.add(run);
+                } else {
+                    addRun(run, mapping);
+                }
+            }
+            otherRuns.clear();
+        }
+        return this;
+    }
+
+    /**
+     * Turns every occurrence of a word into the unknown word token, merging the n-grams that become the same. Once
+     * runs have been spilled, every count is streamed back through this trie with the rare words replaced, which
+     * costs as much as counting did, so it's much cheaper to replace rare words as they're counted.
+     * @param rareWords The IDs of the words to turn into unknown words.
+     * @return A reference to this object.
+     */
+    @Override
+    public CountingTrie collapseRareWords(final BitSet rareWords) {
+        if (runs.isEmpty() || rareWords.isEmpty()) {
+            return super.collapseRareWords(rareWords);
+        }
+        final int[] mapping = new int[lexicon.size()];
+        for (int token = 0; token < mapping.length; token++) {
+            mapping[token] = rareWords.get(token) ? Lexicon.UNKNOWN_ID : token;
+        }
+        spill();
+        final List<File> oldRuns = new ArrayList<>(runs);
+        runs.clear();
+        for (final File run : oldRuns) {
+            addRun(run, mapping);
+        }
+        return this;
+    }
+
+    /**
+     * Builds n-gram models of the given orders, which all share a frozen trie merged from every spilled run. The
+     * runs are deleted.
+     * @param ns The orders of the models to build. Each must be between 1 and maxN.
+     * @return A map of n-gram models, keyed by n.
+     */
+    @Override
+    public Map<Integer, NgramModel> build(final List<Integer> ns) {
+        if (runs.isEmpty()) {
+            return super.build(ns);
+        }
+        spill();
+        final NgramTrie trie;
+        try {
+            trie = mergeRuns();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            for (final File run : runs) {
+                run.delete();
+            }
+            runs.clear();
+        }
+        final Map<Integer, NgramModel> ngramModels = new HashMap<>();
+        for (final Integer n : ns) {
+            ngramModels.put(n, TrieNgramModel.create(trie, n, lexicon));
+        }
+        return ngramModels;
+    }
+
+    /**
+     * Writes every count as records in pre-order, sorted by the rank of each word rather than its ID. Once runs have
+     * been spilled, every count is first streamed back through this trie with the words replaced by their ranks, so
+     * that the runs can be merged in that order. The runs are deleted.
+     * @param out The stream to write to.
+     * @param ranks The rank of every word, indexed by its ID. No two words may have the same rank.
+     * @throws IOException If the records could not be written.
+     */
+    @Override
+    void writeRecords(final DataOutputStream out, final int[] ranks) throws IOException {
+        if (runs.isEmpty()) {
+            super.writeRecords(out, ranks);
+            return;
+        }
+        final int[] words = new int[ranks.length];
+        for (int token = 0; token < ranks.length; token++) {
+            words[ranks[token]] = token;
+        }
+        try {
+            spill();
+            final List<File> oldRuns = new ArrayList<>(runs);
+            runs.clear();
+            for (final File run : oldRuns) {
+                addRun(run, ranks);
+            }
+            spill();
+            reduceRuns();
+            mergeRuns(runs, (depth, key, count) -> {
+                for (int i = 0; i < depth; i++) {
+                    key[i] = words[key[i]];
+                }
+                NgramRecords.write(out, depth, key, count);
+            });
+            out.writeInt(0);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            for (final File run : runs) {
+                run.delete();
+            }
+            runs.clear();
+        }
+    }
+
+    /**
+     * Gets the number of runs spilled to disk so far.
+     * @return The number of runs.
+     */
+    public int getNumRuns() {
+        return runs.size();
+    }
+
+    //==========================================================================
+    // Private helper methods
+    //==========================================================================
+
+    private void spillIfFull() {
+        if (getSizeInBytes() > heapBudget / 2) {
+            spill();
+        }
+    }
+
+    /**
+     * Writes every node to a new run, and empties the trie.
+     */
+    private void spill() {
+        if (size <= 1) {
+            return;
+        }
+        final NgramTrie trie = freeze();
+        clear();
+        File run = null;
+        try {
+            run = File.createTempFile("ngrams", ".run", directory);
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run),
+                    1 << 16))) {
+                NgramRecords.write(out, trie, null);
+            }
+            runs.add(run);
+        } catch (IOException e) {
+            if (run != null) {
+                run.delete();
+            }
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Adds every record of a run to this trie, translating its word IDs, and deletes the run. This may spill.
+     */
+    private void addRun(final File run, final int[] mapping) {
+        try (NgramRecords.Reader reader = new NgramRecords.Reader(run, maxN)) {
+            while (reader.next()) {
+                for (int i = 0; i < reader.depth; i++) {
+                    reader.key[i] = mapping[reader.key[i]];
+                }
+                addNgram(reader.key, reader.depth, reader.count);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            run.delete();
+        }
+    }
+
+    /**
+     * Merges every run into a frozen trie, adding up the counts of the nodes that are in more than one.
+     */
+    private NgramTrie mergeRuns() throws IOException {
+        reduceRuns();
+        // Indexed by depth. The nodes come in pre-order, so every node's children are appended to the next level
+        // right after it, and before the next node of its own level.
+        final IntArray[] words = new IntArray[maxN + 1];
+        final IntArray[] counts = new IntArray[maxN + 1];
+        final IntArray[] childStarts = new IntArray[maxN + 1];
+        for (int depth = 0; depth <= maxN; depth++) {
+            words[depth] = new IntArray();
+            counts[depth] = new IntArray();
+            childStarts[depth] = new IntArray();
+        }
+        childStarts[0].add(0);
+        mergeRuns(runs, (depth, key, count) -> {
+            childStarts[depth].add(depth < maxN ? words[depth + 1].size : 0);
+            words[depth].add(key[depth - 1]);
+            counts[depth].add(count);
+        });
+        final int[][] levelWords = new int[maxN + 1][];
+        final int[][] levelCounts = new int[maxN + 1][];
+        final int[][] levelChildStarts = new int[maxN + 1][];
+        for (int depth = 0; depth <= maxN; depth++) {
+            childStarts[depth].add(depth < maxN ? words[depth + 1].size : 0);
+            levelWords[depth] = words[depth].toArray();
+            levelCounts[depth] = counts[depth].toArray();
+            levelChildStarts[depth] = childStarts[depth].toArray();
+        }
+        return NgramTrie.fromArrays(maxN, levelWords, levelCounts, levelChildStarts);
+    }
+
+    /**
+     * Merges groups of runs into longer runs until there are few enough to read at once.
+     */
+    private void reduceRuns() throws IOException {
+        while (runs.size() > MAX_MERGE_WIDTH) {
+            final List<File> group = new ArrayList<>(runs.subList(0, MAX_MERGE_WIDTH));
+            final File merged = File.createTempFile("ngrams", ".run", directory);
+            runs.add(merged);
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(merged),
+                    1 << 16))) {
+                mergeRuns(group, (depth, key, count) -> NgramRecords.write(out, depth, key, count));
+                out.writeInt(0);
+            }
+            for (final File run : group) {
+                run.delete();
+            }
+            runs.removeAll(group);
+        }
+    }
+
+    /**
+     * Merges runs into a single stream of records in pre-order, adding up the counts of the nodes that are in more
+     * than one.
+     */
+    private void mergeRuns(final List<File> runsToMerge, final NgramRecords.Sink sink) throws IOException {
+        final List<NgramRecords.Reader> readers = new ArrayList<>();
+        try {
+            for (final File run : runsToMerge) {
+                readers.add(new NgramRecords.Reader(run, maxN));
+            }
+        } catch (IOException e) {
+            for (final NgramRecords.Reader reader : readers) {
+                reader.close();
+            }
+            throw e;
+        }
+        NgramRecords.merge(readers, maxN, sink);
+    }
+
+    /**
+     * A growable array of ints.
+     */
+    private static final class IntArray {
+        int[] values = new int[16];
+        int size = 0;
+
+        void add(final int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+    }
+}
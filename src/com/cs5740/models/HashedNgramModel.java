@@ -0,0 +1,306 @@
+package com.cs5740.models;
+
+import com.cs5740.Utils;
+import com.cs5740.tokenlist.LinkedTokenList;
+import com.cs5740.tokenlist.TokenList;
+
+import java.util.*;
+
+/**
+ * Represents an n-gram model whose n-grams all live in one flat table.
+ * <p>
+ * Where {@link MultigramModel} chains a map per context prefix, this model keeps every n-gram of its order in a
+ * single {@link NgramTable} of word IDs and int counts. The n-grams are also sorted once at build time, and a second
+ * table maps each context (the first n - 1 words of an n-gram) to the range of its continuations in that order,
+ * which is what iteration and word generation walk.
+ */
+class HashedNgramModel extends NgramModel {
+    NgramTable table;
+    // Maps a context to the number of n-grams that start with it.
+    NgramTable contexts;
+    // Indexed by context slot. The index in sortedSlots of the first n-gram that starts with the context.
+    int[] contextStarts;
+    // Every slot of the n-gram table, ordered by key.
+    int[] sortedSlots;
+    // Indexed like sortedSlots. The sum of the counts of the n-grams before this one that share its context.
+    int[] cumulativeCounts;
+    int n;
+
+    private HashedNgramModel() {}
+
+    @Override
+    public int getWordId(final TokenList previousTokens, final double p) {
+        final int contextSlot = contexts.find(previousTokens);
+        if (contextSlot < 0 || p < 0.0 || p >= 1.0) {
+            return Lexicon.NO_ID;
+        }
+        final int start = contextStarts[contextSlot];
+        final int end = start + contexts.counts[contextSlot];
+        final double prob = p * (cumulativeCounts[end - 1] + table.counts[sortedSlots[end - 1]]);
+        // Binary search for the continuation whose cumulative range contains prob, like UnigramModel does.
+        int left = start;
+        int right = end - 1;
+        while (left <= right) {
+            final int mid = (left + right) >>> 1;
+            if (prob < cumulativeCounts[mid]) {
+                right = mid - 1;
+            } else if (prob >= cumulativeCounts[mid] + table.counts[sortedSlots[mid]]) {
+                left = mid + 1;
+            } else {
+                return table.getId(sortedSlots[mid], n - 1);
+            }
+        }
+        // Should never hit this point
+        return Lexicon.NO_ID;
+    }
+
+    @Override
+    Continuations getContinuations(final TokenList previousTokens) {
+        final int contextSlot = contexts.find(previousTokens);
+        if (contextSlot < 0) {
+            return Continuations.EMPTY;
+        }
+        final int start = contextStarts[contextSlot];
+        final int[] words = new int[contexts.counts[contextSlot]];
+        final int[] counts = new int[words.length];
+        for (int i = 0; i < words.length; i++) {
+            words[i] = table.getId(sortedSlots[start + i], n - 1);
+            counts[i] = table.counts[sortedSlots[start + i]];
+        }
+        return new Continuations(words, counts);
+    }
+
+    @Override
+    int getCount(final int[] ngram) {
+        final int slot = table.find(ngram, 0);
+        return slot >= 0 ? table.counts[slot] : 0;
+    }
+
+    @Override
+    boolean containsPrefix(final int[] prefix, final int length) {
+        if (length == n) {
+            return table.find(prefix, 0) >= 0;
+        }
+        return hasPrefix(prefix, length);
+    }
+
+    @Override
+    boolean containsLastWord(final int[] prefix, final int length, final int word) {
+        final int end = lowerBound(prefix, length, false);
+        for (int i = lowerBound(prefix, length); i < end; i++) {
+            if (table.getId(sortedSlots[i], n - 1) == word) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public int getUnsmoothedTokenFrequency(final TokenList tokens) {
+        final int slot = table.find(tokens);
+        if (slot >= 0) {
+            return table.counts[slot];
+        }
+        return getResolvedTokenFrequency(tokens);
+    }
+
+    @Override
+    public void getUnsmoothedTokenFrequencies(final int[] tokens, final int from, final int numNgrams,
+                                              final int[] frequencies) {
+        table.findAll(tokens, from, numNgrams, frequencies);
+        for (int i = 0; i < numNgrams; i++) {
+            final int slot = frequencies[i];
+            frequencies[i] = slot >= 0 ? table.counts[slot] : getResolvedTokenFrequency(tokens, from + i);
+        }
+    }
+
+    @Override
+    public int getN() {
+        return n;
+    }
+
+    @Override
+    public Iterator<TokenList> getIterator() {
+        return new Iterator<TokenList>() {
+            int index = 0;
+
+            @Override
+            public boolean hasNext() {
+                return index < sortedSlots.length;
+            }
+
+            @Override
+            public TokenList next() {
+                if (!hasNext()) {
+                    return null;
+                }
+                final int slot = sortedSlots[index++];
+                final TokenList tokenList = new LinkedTokenList();
+                for (int i = 0; i < n; i++) {
+                    tokenList.addLast(table.getId(slot, i));
+                }
+                return tokenList;
+            }
+        };
+    }
+
+    /**
+     * Returns whether any n-gram in this model starts with the given word IDs.
+     * @param prefix An array starting with the word IDs to find.
+     * @param length The number of word IDs in the prefix.
+     * @return Whether there is an n-gram with the given prefix.
+     */
+    private boolean hasPrefix(final int[] prefix, final int length) {
+        if (length == n - 1) {
+            // Whole contexts have their own table, which saves a binary search
+            return contexts.find(prefix, 0) >= 0;
+        }
+        final int index = lowerBound(prefix, length);
+        return index < sortedSlots.length && table.comparePrefix(sortedSlots[index], prefix, length) == 0;
+    }
+
+    /**
+     * Binary searches for the first n-gram that is not less than a prefix.
+     * @param prefix An array starting with the word IDs to find.
+     * @param length The number of word IDs in the prefix.
+     * @return An index into sortedSlots.
+     */
+    private int lowerBound(final int[] prefix, final int length) {
+        return lowerBound(prefix, length, true);
+    }
+
+    /**
+     * Binary searches for the first n-gram that is not less than, or greater than, a prefix.
+     * @param prefix An array starting with the word IDs to find.
+     * @param length The number of word IDs in the prefix.
+     * @param inclusive If true, n-grams starting with the prefix are not skipped.
+     * @return An index into sortedSlots.
+     */
+    private int lowerBound(final int[] prefix, final int length, final boolean inclusive) {
+        int left = 0;
+        int right = sortedSlots.length;
+        while (left < right) {
+            final int mid = (left + right) >>> 1;
+            final int comparison = table.comparePrefix(sortedSlots[mid], prefix, length);
+            if (comparison < 0 || (comparison == 0 && !inclusive)) {
+                left = mid + 1;
+            } else {
+                right = mid;
+            }
+        }
+        return left;
+    }
+
+    public static class HashedNgramModelBuilder implements NgramModelBuilder {
+        NgramTable table;
+        final int n;
+        final Lexicon lexicon;
+
+        public HashedNgramModelBuilder(final int n, final Lexicon lexicon) {
+            this.n = n;
+            this.lexicon = lexicon;
+            this.table = new NgramTable(n, 16);
+        }
+
+        @Override
+        public NgramModelBuilder collapseRareWords(final BitSet rareWords) {
+            if (rareWords.isEmpty()) {
+                return this;
+            }
+            final NgramTable newTable = new NgramTable(n, table.size);
+            final int[] key = new int[n];
+            for (int slot = 0; slot < table.capacity(); slot++) {
+                if (!table.isOccupied(slot)) {
+                    continue;
+                }
+                for (int i = 0; i < n; i++) {
+                    final int token = table.getId(slot, i);
+                    key[i] = rareWords.get(token) ? Lexicon.UNKNOWN_ID : token;
+                }
+                newTable.add(key, 0, table.counts[slot]);
+            }
+            table = newTable;
+            return this;
+        }
+
+        @Override
+        public NgramModelBuilder addTokens(final TokenList tokens) {
+            table.add(tokens, 1);
+            return this;
+        }
+
+        @Override
+        public NgramModelBuilder addTokensNumTimes(final TokenList tokens, final int num) {
+            if (num == 0) {
+                return this;
+            }
+            table.add(tokens, num);
+            return this;
+        }
+
+        @Override
+        public NgramModelBuilder absorb(final NgramModelBuilder other) {
+            final NgramTable otherTable = ((HashedNgramModelBuilder)other).table;
+            for (int slot = 0; slot < otherTable.capacity(); slot++) {
+                if (otherTable.isOccupied(slot)) {
+                    table.add(otherTable.keys, slot * n, otherTable.counts[slot]);
+                }
+            }
+            return this;
+        }
+
+        @Override
+        public NgramModelBuilder translate(final int[] mapping, final Lexicon lexicon) {
+            final HashedNgramModelBuilder builder = new HashedNgramModelBuilder(n, lexicon);
+            builder.table = new NgramTable(n, table.size);
+            final int[] key = new int[n];
+            for (int slot = 0; slot < table.capacity(); slot++) {
+                if (!table.isOccupied(slot)) {
+                    continue;
+                }
+                for (int i = 0; i < n; i++) {
+                    key[i] = mapping[table.getId(slot, i)];
+                }
+                builder.table.add(key, 0, table.counts[slot]);
+            }
+            return builder;
+        }
+
+        @Override
+        public NgramModel build() {
+            HashedNgramModel model = new HashedNgramModel();
+            model.n = n;
+            model.lexicon = lexicon;
+            model.table = table;
+            model.frequencyCountMap = new HashMap<>();
+            model.vocabulary = new BitSet();
+            model.sortedSlots = table.sortedSlots();
+            model.cumulativeCounts = new int[model.sortedSlots.length];
+            model.contexts = new NgramTable(n - 1, table.size);
+            model.contextStarts = new int[model.contexts.capacity()];
+            for (int index = 0; index < model.sortedSlots.length; index++) {
+                final int slot = model.sortedSlots[index];
+                final int count = table.counts[slot];
+                model.vocabulary.set(table.getId(slot, n - 1));
+                model.totalCount += count;
+                model.totalUniqueCount++;
+                model.frequencyCountMap.merge(count, 1, (a, b) -> a + b);
+                // The slots are sorted, so every context's continuations are contiguous
+                final boolean newContext = index == 0 || table.compareKeys(model.sortedSlots[index - 1], slot, n - 1) != 0;
+                final int contextSlot = model.contexts.add(table.keys, slot * n, 1);
+                if (newContext) {
+                    model.contextStarts[contextSlot] = index;
+                } else {
+                    final int previousSlot = model.sortedSlots[index - 1];
+                    model.cumulativeCounts[index] = model.cumulativeCounts[index - 1] + table.counts[previousSlot];
+                }
+            }
+            int unseen = Utils.pow(model.getVocabularySize(), n);
+            if (unseen < Integer.MAX_VALUE) {
+                unseen -= model.getTotalUniqueCount();
+            }
+            model.frequencyCountMap.put(0, unseen);
+            return model;
+        }
+    }
+}
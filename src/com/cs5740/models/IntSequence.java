@@ -0,0 +1,249 @@
+package com.cs5740.models;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+
+/**
+ * A read-only sequence of ints, which may live on the heap or in a memory-mapped file.
+ */
+interface IntSequence {
+    /**
+     * Gets an element of this sequence.
+     * @param index The index of the element.
+     * @return The element at the given index.
+     */
+    int get(final int index);
+
+    /**
+     * Gets the number of elements in this sequence.
+     * @return The size of this sequence.
+     */
+    int size();
+
+    /**
+     * Wraps an array. The array should not be modified afterwards.
+     * @param values The elements of the sequence.
+     * @return A new sequence.
+     */
+    static IntSequence of(final int[] values) {
+        return new ArraySequence(values);
+    }
+
+    /**
+     * Wraps the remaining elements of a buffer, such as a view of a memory-mapped file.
+     * @param values The elements of the sequence.
+     * @return A new sequence.
+     */
+    static IntSequence of(final IntBuffer values) {
+        return new BufferSequence(values.slice());
+    }
+
+    /**
+     * Wraps an array of bytes, each of which is an element between 0 and 255.
+     * @param values The elements of the sequence.
+     * @return A new sequence.
+     */
+    static IntSequence ofBytes(final byte[] values) {
+        return ofBytes(ByteBuffer.wrap(values));
+    }
+
+    /**
+     * Wraps the remaining bytes of a buffer, each of which is an element between 0 and 255.
+     * @param values The elements of the sequence.
+     * @return A new sequence.
+     */
+    static IntSequence ofBytes(final ByteBuffer values) {
+        return new ByteSequence(values.slice());
+    }
+
+    /**
+     * Packs non-negative ints into as few bits each as the largest of them needs.
+     * @param values The elements of the sequence.
+     * @return A new sequence.
+     */
+    static IntSequence packed(final int[] values) {
+        int max = 0;
+        for (final int value : values) {
+            max |= value;
+        }
+        return new PackedSequence(values, 32 - Integer.numberOfLeadingZeros(max));
+    }
+
+    /**
+     * Encodes a non-decreasing sequence of non-negative ints with Elias-Fano coding, which takes about
+     * 2 + log2(last / size) bits per element.
+     * @param values The elements of the sequence, which must be sorted.
+     * @return A new sequence.
+     */
+    static IntSequence monotone(final int[] values) {
+        return new EliasFanoSequence(values);
+    }
+
+    /**
+     * Copies a sequence into an array.
+     * @param sequence The sequence to copy.
+     * @return A new array.
+     */
+    static int[] toArray(final IntSequence sequence) {
+        final int[] values = new int[sequence.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = sequence.get(i);
+        }
+        return values;
+    }
+
+    final class ArraySequence implements IntSequence {
+        private final int[] values;
+
+        ArraySequence(final int[] values) {
+            this.values = values;
+        }
+
+        @Override
+        public int get(final int index) {
+            return values[index];
+        }
+
+        @Override
+        public int size() {
+            return values.length;
+        }
+    }
+
+    final class BufferSequence implements IntSequence {
+        private final IntBuffer values;
+
+        BufferSequence(final IntBuffer values) {
+            this.values = values;
+        }
+
+        @Override
+        public int get(final int index) {
+            return values.get(index);
+        }
+
+        @Override
+        public int size() {
+            return values.limit();
+        }
+    }
+
+    final class ByteSequence implements IntSequence {
+        private final ByteBuffer values;
+
+        ByteSequence(final ByteBuffer values) {
+            this.values = values;
+        }
+
+        @Override
+        public int get(final int index) {
+            return values.get(index) & 0xFF;
+        }
+
+        @Override
+        public int size() {
+            return values.limit();
+        }
+    }
+
+    /**
+     * Stores every element in the same number of bits, packed end to end into longs.
+     */
+    final class PackedSequence implements IntSequence {
+        private final long[] bits;
+        private final int width;
+        private final long mask;
+        private final int size;
+
+        PackedSequence(final int[] values, final int width) {
+            // One extra long, so that reading an element never runs off the end
+            this.bits = new long[(int)(((long)values.length * width + 63) >>> 6) + 1];
+            this.width = width;
+            this.mask = (1L << width) - 1;
+            this.size = values.length;
+            for (int i = 0; i < values.length; i++) {
+                final long position = (long)i * width;
+                final int word = (int)(position >>> 6);
+                final int shift = (int)(position & 63);
+                bits[word] |= (values[i] & mask) << shift;
+                if (shift + width > 64) {
+                    bits[word + 1] |= (values[i] & mask) >>> (64 - shift);
+                }
+            }
+        }
+
+        @Override
+        public int get(final int index) {
+            final long position = (long)index * width;
+            final int word = (int)(position >>> 6);
+            final int shift = (int)(position & 63);
+            long value = bits[word] >>> shift;
+            if (shift + width > 64) {
+                value |= bits[word + 1] << (64 - shift);
+            }
+            return (int)(value & mask);
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+    }
+
+    /**
+     * Splits every element into low bits, which are packed, and high bits, which are stored in unary as gaps between
+     * set bits. The position of every 256th set bit is sampled, so finding an element scans at most a few longs.
+     */
+    final class EliasFanoSequence implements IntSequence {
+        private static final int SAMPLE_SHIFT = 8;
+
+        private final PackedSequence lowBits;
+        private final int lowWidth;
+        // Bit i + (values[i] >>> lowWidth) is set for every element i
+        private final long[] highBits;
+        // The position in highBits of every (1 << SAMPLE_SHIFT)th set bit
+        private final long[] samples;
+        private final int size;
+
+        EliasFanoSequence(final int[] values) {
+            this.size = values.length;
+            final long universe = size == 0 ? 1 : (long)values[size - 1] + 1;
+            this.lowWidth = size == 0 ? 0 : Math.max(0, 63 - Long.numberOfLeadingZeros(universe / size));
+            this.lowBits = new PackedSequence(values, lowWidth);
+            this.highBits = new long[(int)((size + (universe >>> lowWidth) + 64) >>> 6) + 1];
+            this.samples = new long[(size >>> SAMPLE_SHIFT) + 1];
+            for (int i = 0; i < size; i++) {
+                final long position = i + ((long)values[i] >>> lowWidth);
+                highBits[(int)(position >>> 6)] |= 1L << (position & 63);
+                if ((i & ((1 << SAMPLE_SHIFT) - 1)) == 0) {
+                    samples[i >>> SAMPLE_SHIFT] = position;
+                }
+            }
+        }
+
+        @Override
+        public int get(final int index) {
+            // Find the set bit of the element, starting from the nearest sample before it
+            final long sample = samples[index >>> SAMPLE_SHIFT];
+            int remaining = index & ((1 << SAMPLE_SHIFT) - 1);
+            int word = (int)(sample >>> 6);
+            long bits = highBits[word] & (-1L << (sample & 63));
+            int count = Long.bitCount(bits);
+            while (remaining >= count) {
+                remaining -= count;
+                bits = highBits[++word];
+                count = Long.bitCount(bits);
+            }
+            for (int i = 0; i < remaining; i++) {
+                bits &= bits - 1;
+            }
+            final long high = ((long)word << 6) + Long.numberOfTrailingZeros(bits) - index;
+            return (int)((high << lowWidth) | lowBits.get(index));
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+    }
+}
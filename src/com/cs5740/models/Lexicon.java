@@ -0,0 +1,204 @@
+package com.cs5740.models;
+
+import com.cs5740.tokenlist.LinkedTokenList;
+import com.cs5740.tokenlist.TokenList;
+
+import java.util.Arrays;
+
+/**
+ * The interned vocabulary of a corpus.
+ * <p>
+ * Every distinct token is mapped to a dense int ID the first time it is seen, and every builder and model
+ * created for a corpus works on those IDs. Strings only come back out at the edges, through {@link #getWord(int)}.
+ * The unknown word token is always interned first, so that it has the ID {@link #UNKNOWN_ID}.
+ * <p>
+ * Words can be looked up straight from a slice of a char buffer, so a tokenizer never has to create a String for
+ * a word that has been seen before. The lookup table is open-addressed, and hashes slices the same way
+ * {@link String#hashCode()} hashes strings.
+ */
+public class Lexicon {
+    public static final int UNKNOWN_ID = 0;
+    // The ID returned for words that could not be found, e.g. when a model has no word to give back.
+    public static final int NO_ID = -1;
+
+    private static final float MAX_LOAD_FACTOR = 0.5f;
+
+    // Indexed by word ID
+    private String[] words = new String[16];
+    private int size = 0;
+    // Holds word IDs plus one, so that zero marks an empty slot.
+    private int[] idLookupTable = new int[32];
+
+    public Lexicon() {
+        getOrAdd(NgramModel.UNKNOWN_WORD_TOKEN);
+    }
+
+    /**
+     * Gets the ID of a word, interning it if it hasn't been seen before.
+     * @param word The word to intern. This is expected to already be lower case.
+     * @return The ID of the word.
+     */
+    public int getOrAdd(final String word) {
+        final int slot = findSlot(word, word.hashCode());
+        if (idLookupTable[slot] != 0) {
+            return idLookupTable[slot] - 1;
+        }
+        return add(slot, word);
+    }
+
+    /**
+     * Gets the ID of a word held in a char buffer, interning it if it hasn't been seen before.
+     * A String is only created if the word is new.
+     * @param chars A buffer holding the word. The word is expected to already be lower case.
+     * @param offset The index in the buffer at which the word starts.
+     * @param length The number of characters in the word.
+     * @return The ID of the word.
+     */
+    public int getOrAdd(final char[] chars, final int offset, final int length) {
+        final int slot = findSlot(chars, offset, length);
+        if (idLookupTable[slot] != 0) {
+            return idLookupTable[slot] - 1;
+        }
+        return add(slot, new String(chars, offset, length));
+    }
+
+    /**
+     * Gets the ID of a word without interning it.
+     * @param word The word to look up. It is matched case-insensitively.
+     * @return The ID of the word, or {@link #UNKNOWN_ID} if the word has never been seen.
+     */
+    public int getId(final String word) {
+        int slot = findSlot(word, word.hashCode());
+        if (idLookupTable[slot] == 0) {
+            final String lowerCaseWord = word.toLowerCase();
+            slot = findSlot(lowerCaseWord, lowerCaseWord.hashCode());
+        }
+        return idLookupTable[slot] != 0 ? idLookupTable[slot] - 1 : UNKNOWN_ID;
+    }
+
+    /**
+     * Gets the ID of a word held in a char buffer without interning it.
+     * @param chars A buffer holding the word. The word is expected to already be lower case.
+     * @param offset The index in the buffer at which the word starts.
+     * @param length The number of characters in the word.
+     * @return The ID of the word, or {@link #UNKNOWN_ID} if the word has never been seen.
+     */
+    public int getId(final char[] chars, final int offset, final int length) {
+        final int slot = findSlot(chars, offset, length);
+        return idLookupTable[slot] != 0 ? idLookupTable[slot] - 1 : UNKNOWN_ID;
+    }
+
+    /**
+     * Gets the word with the given ID.
+     * @param id The ID of the word.
+     * @return The word, or an empty string if the ID doesn't belong to any word.
+     */
+    public String getWord(final int id) {
+        if (id < 0 || id >= size) {
+            return "";
+        }
+        return words[id];
+    }
+
+    /**
+     * Gets the number of words interned so far, including the unknown word token.
+     * @return The number of words in this lexicon.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Turns a sequence of words into a list of IDs. Words that have never been seen become the unknown word token.
+     * @param words The words to look up.
+     * @return A new list of tokens.
+     */
+    public TokenList toTokenList(final String... words) {
+        final TokenList tokenList = new LinkedTokenList();
+        for (final String word : words) {
+            tokenList.addLast(getId(word));
+        }
+        return tokenList;
+    }
+
+    //==========================================================================
+    // Private helper methods
+    //==========================================================================
+
+    /**
+     * Finds the slot that holds a word, or the empty slot where it would go.
+     */
+    private int findSlot(final String word, final int hash) {
+        final int mask = idLookupTable.length - 1;
+        int slot = mix(hash) & mask;
+        while (idLookupTable[slot] != 0 && !words[idLookupTable[slot] - 1].equals(word)) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * Finds the slot that holds a word in a char buffer, or the empty slot where it would go.
+     */
+    private int findSlot(final char[] chars, final int offset, final int length) {
+        int hash = 0;
+        for (int i = offset; i < offset + length; i++) {
+            hash = 31 * hash + chars[i];
+        }
+        final int mask = idLookupTable.length - 1;
+        int slot = mix(hash) & mask;
+        while (idLookupTable[slot] != 0 && !matches(words[idLookupTable[slot] - 1], chars, offset, length)) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private int add(final int slot, final String word) {
+        if (size == words.length) {
+            words = Arrays.copyOf(words, size * 2);
+        }
+        words[size] = word;
+        idLookupTable[slot] = ++size;
+        if (size > idLookupTable.length * MAX_LOAD_FACTOR) {
+            rehash();
+        }
+        return size - 1;
+    }
+
+    private void rehash() {
+        idLookupTable = new int[idLookupTable.length * 2];
+        final int mask = idLookupTable.length - 1;
+        for (int id = 0; id < size; id++) {
+            int slot = mix(words[id].hashCode()) & mask;
+            while (idLookupTable[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            idLookupTable[slot] = id + 1;
+        }
+    }
+
+    //==========================================================================
+    // Private static helper methods
+    //==========================================================================
+
+    private static boolean matches(final String word, final char[] chars, final int offset, final int length) {
+        if (word.length() != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (word.charAt(i) != chars[offset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Spreads the bits of a hash code, since String hash codes of short words differ mostly in their low bits.
+     */
+    private static int mix(int hash) {
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        return hash ^ (hash >>> 13);
+    }
+}
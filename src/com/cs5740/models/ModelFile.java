@@ -0,0 +1,346 @@
+package com.cs5740.models;
+
+import com.cs5740.tokenlist.TokenList;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Reads and writes the binary model file format, which holds a lexicon and the n-gram models of a corpus.
+ * <p>
+ * The n-grams of every order are stored as the levels of an {@link NgramTrie}: words, counts, child ranges,
+ * cumulative counts (which {@link NgramModel#getWordId(TokenList, double)} samples from) and subtree depths. When a
+ * file is read, each of these arrays is memory mapped, and the models answer queries straight from the mapped pages,
+ * so loading a model takes about as long as reading its lexicon. Only the lexicon, the count-of-counts tables and the
+ * vocabulary of each model, which are small, are copied onto the heap.
+ * <p>
+ * Every number is little endian. A file starts with this header:
+ * <pre>
+ *   int magic, int version, int maxN, int number of models
+ *   long offset and long length of the metadata section
+ *   long offset and long length of the lexicon section
+ *   long offset and long length of every array section
+ * </pre>
+ * The metadata section holds the name of the corpus, then for every model its n, total count, total unique count,
+ * count-of-counts table and vocabulary. The lexicon section holds every word in ID order. The array sections hold
+ * the child starts of depths 0 to maxN, then the words, counts, cumulative counts and subtree depths (one byte each)
+ * of depths 1 to maxN. Every section starts on an 8 byte boundary. A single array must fit in 2GB.
+ */
+public final class ModelFile {
+    // The bytes "NGRM"
+    public static final int MAGIC = 0x4D52474E;
+    public static final int VERSION = 1;
+    private static final int ALIGNMENT = 8;
+
+    private final String name;
+    private final Lexicon lexicon;
+    private final Map<Integer, NgramModel> ngramModels;
+
+    private ModelFile(final String name, final Lexicon lexicon, final Map<Integer, NgramModel> ngramModels) {
+        this.name = name;
+        this.lexicon = lexicon;
+        this.ngramModels = ngramModels;
+    }
+
+    /**
+     * Gets the name of the corpus in this file.
+     * @return The name of the corpus.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Gets the lexicon shared by every model in this file.
+     * @return The lexicon.
+     */
+    public Lexicon getLexicon() {
+        return lexicon;
+    }
+
+    /**
+     * Gets the models in this file, which answer queries from the mapped file.
+     * @return A map of n-gram models, keyed by n.
+     */
+    public Map<Integer, NgramModel> getNgramModels() {
+        return ngramModels;
+    }
+
+    /**
+     * Writes n-gram models to a file. Models that don't already share a trie are copied into one first.
+     * @param path The file to write. It is replaced if it exists.
+     * @param name The name of the corpus the models come from.
+     * @param lexicon The lexicon from which every model's word IDs come.
+     * @param ngramModels The models to write, keyed by n.
+     * @throws IOException If the file could not be written.
+     */
+    public static void write(final Path path, final String name, final Lexicon lexicon,
+                             final Map<Integer, NgramModel> ngramModels) throws IOException {
+        for (final NgramModel model : ngramModels.values()) {
+            if (model instanceof BackoffNgramModel) {
+                throw new IOException("Back-off models hold no counts, and can't be written to a model file");
+            } else if (model instanceof BackoffTrieNgramModel) {
+                throw new IOException("Smoothed back-off models can't be written to a model file; write the count " +
+                        "models and smooth them again once they're read");
+            }
+        }
+        final List<Integer> ns = new ArrayList<>(ngramModels.keySet());
+        Collections.sort(ns);
+        final NgramTrie trie = NgramTrie.fromModels(ngramModels);
+        final int numArrays = trie.maxN + 1 + 4 * trie.maxN;
+        try (Output out = new Output(FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING))) {
+            // Leave room for the header, which is written last
+            final long[] sections = new long[2 * (2 + numArrays)];
+            out.skip(16 + 8 * sections.length);
+            int section = 0;
+            out.align();
+            sections[section++] = out.position();
+            out.writeString(name);
+            for (final int n : ns) {
+                final NgramModel model = ngramModels.get(n);
+                out.writeInt(n);
+                out.writeInt(model.totalCount);
+                out.writeInt(model.totalUniqueCount);
+                out.writeInt(model.frequencyCountMap.size());
+                for (final Map.Entry<Integer, Integer> entry : new TreeMap<>(model.frequencyCountMap).entrySet()) {
+                    out.writeInt(entry.getKey());
+                    out.writeInt(entry.getValue());
+                }
+                final long[] vocabulary = model.vocabulary.toLongArray();
+                out.writeInt(vocabulary.length);
+                for (final long bits : vocabulary) {
+                    out.writeLong(bits);
+                }
+            }
+            sections[section] = out.position() - sections[section - 1];
+            section++;
+            out.align();
+            sections[section++] = out.position();
+            out.writeInt(lexicon.size());
+            for (int token = 0; token < lexicon.size(); token++) {
+                out.writeString(lexicon.getWord(token));
+            }
+            sections[section] = out.position() - sections[section - 1];
+            section++;
+            final List<IntSequence> arrays = new ArrayList<>();
+            arrays.addAll(Arrays.asList(trie.childStarts));
+            for (int depth = 1; depth <= trie.maxN; depth++) {
+                arrays.add(trie.words[depth]);
+                arrays.add(trie.counts[depth]);
+                arrays.add(trie.cumulativeCounts[depth]);
+            }
+            for (final IntSequence array : arrays) {
+                out.align();
+                sections[section++] = out.position();
+                for (int i = 0; i < array.size(); i++) {
+                    out.writeInt(array.get(i));
+                }
+                sections[section] = out.position() - sections[section - 1];
+                section++;
+            }
+            for (int depth = 1; depth <= trie.maxN; depth++) {
+                out.align();
+                sections[section++] = out.position();
+                final IntSequence maxDepths = trie.maxDepths[depth];
+                for (int i = 0; i < maxDepths.size(); i++) {
+                    out.writeByte(maxDepths.get(i));
+                }
+                sections[section] = out.position() - sections[section - 1];
+                section++;
+            }
+            out.seek(0);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(trie.maxN);
+            out.writeInt(ns.size());
+            for (final long value : sections) {
+                out.writeLong(value);
+            }
+        }
+    }
+
+    /**
+     * Reads a model file, memory mapping its n-grams.
+     * @param path The file to read.
+     * @return The contents of the file.
+     * @throws IOException If the file could not be read, or isn't a model file of a supported version.
+     */
+    public static ModelFile read(final Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            final ByteBuffer header = map(channel, 0, 16);
+            if (header.getInt() != MAGIC) {
+                throw new IOException(path + " is not a model file");
+            }
+            final int version = header.getInt();
+            if (version != VERSION) {
+                throw new IOException(path + " has unsupported version " + version);
+            }
+            final int maxN = header.getInt();
+            final int numModels = header.getInt();
+            final int numArrays = maxN + 1 + 4 * maxN;
+            final ByteBuffer sectionTable = map(channel, 16, 8 * 2 * (2 + numArrays));
+            final ByteBuffer[] sections = new ByteBuffer[2 + numArrays];
+            for (int i = 0; i < sections.length; i++) {
+                sections[i] = map(channel, sectionTable.getLong(), sectionTable.getLong());
+            }
+            // Read the lexicon onto the heap, in ID order, so that every word gets its old ID back
+            final ByteBuffer lexiconSection = sections[1];
+            final Lexicon lexicon = new Lexicon();
+            final int lexiconSize = lexiconSection.getInt();
+            for (int token = 0; token < lexiconSize; token++) {
+                final String word = readString(lexiconSection);
+                if (lexicon.getOrAdd(word) != token) {
+                    throw new IOException(path + " has a corrupt lexicon");
+                }
+            }
+            // Map the trie
+            final IntSequence[] childStarts = new IntSequence[maxN + 1];
+            final IntSequence[] words = new IntSequence[maxN + 1];
+            final IntSequence[] counts = new IntSequence[maxN + 1];
+            final IntSequence[] cumulativeCounts = new IntSequence[maxN + 1];
+            final IntSequence[] maxDepths = new IntSequence[maxN + 1];
+            int section = 2;
+            for (int depth = 0; depth <= maxN; depth++) {
+                childStarts[depth] = IntSequence.of(sections[section++].asIntBuffer());
+            }
+            for (int depth = 1; depth <= maxN; depth++) {
+                words[depth] = IntSequence.of(sections[section++].asIntBuffer());
+                counts[depth] = IntSequence.of(sections[section++].asIntBuffer());
+                cumulativeCounts[depth] = IntSequence.of(sections[section++].asIntBuffer());
+            }
+            for (int depth = 1; depth <= maxN; depth++) {
+                maxDepths[depth] = IntSequence.ofBytes(sections[section++]);
+            }
+            final NgramTrie trie = new NgramTrie(maxN, words, counts, childStarts, cumulativeCounts, maxDepths);
+            // Read the metadata of every model
+            final ByteBuffer metadata = sections[0];
+            final String name = readString(metadata);
+            final Map<Integer, NgramModel> ngramModels = new HashMap<>();
+            for (int i = 0; i < numModels; i++) {
+                final TrieNgramModel model = new TrieNgramModel(trie, metadata.getInt(), lexicon);
+                model.totalCount = metadata.getInt();
+                model.totalUniqueCount = metadata.getInt();
+                model.frequencyCountMap = new HashMap<>();
+                final int frequencyCountMapSize = metadata.getInt();
+                for (int j = 0; j < frequencyCountMapSize; j++) {
+                    model.frequencyCountMap.put(metadata.getInt(), metadata.getInt());
+                }
+                final long[] vocabulary = new long[metadata.getInt()];
+                for (int j = 0; j < vocabulary.length; j++) {
+                    vocabulary[j] = metadata.getLong();
+                }
+                model.vocabulary = BitSet.valueOf(vocabulary);
+                ngramModels.put(model.getN(), model);
+            }
+            return new ModelFile(name, lexicon, ngramModels);
+        }
+    }
+
+    //==========================================================================
+    // Private static helper methods
+    //==========================================================================
+
+    private static ByteBuffer map(final FileChannel channel, final long offset, final long length) throws IOException {
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("Sections larger than 2GB are not supported");
+        }
+        return channel.map(FileChannel.MapMode.READ_ONLY, offset, length).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static String readString(final ByteBuffer buffer) {
+        final byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Buffers little endian writes to a file channel.
+     */
+    private static final class Output implements AutoCloseable {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+        // The position in the file of the start of the buffer
+        private long bufferStart = 0;
+
+        Output(final FileChannel channel) {
+            this.channel = channel;
+        }
+
+        long position() {
+            return bufferStart + buffer.position();
+        }
+
+        void writeByte(final int value) throws IOException {
+            ensureRemaining(1);
+            buffer.put((byte)value);
+        }
+
+        void writeInt(final int value) throws IOException {
+            ensureRemaining(4);
+            buffer.putInt(value);
+        }
+
+        void writeLong(final long value) throws IOException {
+            ensureRemaining(8);
+            buffer.putLong(value);
+        }
+
+        void writeString(final String value) throws IOException {
+            final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeInt(bytes.length);
+            for (final byte b : bytes) {
+                writeByte(b);
+            }
+        }
+
+        /**
+         * Writes zeros up to the next section boundary.
+         */
+        void align() throws IOException {
+            while (position() % ALIGNMENT != 0) {
+                writeByte(0);
+            }
+        }
+
+        void skip(final int length) throws IOException {
+            for (int i = 0; i < length; i++) {
+                writeByte(0);
+            }
+        }
+
+        void seek(final long position) throws IOException {
+            flush();
+            bufferStart = position;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                flush();
+            } finally {
+                channel.close();
+            }
+        }
+
+        private void ensureRemaining(final int length) throws IOException {
+            if (buffer.remaining() < length) {
+                flush();
+            }
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                bufferStart += channel.write(buffer, bufferStart);
+            }
+            buffer.clear();
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package com.cs5740.models;
+
+import com.cs5740.tokenlist.TokenList;
+
+import java.util.*;
+
+import static com.cs5740.models.NgramModel.NgramModelBuilder;
+
+/**
+ * Adds newly counted n-grams to built models without rebuilding them.
+ * <p>
+ * An updated model is an overlay of the model it was before and a small delta model of every n-gram added since,
+ * whose statistics are worked out in time proportional to the delta (see {@link OverlayNgramModel}). Further updates
+ * merge into the same delta, so lookups never ask more than two models. Once the delta grows past a fraction of the
+ * base, the overlay should be compacted into a single model, which costs as much as building the model did, but can
+ * be done on another thread while the overlay keeps answering lookups. Compaction produces trie-backed models, like
+ * {@link CompactModels}.
+ * <p>
+ * Models of hashed, trie and unigram n-grams can be updated. Nested, back-off and Count-Min models can't.
+ */
+public final class ModelUpdates {
+    // The size of a delta, as a fraction of the size of its base, past which its overlay should be compacted.
+    private static final double COMPACTION_RATIO = 0.25;
+
+    private ModelUpdates() {}
+
+    /**
+     * Adds n-grams to models. The given models are not changed.
+     * @param ngramModels The models to add to, keyed by n.
+     * @param deltas Models of the n-grams to add, keyed by n. These must be hashed or unigram models from the same
+     *               lexicon, and there must be one for every n in ngramModels.
+     * @return A map of updated n-gram models, keyed by n.
+     */
+    public static Map<Integer, NgramModel> add(final Map<Integer, NgramModel> ngramModels,
+                                               final Map<Integer, NgramModel> deltas) {
+        for (final NgramModel model : ngramModels.values()) {
+            if (model instanceof BackoffModel || model instanceof MultigramModel ||
+                    model instanceof CountMinNgramModel) {
+                throw new IllegalArgumentException(model.getClass().getSimpleName() + " can't be updated");
+            }
+        }
+        final Map<Integer, NgramModel> updatedModels = new HashMap<>();
+        for (final Map.Entry<Integer, NgramModel> entry : ngramModels.entrySet()) {
+            final NgramModel model = entry.getValue();
+            final NgramModel delta = deltas.get(entry.getKey());
+            if (model instanceof OverlayNgramModel) {
+                final OverlayNgramModel overlay = (OverlayNgramModel)model;
+                final NgramModelBuilder builder = overlay.delta.deconstruct();
+                builder.absorb(delta.deconstruct());
+                updatedModels.put(entry.getKey(), OverlayNgramModel.create(overlay.base, builder.build()));
+            } else {
+                updatedModels.put(entry.getKey(), OverlayNgramModel.create(model, delta));
+            }
+        }
+        return updatedModels;
+    }
+
+    /**
+     * Returns whether any of the given models has a delta large enough that it should be compacted.
+     * @param ngramModels The models to test, keyed by n.
+     * @return Whether the models should be compacted.
+     */
+    public static boolean needsCompaction(final Map<Integer, NgramModel> ngramModels) {
+        for (final NgramModel model : ngramModels.values()) {
+            if (model instanceof OverlayNgramModel) {
+                final OverlayNgramModel overlay = (OverlayNgramModel)model;
+                if (overlay.delta.totalUniqueCount > overlay.base.totalUniqueCount * COMPACTION_RATIO) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns whether any of the given models has updates that haven't been compacted.
+     * @param ngramModels The models to test, keyed by n.
+     * @return Whether any of the models is an overlay.
+     */
+    public static boolean hasUpdates(final Map<Integer, NgramModel> ngramModels) {
+        for (final NgramModel model : ngramModels.values()) {
+            if (model instanceof OverlayNgramModel) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Folds every update into a single trie shared by every model. The given models are not changed, so this may run
+     * on another thread while they are still in use.
+     * @param ngramModels The models to compact, keyed by n.
+     * @return A map of compact n-gram models with the same counts, keyed by n.
+     */
+    public static Map<Integer, NgramModel> compact(final Map<Integer, NgramModel> ngramModels) {
+        return CompactModels.compact(ngramModels, false);
+    }
+
+    /**
+     * Carries the updates made while models were being compacted over to the compacted models.
+     * @param ngramModels The current models, keyed by n, which may have been updated since compaction began.
+     * @param compactedFrom The models that were compacted, keyed by n.
+     * @param compacted The result of compacting them, keyed by n.
+     * @return A map of n-gram models holding the same n-grams as the current models, keyed by n.
+     */
+    public static Map<Integer, NgramModel> rebase(final Map<Integer, NgramModel> ngramModels,
+                                                  final Map<Integer, NgramModel> compactedFrom,
+                                                  final Map<Integer, NgramModel> compacted) {
+        final Map<Integer, NgramModel> rebasedModels = new HashMap<>();
+        for (final Map.Entry<Integer, NgramModel> entry : ngramModels.entrySet()) {
+            final NgramModel model = entry.getValue();
+            final NgramModel from = compactedFrom.get(entry.getKey());
+            final NgramModel to = compacted.get(entry.getKey());
+            if (model == from) {
+                rebasedModels.put(entry.getKey(), to);
+            } else if (model instanceof OverlayNgramModel && from instanceof OverlayNgramModel &&
+                    ((OverlayNgramModel)model).base == ((OverlayNgramModel)from).base) {
+                // The current delta still holds everything that was compacted, so keep only what was added since
+                final OverlayNgramModel overlay = (OverlayNgramModel)model;
+                rebasedModels.put(entry.getKey(), overlay.rebase(to,
+                        subtract(overlay.delta, ((OverlayNgramModel)from).delta)));
+            } else {
+                // The models were replaced some other way, so the compacted models no longer apply
+                rebasedModels.put(entry.getKey(), model);
+            }
+        }
+        return rebasedModels;
+    }
+
+    //==========================================================================
+    // Private static helper methods
+    //==========================================================================
+
+    /**
+     * Creates a model of the counts of one model minus those of another, which must be no larger.
+     */
+    private static NgramModel subtract(final NgramModel model, final NgramModel other) {
+        final NgramModelBuilder builder = NgramModel.getNgramModelBuilder(model.getN(), model.lexicon);
+        final int[] ngram = new int[model.getN()];
+        final Iterator<TokenList> iterator = model.getIterator();
+        while (iterator.hasNext()) {
+            final TokenList tokens = iterator.next();
+            for (int i = 0; i < ngram.length; i++) {
+                ngram[i] = tokens.get(i);
+            }
+            builder.addTokensNumTimes(tokens, model.getCount(ngram) - other.getCount(ngram));
+        }
+        return builder.build();
+    }
+}
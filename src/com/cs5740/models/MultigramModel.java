@@ -10,25 +10,34 @@ import java.util.*;
  * Represents an n-gram token collection.
  */
 class MultigramModel extends NgramModel {
-    Map<String, NgramModel> nMinusOneTokenCollectionMap = new HashMap<>();
+    Map<Integer, NgramModel> nMinusOneTokenCollectionMap = new HashMap<>();
     int n;
 
-    public String getWord(final TokenList previousTokens, final double p) {
-        final String token = previousTokens.head().toLowerCase();
+    public int getWordId(final TokenList previousTokens, final double p) {
+        final int token = previousTokens.head();
         if (nMinusOneTokenCollectionMap.containsKey(token)) {
-            return nMinusOneTokenCollectionMap.get(token).getWord(previousTokens.tail(), p);
+            return nMinusOneTokenCollectionMap.get(token).getWordId(previousTokens.tail(), p);
         }
-        return "";
+        return Lexicon.NO_ID;
+    }
+
+    @Override
+    AliasTable createAliasTable(final TokenList previousTokens) {
+        final NgramModel nMinusOneNgramModel = nMinusOneTokenCollectionMap.get(previousTokens.head());
+        if (nMinusOneNgramModel == null) {
+            return AliasTable.EMPTY;
+        }
+        return nMinusOneNgramModel.createAliasTable(previousTokens.tail());
     }
 
     @Override
     public int getUnsmoothedTokenFrequency(final TokenList tokens) {
         // Assume we got more than one token
-        final String token = tokens.head().toLowerCase();
+        final int token = tokens.head();
         if (nMinusOneTokenCollectionMap.containsKey(token)) {
             return nMinusOneTokenCollectionMap.get(token).getUnsmoothedTokenFrequency(tokens.tail());
-        } else if (!isInVocabulary(token) && nMinusOneTokenCollectionMap.containsKey(UNKNOWN_WORD_TOKEN)) {
-            return nMinusOneTokenCollectionMap.get(UNKNOWN_WORD_TOKEN).getUnsmoothedTokenFrequency(tokens.tail());
+        } else if (!isInVocabulary(token) && nMinusOneTokenCollectionMap.containsKey(Lexicon.UNKNOWN_ID)) {
+            return nMinusOneTokenCollectionMap.get(Lexicon.UNKNOWN_ID).getUnsmoothedTokenFrequency(tokens.tail());
         }
         return 0;
     }
@@ -41,11 +50,11 @@ class MultigramModel extends NgramModel {
     @Override
     public Iterator<TokenList> getIterator() {
         return new Iterator<TokenList>() {
-            final Iterator<Map.Entry<String, NgramModel>> ngramIterator =
+            final Iterator<Map.Entry<Integer, NgramModel>> ngramIterator =
                     nMinusOneTokenCollectionMap.entrySet().iterator();
             Iterator<TokenList> tokenListIterator = null;
             int wordsLeft = totalUniqueCount;
-            String token;
+            int token;
 
             @Override
             public boolean hasNext() {
@@ -59,7 +68,7 @@ class MultigramModel extends NgramModel {
                 }
                 while (tokenListIterator == null || !tokenListIterator.hasNext()) {
                     if (ngramIterator.hasNext()) {
-                        final Map.Entry<String, NgramModel> nextItem = ngramIterator.next();
+                        final Map.Entry<Integer, NgramModel> nextItem = ngramIterator.next();
                         tokenListIterator = nextItem.getValue().getIterator();
                         token = nextItem.getKey();
                     } else {
@@ -75,24 +84,26 @@ class MultigramModel extends NgramModel {
     }
 
     public static class MultigramModelBuilder implements NgramModelBuilder {
-        Map<String, NgramModelBuilder> frequencyMap = new HashMap<>();
+        Map<Integer, NgramModelBuilder> frequencyMap = new HashMap<>();
         final int n;
+        final Lexicon lexicon;
 
-        public MultigramModelBuilder(final int n) {
+        public MultigramModelBuilder(final int n, final Lexicon lexicon) {
             this.n = n;
+            this.lexicon = lexicon;
         }
 
         @Override
-        public NgramModelBuilder collapseRareWords(final Set<String> rareWords) {
-            if (rareWords.size() == 0) {
+        public NgramModelBuilder collapseRareWords(final BitSet rareWords) {
+            if (rareWords.isEmpty()) {
                 return this;
             }
             frequencyMap.values().forEach(b -> b.collapseRareWords(rareWords));
-            Map<String, NgramModelBuilder> newMap = new HashMap<>();
-            newMap.put(UNKNOWN_WORD_TOKEN, NgramModel.getNgramModelBuilder(n - 1));
+            Map<Integer, NgramModelBuilder> newMap = new HashMap<>();
+            newMap.put(Lexicon.UNKNOWN_ID, NgramModel.getNestedNgramModelBuilder(n - 1, lexicon));
             frequencyMap.keySet().forEach(k -> {
-                if (rareWords.contains(k)) {
-                    newMap.get(UNKNOWN_WORD_TOKEN).absorb(frequencyMap.get(k));
+                if (rareWords.get(k)) {
+                    newMap.get(Lexicon.UNKNOWN_ID).absorb(frequencyMap.get(k));
                 } else {
                     newMap.put(k, frequencyMap.get(k));
                 }
@@ -104,9 +115,9 @@ class MultigramModel extends NgramModel {
         @Override
         public NgramModelBuilder addTokens(final TokenList tokens) {
             // Assume num tokens > 1
-            final String token = tokens.head();
+            final int token = tokens.head();
             if (!frequencyMap.containsKey(token)) {
-                frequencyMap.put(token, NgramModel.getNgramModelBuilder(n - 1));
+                frequencyMap.put(token, NgramModel.getNestedNgramModelBuilder(n - 1, lexicon));
             }
             frequencyMap.get(token).addTokens(tokens.tail());
             return this;
@@ -118,9 +129,9 @@ class MultigramModel extends NgramModel {
                 return this;
             }
             // Assume num tokens > 1
-            final String token = tokens.head();
+            final int token = tokens.head();
             if (!frequencyMap.containsKey(token)) {
-                frequencyMap.put(token, NgramModel.getNgramModelBuilder(n - 1));
+                frequencyMap.put(token, NgramModel.getNestedNgramModelBuilder(n - 1, lexicon));
             }
             frequencyMap.get(token).addTokensNumTimes(tokens.tail(), num);
             return this;
@@ -139,15 +150,30 @@ class MultigramModel extends NgramModel {
             return this;
         }
 
+        @Override
+        public NgramModelBuilder translate(final int[] mapping, final Lexicon lexicon) {
+            final MultigramModelBuilder builder = new MultigramModelBuilder(n, lexicon);
+            frequencyMap.forEach((k, v) -> {
+                final NgramModelBuilder child = v.translate(mapping, lexicon);
+                if (builder.frequencyMap.containsKey(mapping[k])) {
+                    builder.frequencyMap.get(mapping[k]).absorb(child);
+                } else {
+                    builder.frequencyMap.put(mapping[k], child);
+                }
+            });
+            return builder;
+        }
+
         @Override
         public NgramModel build() {
             MultigramModel model = new MultigramModel();
             model.n = n;
+            model.lexicon = lexicon;
             model.frequencyCountMap = new HashMap<>();
-            model.vocabulary = new HashSet<>();
-            for (final String key : frequencyMap.keySet()) {
+            model.vocabulary = new BitSet();
+            for (final Integer key : frequencyMap.keySet()) {
                 NgramModel nMinusOneNgramModel = frequencyMap.get(key).build();
-                model.vocabulary.addAll(nMinusOneNgramModel.vocabulary);
+                model.vocabulary.or(nMinusOneNgramModel.vocabulary);
                 model.totalCount += nMinusOneNgramModel.totalCount;
                 model.totalUniqueCount += nMinusOneNgramModel.totalUniqueCount;
                 for (final Integer key2 : nMinusOneNgramModel.frequencyCountMap.keySet()) {
@@ -2,6 +2,7 @@ package com.cs5740.models;
 
 import com.cs5740.Corpus;
 import com.cs5740.SmoothOptions;
+import com.cs5740.tokenlist.ArrayTokenList;
 import com.cs5740.tokenlist.LinkedTokenList;
 import com.cs5740.tokenlist.TokenList;
 
@@ -14,7 +15,14 @@ public abstract class NgramModel {
     int totalCount = 0;
     int totalUniqueCount = 0;
     Map<Integer, Integer> frequencyCountMap;
-    Set<String> vocabulary;
+    BitSet vocabulary;
+    Lexicon lexicon;
+    // Indexed by raw count. The Good-Turing smoothed count of every raw count below the largest cutoff asked for so
+    // far. This is built from frequencyCountMap on first use, and grown when a larger cutoff comes along.
+    private volatile double[] smoothedCounts = new double[0];
+    // The largest raw count in frequencyCountMap, or -1 if it hasn't been computed yet. The table never grows past
+    // it, since every larger raw count is its own smoothed count.
+    private volatile int smoothedCountsLimit = -1;
     public static final String UNKNOWN_WORD_TOKEN = "<unk>";
 
     /**
@@ -25,13 +33,72 @@ public abstract class NgramModel {
      * If the token doesn't exist, this function returns zero.
      */
     public double getProbability(final TokenList tokens, final SmoothOptions smoothOptions) {
-        double result = getTokenFrequency(tokens, smoothOptions) / (double)totalCount;
+        final double tokenFrequency = getTokenFrequency(tokens, smoothOptions);
+        final double result = tokenFrequency / (double)totalCount;
         if (result < 0) {
-            return getTokenFrequency(tokens, smoothOptions);
+            return tokenFrequency;
         }
         return result;
     }
 
+    /**
+     * Gets the probability of an n-gram from its raw count, the way {@link #getProbability(TokenList, SmoothOptions)}
+     * does once it has found the count.
+     * @param count The raw count of the n-gram.
+     * @param smoothOptions The smoothing option.
+     * @return A probability value between 0 and 1.
+     */
+    double getProbabilityOfCount(final int count, final SmoothOptions smoothOptions) {
+        final double tokenFrequency = getSmoothedCount(count, smoothOptions.getCutoff());
+        final double result = tokenFrequency / (double)totalCount;
+        return result < 0 ? tokenFrequency : result;
+    }
+
+    /**
+     * Gets the probabilities of a run of overlapping n-grams, like {@link #getProbability(TokenList, SmoothOptions)}
+     * does for each one. N-gram i is made of the n word IDs starting at tokens[from + i], so a run of numNgrams
+     * n-grams spans numNgrams + n - 1 tokens.
+     * <p>
+     * Every lookup is done first, in one batch, and then the smoothing is applied in a single loop over primitive
+     * arrays, which saves the overhead of a call per n-gram.
+     * @param tokens An array of word IDs.
+     * @param from The index in the array at which the first n-gram starts.
+     * @param numNgrams The number of n-grams.
+     * @param smoothOptions The smoothing option.
+     * @param probabilities Receives the probability of n-gram i at index i.
+     */
+    public void getProbabilities(final int[] tokens, final int from, final int numNgrams,
+                                 final SmoothOptions smoothOptions, final double[] probabilities) {
+        final int[] frequencies = new int[numNgrams];
+        getUnsmoothedTokenFrequencies(tokens, from, numNgrams, frequencies);
+        final int cutoff = smoothOptions.getCutoff();
+        final double[] table = getSmoothedCounts(cutoff);
+        final double total = totalCount;
+        for (int i = 0; i < numNgrams; i++) {
+            final int frequency = frequencies[i];
+            final double tokenFrequency = frequency < cutoff && frequency < table.length ? table[frequency] : frequency;
+            final double result = tokenFrequency / total;
+            probabilities[i] = result < 0 ? tokenFrequency : result;
+        }
+    }
+
+    /**
+     * Gets the natural log probabilities of a run of overlapping n-grams.
+     * See {@link #getProbabilities(int[], int, int, SmoothOptions, double[])}.
+     * @param tokens An array of word IDs.
+     * @param from The index in the array at which the first n-gram starts.
+     * @param numNgrams The number of n-grams.
+     * @param smoothOptions The smoothing option.
+     * @param logProbabilities Receives the log probability of n-gram i at index i.
+     */
+    public void getLogProbabilities(final int[] tokens, final int from, final int numNgrams,
+                                    final SmoothOptions smoothOptions, final double[] logProbabilities) {
+        getProbabilities(tokens, from, numNgrams, smoothOptions, logProbabilities);
+        for (int i = 0; i < numNgrams; i++) {
+            logProbabilities[i] = Math.log(logProbabilities[i]);
+        }
+    }
+
     /**
      * Returns a word determined by the given number.
      * <p>
@@ -42,7 +109,138 @@ public abstract class NgramModel {
      * @return The word determined by the given number. An empty string is returned if p falls outside
      * of the required range, or there are no tokens in this collection.
      */
-    public abstract String getWord(final TokenList previousTokens, final double p);
+    public String getWord(final TokenList previousTokens, final double p) {
+        return lexicon.getWord(getWordId(previousTokens, p));
+    }
+
+    /**
+     * Returns the ID of a word determined by the given number. See {@link #getWord(TokenList, double)}.
+     *
+     * @param p A number in the range of [0.0, 1.0). This number should ideally be randomly generated.
+     * @return The ID of the word determined by the given number. {@link Lexicon#NO_ID} is returned if p falls
+     * outside of the required range, or there are no tokens in this collection.
+     */
+    public abstract int getWordId(final TokenList previousTokens, final double p);
+
+    /**
+     * Creates an alias table for the distribution that {@link #getWordId(TokenList, double)} samples from, given a
+     * context. See {@link AliasSampler}.
+     * @param previousTokens The context. This is ignored by unigram models.
+     * @return A new table, which is empty if no words follow the context, or null if this model can't list the
+     * words that follow a context.
+     */
+    AliasTable createAliasTable(final TokenList previousTokens) {
+        final Continuations continuations = getContinuations(previousTokens);
+        if (continuations == null) {
+            return null;
+        }
+        final double[] weights = new double[continuations.counts.length];
+        for (int i = 0; i < weights.length; i++) {
+            weights[i] = continuations.counts[i];
+        }
+        return new AliasTable(continuations.words, weights);
+    }
+
+    /**
+     * Lists the words that follow a context, with their counts, which is the distribution that
+     * {@link #getWordId(TokenList, double)} samples from.
+     * @param previousTokens The context, which should hold at least n - 1 tokens. This is ignored by unigram models.
+     * @return The words that follow the context, which are empty if there are none, or null if this model can't list
+     * them.
+     */
+    Continuations getContinuations(final TokenList previousTokens) {
+        return null;
+    }
+
+    /**
+     * Gets the count of an n-gram as it is stored, without replacing unknown words with the unknown word token.
+     * This is supported by every model that {@link OverlayNgramModel} can overlay.
+     * @param ngram An array holding the n word IDs of the n-gram.
+     * @return The count of the n-gram, or zero if it isn't in this model.
+     */
+    int getCount(final int[] ngram) {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " can't look up raw counts");
+    }
+
+    /**
+     * Returns whether any n-gram in this model starts with the given word IDs.
+     * @param prefix An array starting with the word IDs to find.
+     * @param length The number of word IDs in the prefix, from 1 to n.
+     * @return Whether there is an n-gram with the given prefix.
+     */
+    boolean containsPrefix(final int[] prefix, final int length) {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " can't look up prefixes");
+    }
+
+    /**
+     * Returns whether any n-gram in this model starts with the given word IDs and ends with the given word.
+     * @param prefix An array starting with the word IDs to find.
+     * @param length The number of word IDs in the prefix, from 1 to n - 2.
+     * @param word The last word of the n-gram.
+     * @return Whether there is such an n-gram.
+     */
+    boolean containsLastWord(final int[] prefix, final int length, final int word) {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " can't look up prefixes");
+    }
+
+    /**
+     * Gets the frequency of an n-gram, resolving its unknown words. The n-gram is walked one word at a time,
+     * replacing words that never follow the words before them with the unknown word token, the same way
+     * MultigramModel does at each level of its tree. This only needs {@link #getCount(int[])},
+     * {@link #containsPrefix(int[], int)} and {@link #containsLastWord(int[], int, int)}.
+     * @param tokens An array containing the n-gram.
+     * @param from The index in the array at which the n-gram starts.
+     * @return The frequency of the n-gram, with its unknown words resolved.
+     */
+    int getResolvedTokenFrequency(final int[] tokens, final int from) {
+        final int n = getN();
+        final int[] resolvedTokens = new int[n];
+        for (int i = 0; i < n; i++) {
+            resolvedTokens[i] = tokens[from + i];
+            if (containsPrefix(resolvedTokens, i + 1)) {
+                continue;
+            }
+            if (isInVocabulary(resolvedTokens, i)) {
+                return 0;
+            }
+            resolvedTokens[i] = Lexicon.UNKNOWN_ID;
+            if (!containsPrefix(resolvedTokens, i + 1)) {
+                return 0;
+            }
+        }
+        return getCount(resolvedTokens);
+    }
+
+    /**
+     * Gets the frequency of an n-gram, resolving its unknown words. See
+     * {@link #getResolvedTokenFrequency(int[], int)}.
+     * @param tokens The n-gram.
+     * @return The frequency of the n-gram, with its unknown words resolved.
+     */
+    int getResolvedTokenFrequency(final TokenList tokens) {
+        final int[] ids = new int[getN()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = tokens.get(i);
+        }
+        return getResolvedTokenFrequency(ids, 0);
+    }
+
+    /**
+     * Returns whether a word is in the vocabulary of the n-grams that start with the words before it, which is the
+     * set of words those n-grams end with. This matches the vocabulary of each level of a MultigramModel.
+     * @param tokens An array holding the words before the word to test, followed by the word to test.
+     * @param index The position of the word to test.
+     * @return Whether the word is in the vocabulary of its prefix.
+     */
+    boolean isInVocabulary(final int[] tokens, final int index) {
+        if (index == 0) {
+            return isInVocabulary(tokens[0]);
+        } else if (index == getN() - 1 || !isInVocabulary(tokens[index])) {
+            // Every word that ends an n-gram is in this model's vocabulary, so there's no need to search for others
+            return false;
+        }
+        return containsLastWord(tokens, index, tokens[index]);
+    }
 
     /**
      * Returns the frequency with which a list of tokens appears in the corpus, with
@@ -51,19 +249,28 @@ public abstract class NgramModel {
      * @return The frequency of the given list of tokens.
      */
     public double getTokenFrequency(final TokenList tokens, final SmoothOptions smoothOptions) {
-        int tokenFrequency = getUnsmoothedTokenFrequency(tokens);
-        if (tokenFrequency >= smoothOptions.getCutoff()) {
+        return getSmoothedCount(getUnsmoothedTokenFrequency(tokens), smoothOptions.getCutoff());
+    }
+
+    /**
+     * Smooths a raw count with Good-Turing smoothing, which replaces a count c with (c + 1) N(c + 1) / N(c), where
+     * N(c) is the number of n-grams that appear c times. Counts at or above the cutoff, and counts for which N(c + 1)
+     * is unknown, are left alone, except that unseen n-grams take N(1) from the rarest count that was seen if no
+     * n-gram was seen exactly once.
+     * <p>
+     * This is a single array read once the table of smoothed counts covers the cutoff.
+     * @param count The raw count.
+     * @param cutoff The count at which smoothing stops.
+     * @return The smoothed count.
+     */
+    double getSmoothedCount(final int count, final int cutoff) {
+        if (count >= cutoff) {
             // Use unsmoothed
-            return tokenFrequency;
-        } else {
-            // Use smoothed
-            if (frequencyCountMap.get(tokenFrequency + 1) == null) {
-                return tokenFrequency;
-            }
-            int frequencyCount = frequencyCountMap.get(tokenFrequency);
-            int oneLargerFrequencyCount = frequencyCountMap.get(tokenFrequency + 1);
-            return (tokenFrequency + 1) * (oneLargerFrequencyCount / (double)frequencyCount);
+            return count;
         }
+        final double[] table = getSmoothedCounts(cutoff);
+        // Past the largest count, N(c + 1) is unknown
+        return count < table.length ? table[count] : count;
     }
 
     /**
@@ -73,6 +280,22 @@ public abstract class NgramModel {
      */
     public abstract int getUnsmoothedTokenFrequency(final TokenList tokens);
 
+    /**
+     * Gets the unsmoothed frequencies of a run of overlapping n-grams. N-gram i is made of the n word IDs starting at
+     * tokens[from + i]. Models may override this to group their lookups.
+     * @param tokens An array of word IDs.
+     * @param from The index in the array at which the first n-gram starts.
+     * @param numNgrams The number of n-grams.
+     * @param frequencies Receives the unsmoothed frequency of n-gram i at index i.
+     */
+    public void getUnsmoothedTokenFrequencies(final int[] tokens, final int from, final int numNgrams,
+                                              final int[] frequencies) {
+        final ArrayTokenList window = new ArrayTokenList(tokens, from, getN());
+        for (int i = 0; i < numNgrams; i++) {
+            frequencies[i] = getUnsmoothedTokenFrequency(window.moveTo(from + i));
+        }
+    }
+
     /**
      * Gets the total number of n-grams in this model.
      * @return The total number of n-grams in this model.
@@ -91,11 +314,11 @@ public abstract class NgramModel {
 
     /**
      * Returns whether a single word type is in this model's vocabulary.
-     * @param token The word type to test.
+     * @param token The ID of the word type to test.
      * @return Whether a single word type is in this model's vocabulary.
      */
-    public boolean isInVocabulary(final String token) {
-        return vocabulary.contains(token);
+    public boolean isInVocabulary(final int token) {
+        return token >= 0 && vocabulary.get(token);
     }
 
     /**
@@ -103,7 +326,15 @@ public abstract class NgramModel {
      * @return The total number of unique words in this model.
      */
     public int getVocabularySize() {
-        return vocabulary.size();
+        return vocabulary.cardinality();
+    }
+
+    /**
+     * Gets the lexicon that maps the word IDs used by this model to strings.
+     * @return The lexicon of this model.
+     */
+    public Lexicon getLexicon() {
+        return lexicon;
     }
 
     /**
@@ -118,7 +349,7 @@ public abstract class NgramModel {
         TokenList modifiedTokenList = tokenList;
         final TokenList result = new LinkedTokenList();
         for (int i = 0; i < tokenList.size(); i++) {
-            result.addLast(isInVocabulary(modifiedTokenList.head()) ? modifiedTokenList.head() : UNKNOWN_WORD_TOKEN);
+            result.addLast(isInVocabulary(modifiedTokenList.head()) ? modifiedTokenList.head() : Lexicon.UNKNOWN_ID);
             modifiedTokenList = modifiedTokenList.tail();
         }
         return result;
@@ -135,7 +366,7 @@ public abstract class NgramModel {
      * @return A builder pre-initialized with the information contained in this n-gram model.
      */
     public NgramModelBuilder deconstruct() {
-        final NgramModelBuilder builder = getNgramModelBuilder(getN());
+        final NgramModelBuilder builder = getNgramModelBuilder(getN(), lexicon);
         final Iterator<TokenList> iterator = getIterator();
         while (iterator.hasNext()) {
             final TokenList tokenList = iterator.next();
@@ -151,25 +382,41 @@ public abstract class NgramModel {
     public abstract Iterator<TokenList> getIterator();
 
     static class TokenFrequencyObject {
-        public String value;
+        public int value;
         public int frequency;
         public int cumulativeFrequency;
 
         /**
          * Constructs a new instance of the TokenFrequencyObject class.
          *
-         * @param value               The string value associated with this token.
+         * @param value               The word ID associated with this token.
          * @param frequency           The frequency at which this token appears in the corpus.
          * @param cumulativeFrequency The sum of all token frequencies to the left of this token
          *                            in the corpus's list of tokens.
          */
-        public TokenFrequencyObject(String value, int frequency, int cumulativeFrequency) {
+        public TokenFrequencyObject(int value, int frequency, int cumulativeFrequency) {
             this.value = value;
             this.frequency = frequency;
             this.cumulativeFrequency = cumulativeFrequency;
         }
     }
 
+    /**
+     * The words that follow a context, and how many times each one does.
+     */
+    static final class Continuations {
+        static final Continuations EMPTY = new Continuations(new int[0], new int[0]);
+
+        final int[] words;
+        // Indexed like words.
+        final int[] counts;
+
+        Continuations(final int[] words, final int[] counts) {
+            this.words = words;
+            this.counts = counts;
+        }
+    }
+
     /**
      * An abstract class for n-gram model object builders.
      */
@@ -177,10 +424,10 @@ public abstract class NgramModel {
         /**
          * Turns every occurrence of a word in the input set into the unknown word token, and
          * refactors accordingly.
-         * @param rareWords The set of words the turn into unknown words.
+         * @param rareWords The IDs of the words the turn into unknown words.
          * @return A reference to this object.
          */
-        NgramModelBuilder collapseRareWords(final Set<String> rareWords);
+        NgramModelBuilder collapseRareWords(final BitSet rareWords);
 
         /**
          * Adds an n-gram to this builder.
@@ -205,6 +452,16 @@ public abstract class NgramModel {
          */
         NgramModelBuilder absorb(final NgramModelBuilder other);
 
+        /**
+         * Creates a builder holding the same n-grams as this one, with every word ID translated into another
+         * lexicon. Words that are translated into the same ID have their counts merged.
+         * This builder should not be used afterwards, since the new builder may share its data.
+         * @param mapping The new ID of every word, indexed by its old ID.
+         * @param lexicon The lexicon from which the new IDs come.
+         * @return A new builder.
+         */
+        NgramModelBuilder translate(final int[] mapping, final Lexicon lexicon);
+
         /**
          * Builds a new n-gram model from this object.
          * @return A new n-gram model object.
@@ -215,13 +472,63 @@ public abstract class NgramModel {
     /**
      * Returns a builder object that will build the appropriate n-gram model, given n.
      * @param n The parameter for the n-gram model.
+     * @param lexicon The lexicon from which the word IDs given to the builder come.
      * @return A builder object that may be used to build an n-gram model.
      */
-    public static NgramModelBuilder getNgramModelBuilder(final int n) {
+    public static NgramModelBuilder getNgramModelBuilder(final int n, final Lexicon lexicon) {
         if (n == 1) {
-            return new UnigramModel.UnigramModelBuilder();
+            return new UnigramModel.UnigramModelBuilder(lexicon);
         } else {
-            return new MultigramModel.MultigramModelBuilder(n);
+            return new HashedNgramModel.HashedNgramModelBuilder(n, lexicon);
+        }
+    }
+
+    /**
+     * Returns a builder object that many threads can add n-grams to at the same time, and that builds the same model
+     * as the builder returned by {@link #getNgramModelBuilder(int, Lexicon)}. See {@link ConcurrentNgramModelBuilder}.
+     * @param n The parameter for the n-gram model.
+     * @param lexicon The lexicon from which the word IDs given to the builder come.
+     * @param concurrency The number of threads expected to add n-grams at the same time.
+     * @return A builder object that may be used to build an n-gram model.
+     */
+    public static NgramModelBuilder getConcurrentNgramModelBuilder(final int n, final Lexicon lexicon,
+                                                                   final int concurrency) {
+        return new ConcurrentNgramModelBuilder(n, lexicon, concurrency);
+    }
+
+    /**
+     * Returns a builder object that approximates the counts of n-grams in a fixed amount of memory, whatever the size
+     * of the corpus. Unigrams are still counted exactly. See {@link CountMinNgramModel}.
+     * @param n The parameter for the n-gram model.
+     * @param lexicon The lexicon from which the word IDs given to the builder come.
+     * @param width The number of cells in every row of the sketch. Counts are overestimated by at most about
+     *              e / width of the model's total count.
+     * @param depth The number of rows in the sketch, from 1 to 32. The bound on the error holds with a probability
+     *              of at least 1 - e^-depth.
+     * @param heavyHitters The number of frequent n-grams to count exactly.
+     * @return A builder object that may be used to build an n-gram model.
+     */
+    public static NgramModelBuilder getCountMinNgramModelBuilder(final int n, final Lexicon lexicon, final int width,
+                                                                 final int depth, final int heavyHitters) {
+        if (n == 1) {
+            return new UnigramModel.UnigramModelBuilder(lexicon);
+        } else {
+            return new CountMinNgramModel.CountMinNgramModelBuilder(n, lexicon, width, depth, heavyHitters);
+        }
+    }
+
+    /**
+     * Returns a builder object that stores n-grams as a tree of maps, one per context prefix.
+     * This uses a lot more memory than the builders returned by {@link #getNgramModelBuilder(int, Lexicon)}.
+     * @param n The parameter for the n-gram model.
+     * @param lexicon The lexicon from which the word IDs given to the builder come.
+     * @return A builder object that may be used to build an n-gram model.
+     */
+    public static NgramModelBuilder getNestedNgramModelBuilder(final int n, final Lexicon lexicon) {
+        if (n == 1) {
+            return new UnigramModel.UnigramModelBuilder(lexicon);
+        } else {
+            return new MultigramModel.MultigramModelBuilder(n, lexicon);
         }
     }
 
@@ -242,4 +549,70 @@ public abstract class NgramModel {
                 return n + "-gram";
         }
     }
+
+    //==========================================================================
+    // Private helper methods
+    //==========================================================================
+
+    /**
+     * Gets the table of smoothed counts, which covers every count below a cutoff, or every count up to the largest
+     * one, whichever is smaller. The table is only grown, under the lock, the first time it falls short.
+     * @param cutoff The count at which smoothing stops.
+     * @return The table of smoothed counts.
+     */
+    private double[] getSmoothedCounts(final int cutoff) {
+        final double[] table = smoothedCounts;
+        final int limit = smoothedCountsLimit;
+        if (limit >= 0 && table.length > Math.min(cutoff - 1, limit)) {
+            return table;
+        }
+        return growSmoothedCounts(cutoff);
+    }
+
+    /**
+     * Makes sure the table of smoothed counts covers every count below a cutoff, or every count up to the largest
+     * one, whichever is smaller.
+     * @param cutoff The count at which smoothing stops.
+     * @return The table of smoothed counts.
+     */
+    private synchronized double[] growSmoothedCounts(final int cutoff) {
+        if (smoothedCountsLimit < 0) {
+            smoothedCountsLimit = frequencyCountMap.isEmpty() ? 0 : Collections.max(frequencyCountMap.keySet());
+        }
+        final int length = Math.min(cutoff, smoothedCountsLimit + 1);
+        if (length <= smoothedCounts.length) {
+            return smoothedCounts;
+        }
+        final double[] table = new double[length];
+        for (int count = 0; count < length; count++) {
+            final Integer frequencyCount = frequencyCountMap.get(count);
+            Integer oneLargerFrequencyCount = frequencyCountMap.get(count + 1);
+            if (count == 0 && oneLargerFrequencyCount == null && frequencyCount != null && frequencyCount > 0) {
+                // A sketch whose collisions push every estimate past 1 has no singletons, and unseen n-grams would get
+                // no probability at all
+                oneLargerFrequencyCount = getRarestFrequencyCount();
+            }
+            if (frequencyCount == null || oneLargerFrequencyCount == null) {
+                table[count] = count;
+            } else {
+                table[count] = (count + 1) * (oneLargerFrequencyCount / (double)frequencyCount);
+            }
+        }
+        smoothedCounts = table;
+        return table;
+    }
+
+    /**
+     * Gets the number of n-grams that share the smallest nonzero count.
+     * @return The number of n-grams, or null if no n-gram was seen.
+     */
+    private Integer getRarestFrequencyCount() {
+        int rarest = Integer.MAX_VALUE;
+        for (final Map.Entry<Integer, Integer> entry : frequencyCountMap.entrySet()) {
+            if (entry.getKey() > 0 && entry.getKey() < rarest && entry.getValue() > 0) {
+                rarest = entry.getKey();
+            }
+        }
+        return rarest < Integer.MAX_VALUE ? frequencyCountMap.get(rarest) : null;
+    }
 }
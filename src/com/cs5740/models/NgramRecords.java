@@ -0,0 +1,190 @@
+package com.cs5740.models;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Reads, writes and merges streams of n-gram counts, such as the runs of an {@link ExternalCountingTrie} and the
+ * records of a {@link PartialCountFile}.
+ * <p>
+ * A stream holds a record per n-gram: its length, its word IDs and its count. A length of 0 ends the stream. The
+ * records are in pre-order: each n-gram comes just before the n-grams that extend it, and the n-grams that extend
+ * the same n-gram by one word come in order of that word. Streams that are sorted the same way can be merged in a
+ * single pass that holds one record of each.
+ */
+final class NgramRecords {
+    private NgramRecords() {}
+
+    /**
+     * Writes a record.
+     * @param out The stream to write to.
+     * @param depth The length of the n-gram.
+     * @param key An array starting with the word IDs of the n-gram.
+     * @param count The count of the n-gram.
+     * @throws IOException If the record could not be written.
+     */
+    static void write(final DataOutputStream out, final int depth, final int[] key, final int count)
+            throws IOException {
+        out.writeInt(depth);
+        for (int i = 0; i < depth; i++) {
+            out.writeInt(key[i]);
+        }
+        out.writeInt(count);
+    }
+
+    /**
+     * Writes every node of a frozen trie as a record in pre-order, followed by the end of the stream.
+     * @param out The stream to write to.
+     * @param trie The trie to write.
+     * @param words The word ID to write for every word in the trie, indexed by its ID in the trie, or null to write
+     *              the IDs in the trie. The order of the stream is always the order of the trie's IDs.
+     * @throws IOException If the records could not be written.
+     */
+    static void write(final DataOutputStream out, final NgramTrie trie, final int[] words) throws IOException {
+        writeNodes(out, trie, words, 1, 0, trie.size(1), new int[trie.maxN]);
+        out.writeInt(0);
+    }
+
+    /**
+     * Merges sorted streams into a single stream of records in pre-order, adding up the counts of the n-grams that
+     * are in more than one. The readers are closed.
+     * @param readers The streams to merge, which may hold n-grams of up to maxN words.
+     * @param maxN The longest n-gram in any stream.
+     * @param sink The sink that receives every merged record.
+     * @throws IOException If a stream could not be read, or the sink failed.
+     */
+    static void merge(final List<Reader> readers, final int maxN, final Sink sink) throws IOException {
+        final PriorityQueue<Reader> queue = new PriorityQueue<>(Math.max(1, readers.size()), Reader::compareTo);
+        try {
+            for (final Reader reader : readers) {
+                if (reader.next()) {
+                    queue.add(reader);
+                }
+            }
+            final int[] key = new int[maxN];
+            while (!queue.isEmpty()) {
+                final Reader first = queue.poll();
+                final int depth = first.depth;
+                System.arraycopy(first.key, 0, key, 0, depth);
+                int count = first.count;
+                if (first.next()) {
+                    queue.add(first);
+                }
+                while (!queue.isEmpty() && queue.peek().compareTo(depth, key) == 0) {
+                    final Reader reader = queue.poll();
+                    count += reader.count;
+                    if (reader.next()) {
+                        queue.add(reader);
+                    }
+                }
+                sink.accept(depth, key, count);
+            }
+        } finally {
+            for (final Reader reader : readers) {
+                reader.close();
+            }
+        }
+    }
+
+    //==========================================================================
+    // Private static helper methods
+    //==========================================================================
+
+    /**
+     * Writes a range of nodes and their subtrees in pre-order.
+     */
+    private static void writeNodes(final DataOutputStream out, final NgramTrie trie, final int[] words,
+                                   final int depth, final int from, final int to, final int[] key)
+            throws IOException {
+        for (int node = from; node < to; node++) {
+            final int word = trie.words[depth].get(node);
+            key[depth - 1] = words == null ? word : words[word];
+            write(out, depth, key, trie.counts[depth].get(node));
+            if (depth < trie.maxN) {
+                writeNodes(out, trie, words, depth + 1, trie.childStart(depth, node), trie.childStart(depth, node + 1),
+                        key);
+            }
+        }
+    }
+
+    /**
+     * Receives merged records.
+     */
+    interface Sink {
+        void accept(final int depth, final int[] key, final int count) throws IOException;
+    }
+
+    /**
+     * Reads the records of a stream one at a time.
+     */
+    static final class Reader implements Closeable {
+        private final DataInputStream in;
+        private final int[] mapping;
+        // The current record.
+        int depth;
+        final int[] key;
+        int count;
+
+        /**
+         * Creates a reader of the records of a stream.
+         * @param in The stream, positioned at its first record.
+         * @param maxN The longest n-gram in the stream.
+         * @param mapping The word ID to give every word in the stream as it is read, indexed by its ID in the stream,
+         *                or null to keep the IDs in the stream. The stream must be sorted by the new IDs.
+         */
+        Reader(final DataInputStream in, final int maxN, final int[] mapping) {
+            this.in = in;
+            this.mapping = mapping;
+            this.key = new int[maxN];
+        }
+
+        /**
+         * Creates a reader of the records of a file that holds nothing else.
+         * @param file The file to read.
+         * @param maxN The longest n-gram in the file.
+         * @throws IOException If the file could not be opened.
+         */
+        Reader(final File file, final int maxN) throws IOException {
+            this(new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16)), maxN, null);
+        }
+
+        /**
+         * Reads the next record.
+         * @return Whether there was one.
+         */
+        boolean next() throws IOException {
+            depth = in.readInt();
+            if (depth == 0) {
+                return false;
+            }
+            for (int i = 0; i < depth; i++) {
+                key[i] = mapping == null ? in.readInt() : mapping[in.readInt()];
+            }
+            count = in.readInt();
+            return true;
+        }
+
+        /**
+         * Compares the current record's n-gram with another in pre-order, where an n-gram comes before every n-gram
+         * that extends it.
+         */
+        int compareTo(final int otherDepth, final int[] otherKey) {
+            final int length = Math.min(depth, otherDepth);
+            for (int i = 0; i < length; i++) {
+                if (key[i] != otherKey[i]) {
+                    return Integer.compare(key[i], otherKey[i]);
+                }
+            }
+            return Integer.compare(depth, otherDepth);
+        }
+
+        int compareTo(final Reader other) {
+            return compareTo(other.depth, other.key);
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
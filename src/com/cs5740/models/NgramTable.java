@@ -0,0 +1,349 @@
+package com.cs5740.models;
+
+import com.cs5740.tokenlist.TokenList;
+
+import java.util.Arrays;
+
+/**
+ * An open-addressing hash table from n-grams of word IDs to int counts.
+ * <p>
+ * Every key is a fixed-width run of n word IDs, and all keys live back to back in a single int array, so an entry
+ * costs (n + 1) ints and no objects. A slot whose count is zero is empty, which means counts must stay positive.
+ * Collisions are resolved with linear probing.
+ */
+final class NgramTable {
+    private static final float MAX_LOAD_FACTOR = 0.75f;
+
+    final int width;
+    // The keys of every slot, back to back. The key of slot i starts at keys[i * width].
+    int[] keys;
+    // The count of every slot. Empty slots have a count of zero.
+    int[] counts;
+    int size = 0;
+    private int mask;
+
+    /**
+     * Creates an empty table.
+     * @param width The number of word IDs in every key.
+     * @param expectedSize The number of entries this table should be able to hold without growing.
+     */
+    NgramTable(final int width, final int expectedSize) {
+        this.width = width;
+        int capacity = 16;
+        while (capacity * MAX_LOAD_FACTOR < expectedSize) {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+    }
+
+    /**
+     * Gets the number of slots in this table, occupied or not.
+     * @return The capacity of this table.
+     */
+    int capacity() {
+        return counts.length;
+    }
+
+    /**
+     * Returns whether the given slot holds an entry.
+     * @param slot The slot to test.
+     * @return Whether there is an entry in the slot.
+     */
+    boolean isOccupied(final int slot) {
+        return counts[slot] != 0;
+    }
+
+    /**
+     * Gets one word ID from the key in a slot.
+     * @param slot The slot holding the key.
+     * @param index The position of the word in the key.
+     * @return The word ID.
+     */
+    int getId(final int slot, final int index) {
+        return keys[slot * width + index];
+    }
+
+    /**
+     * Finds the slot holding the first {@link #width} tokens of a list.
+     * @param tokens The tokens to find.
+     * @return The slot of the entry, or -1 if there is no such entry.
+     */
+    int find(final TokenList tokens) {
+        int hash = 0;
+        for (int i = 0; i < width; i++) {
+            hash = 31 * hash + tokens.get(i);
+        }
+        int slot = mix(hash) & mask;
+        while (counts[slot] != 0) {
+            final int offset = slot * width;
+            int i = 0;
+            while (i < width && keys[offset + i] == tokens.get(i)) {
+                i++;
+            }
+            if (i == width) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * Finds the slot holding a key.
+     * @param ids An array containing the key.
+     * @param from The index in the array at which the key starts.
+     * @return The slot of the entry, or -1 if there is no such entry.
+     */
+    int find(final int[] ids, final int from) {
+        int slot = mix(hash(ids, from)) & mask;
+        while (counts[slot] != 0) {
+            if (keyEquals(slot, ids, from)) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * Finds the slots of a run of overlapping keys, where key i starts at ids[from + i]. Every key is hashed first,
+     * with a rolling hash, and only then probed, so that the probes don't wait on each other and their cache misses
+     * can overlap.
+     * @param ids An array containing the keys.
+     * @param from The index in the array at which the first key starts.
+     * @param numKeys The number of keys.
+     * @param slots Receives the slot of key i at index i, or -1 if there is no such entry.
+     */
+    void findAll(final int[] ids, final int from, final int numKeys, final int[] slots) {
+        if (numKeys == 0) {
+            return;
+        }
+        // The weight of the first ID of a key in its hash, 31^(width - 1)
+        int firstWeight = 1;
+        for (int i = 1; i < width; i++) {
+            firstWeight *= 31;
+        }
+        int hash = hash(ids, from);
+        slots[0] = mix(hash) & mask;
+        for (int i = 1; i < numKeys; i++) {
+            hash = 31 * (hash - firstWeight * ids[from + i - 1]) + ids[from + i + width - 1];
+            slots[i] = mix(hash) & mask;
+        }
+        for (int i = 0; i < numKeys; i++) {
+            int slot = slots[i];
+            while (counts[slot] != 0 && !keyEquals(slot, ids, from + i)) {
+                slot = (slot + 1) & mask;
+            }
+            slots[i] = counts[slot] != 0 ? slot : -1;
+        }
+    }
+
+    /**
+     * Adds to the count of the first {@link #width} tokens of a list, creating the entry if needed.
+     * @param tokens The tokens to add.
+     * @param num The amount to add. This must be positive.
+     * @return The slot of the entry.
+     */
+    int add(final TokenList tokens, final int num) {
+        int hash = 0;
+        for (int i = 0; i < width; i++) {
+            hash = 31 * hash + tokens.get(i);
+        }
+        int slot = mix(hash) & mask;
+        while (counts[slot] != 0) {
+            final int offset = slot * width;
+            int i = 0;
+            while (i < width && keys[offset + i] == tokens.get(i)) {
+                i++;
+            }
+            if (i == width) {
+                counts[slot] += num;
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        for (int i = 0; i < width; i++) {
+            keys[slot * width + i] = tokens.get(i);
+        }
+        return insert(slot, num);
+    }
+
+    /**
+     * Adds to the count of a key, creating the entry if needed.
+     * @param ids An array containing the key.
+     * @param from The index in the array at which the key starts.
+     * @param num The amount to add. This must be positive.
+     * @return The slot of the entry.
+     */
+    int add(final int[] ids, final int from, final int num) {
+        int slot = mix(hash(ids, from)) & mask;
+        while (counts[slot] != 0) {
+            if (keyEquals(slot, ids, from)) {
+                counts[slot] += num;
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        System.arraycopy(ids, from, keys, slot * width, width);
+        return insert(slot, num);
+    }
+
+    /**
+     * Gets every occupied slot, ordered lexicographically by key.
+     * @return An array of slots.
+     */
+    int[] sortedSlots() {
+        final int[] slots = new int[size];
+        int j = 0;
+        for (int slot = 0; slot < counts.length; slot++) {
+            if (counts[slot] != 0) {
+                slots[j++] = slot;
+            }
+        }
+        sort(slots, new int[slots.length], 0, slots.length);
+        return slots;
+    }
+
+    /**
+     * Compares the keys of two slots lexicographically.
+     * @param a The first slot.
+     * @param b The second slot.
+     * @return A negative number, zero or a positive number if the first key is less than, equal to or greater than
+     * the second key.
+     */
+    int compareKeys(final int a, final int b) {
+        return compareKeys(a, b, width);
+    }
+
+    /**
+     * Compares a prefix of the keys of two slots lexicographically.
+     * @param a The first slot.
+     * @param b The second slot.
+     * @param length The number of word IDs to compare.
+     * @return A negative number, zero or a positive number if the first prefix is less than, equal to or greater
+     * than the second prefix.
+     */
+    int compareKeys(final int a, final int b, final int length) {
+        for (int i = 0; i < length; i++) {
+            final int result = Integer.compare(keys[a * width + i], keys[b * width + i]);
+            if (result != 0) {
+                return result;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Compares a prefix of the key in a slot with a run of word IDs.
+     * @param slot The slot holding the key.
+     * @param ids An array containing the word IDs to compare with.
+     * @param length The number of word IDs to compare.
+     * @return A negative number, zero or a positive number if the prefix of the key is less than, equal to or
+     * greater than the given word IDs.
+     */
+    int comparePrefix(final int slot, final int[] ids, final int length) {
+        for (int i = 0; i < length; i++) {
+            final int result = Integer.compare(keys[slot * width + i], ids[i]);
+            if (result != 0) {
+                return result;
+            }
+        }
+        return 0;
+    }
+
+    //==========================================================================
+    // Private helper methods
+    //==========================================================================
+
+    private int insert(final int slot, final int num) {
+        counts[slot] = num;
+        size++;
+        if (size > counts.length * MAX_LOAD_FACTOR) {
+            final int[] key = Arrays.copyOfRange(keys, slot * width, slot * width + width);
+            grow();
+            return find(key, 0);
+        }
+        return slot;
+    }
+
+    private void grow() {
+        final int[] oldKeys = keys;
+        final int[] oldCounts = counts;
+        allocate(oldCounts.length * 2);
+        for (int oldSlot = 0; oldSlot < oldCounts.length; oldSlot++) {
+            if (oldCounts[oldSlot] == 0) {
+                continue;
+            }
+            int slot = mix(hash(oldKeys, oldSlot * width)) & mask;
+            while (counts[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            System.arraycopy(oldKeys, oldSlot * width, keys, slot * width, width);
+            counts[slot] = oldCounts[oldSlot];
+        }
+    }
+
+    private void allocate(final int capacity) {
+        keys = new int[capacity * width];
+        counts = new int[capacity];
+        mask = capacity - 1;
+    }
+
+    private boolean keyEquals(final int slot, final int[] ids, final int from) {
+        final int offset = slot * width;
+        for (int i = 0; i < width; i++) {
+            if (keys[offset + i] != ids[from + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int hash(final int[] ids, final int from) {
+        int hash = 0;
+        for (int i = 0; i < width; i++) {
+            hash = 31 * hash + ids[from + i];
+        }
+        return hash;
+    }
+
+    /**
+     * Merge sorts a range of slots by key.
+     */
+    private void sort(final int[] slots, final int[] buffer, final int from, final int to) {
+        if (to - from < 2) {
+            return;
+        }
+        final int middle = (from + to) >>> 1;
+        sort(slots, buffer, from, middle);
+        sort(slots, buffer, middle, to);
+        if (compareKeys(slots[middle - 1], slots[middle]) <= 0) {
+            return;
+        }
+        System.arraycopy(slots, from, buffer, from, to - from);
+        int left = from;
+        int right = middle;
+        for (int i = from; i < to; i++) {
+            if (right >= to || (left < middle && compareKeys(buffer[left], buffer[right]) <= 0)) {
+                slots[i] = buffer[left++];
+            } else {
+                slots[i] = buffer[right++];
+            }
+        }
+    }
+
+    //==========================================================================
+    // Private static helper methods
+    //==========================================================================
+
+    /**
+     * Spreads the bits of a hash code, so that keys that differ only in their high bits don't collide.
+     */
+    private static int mix(int hash) {
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        hash *= 0xc2b2ae35;
+        return hash ^ (hash >>> 16);
+    }
+}
@@ -0,0 +1,214 @@
+package com.cs5740.models;
+
+import com.cs5740.tokenlist.TokenList;
+
+import java.util.*;
+
+/**
+ * A frozen trie of n-gram counts, laid out as sorted arrays, one level per order.
+ * <p>
+ * Level d holds every d-gram. The children of each node are contiguous in the next level and sorted by word, and
+ * the nodes of a level are ordered by parent, so each level is sorted lexicographically by n-gram. Finding a child
+ * is a search within its parent's range.
+ * <p>
+ * Every level is a set of {@link IntSequence}s, so a trie can be read straight from a memory-mapped model file, or
+ * {@link #pack() packed} into a fraction of the heap.
+ */
+final class NgramTrie {
+    // Ranges longer than this are narrowed by interpolation before falling back to binary search
+    private static final int INTERPOLATION_THRESHOLD = 64;
+    // Word IDs are not spread evenly, so interpolation gives up after this many guesses
+    private static final int MAX_INTERPOLATION_STEPS = 4;
+
+    final int maxN;
+    // Indexed by depth, then by node. The word that a node adds to its parent's n-gram.
+    final IntSequence[] words;
+    final IntSequence[] counts;
+    // Indexed by depth, then by node. The index in the next level of the node's first child. Every level has one
+    // extra entry at the end, so that the children of node i end where the children of node i + 1 start. Depth 0
+    // holds just the root.
+    final IntSequence[] childStarts;
+    // Indexed by depth, then by node. The sum of the counts of the nodes before this one with the same parent.
+    final IntSequence[] cumulativeCounts;
+    // Indexed by depth, then by node. The depth of the deepest node in this node's subtree.
+    final IntSequence[] maxDepths;
+
+    /**
+     * Creates a trie from its levels. Every array is indexed by depth, and its element at depth 0 is ignored, except
+     * in childStarts.
+     */
+    NgramTrie(final int maxN, final IntSequence[] words, final IntSequence[] counts, final IntSequence[] childStarts,
+              final IntSequence[] cumulativeCounts, final IntSequence[] maxDepths) {
+        this.maxN = maxN;
+        this.words = words;
+        this.counts = counts;
+        this.childStarts = childStarts;
+        this.cumulativeCounts = cumulativeCounts;
+        this.maxDepths = maxDepths;
+    }
+
+    /**
+     * Creates a trie from the words, counts and child ranges of every level, computing the rest.
+     * @param maxN The depth of the trie.
+     * @param words Indexed by depth, then by node. The element at depth 0 is ignored.
+     * @param counts Indexed by depth, then by node. The element at depth 0 is ignored.
+     * @param childStarts Indexed by depth, then by node, with one extra entry at the end of every level.
+     * @return A new trie.
+     */
+    static NgramTrie fromArrays(final int maxN, final int[][] words, final int[][] counts, final int[][] childStarts) {
+        final IntSequence[] wordSequences = new IntSequence[maxN + 1];
+        final IntSequence[] countSequences = new IntSequence[maxN + 1];
+        final IntSequence[] childStartSequences = new IntSequence[maxN + 1];
+        final IntSequence[] cumulativeCountSequences = new IntSequence[maxN + 1];
+        final IntSequence[] maxDepthSequences = new IntSequence[maxN + 1];
+        byte[] childMaxDepths = null;
+        for (int depth = maxN; depth >= 1; depth--) {
+            final int size = words[depth].length;
+            final byte[] maxDepths = new byte[size];
+            for (int node = 0; node < size; node++) {
+                int maxDepth = depth;
+                if (depth < maxN) {
+                    for (int child = childStarts[depth][node]; child < childStarts[depth][node + 1]; child++) {
+                        maxDepth = Math.max(maxDepth, childMaxDepths[child]);
+                    }
+                }
+                maxDepths[node] = (byte)maxDepth;
+            }
+            final int[] cumulativeCounts = new int[size];
+            final int[] parentChildStarts = childStarts[depth - 1];
+            for (int parent = 0; parent + 1 < parentChildStarts.length; parent++) {
+                for (int node = parentChildStarts[parent] + 1; node < parentChildStarts[parent + 1]; node++) {
+                    cumulativeCounts[node] = cumulativeCounts[node - 1] + counts[depth][node - 1];
+                }
+            }
+            wordSequences[depth] = IntSequence.of(words[depth]);
+            countSequences[depth] = IntSequence.of(counts[depth]);
+            cumulativeCountSequences[depth] = IntSequence.of(cumulativeCounts);
+            maxDepthSequences[depth] = IntSequence.ofBytes(maxDepths);
+            childMaxDepths = maxDepths;
+        }
+        for (int depth = 0; depth <= maxN; depth++) {
+            childStartSequences[depth] = IntSequence.of(childStarts[depth]);
+        }
+        return new NgramTrie(maxN, wordSequences, countSequences, childStartSequences, cumulativeCountSequences,
+                maxDepthSequences);
+    }
+
+    /**
+     * Gets the trie shared by a set of models, or copies them into a new one if they don't share one.
+     * @param ngramModels The models, keyed by n.
+     * @return A trie holding the n-grams of every model.
+     */
+    static NgramTrie fromModels(final Map<Integer, NgramModel> ngramModels) {
+        NgramTrie sharedTrie = null;
+        for (final NgramModel model : ngramModels.values()) {
+            if (!(model instanceof TrieNgramModel) ||
+                    (sharedTrie != null && sharedTrie != ((TrieNgramModel)model).trie)) {
+                sharedTrie = null;
+                break;
+            }
+            sharedTrie = ((TrieNgramModel)model).trie;
+        }
+        if (sharedTrie != null) {
+            return sharedTrie;
+        }
+        final int maxN = ngramModels.isEmpty() ? 0 : Collections.max(ngramModels.keySet());
+        final CountingTrie countingTrie = new CountingTrie(maxN, null);
+        for (final NgramModel model : ngramModels.values()) {
+            final Iterator<TokenList> iterator = model.getIterator();
+            while (iterator.hasNext()) {
+                final TokenList tokens = iterator.next();
+                countingTrie.addNgram(tokens, model.getUnsmoothedTokenFrequency(tokens));
+            }
+        }
+        return countingTrie.freeze();
+    }
+
+    /**
+     * Copies this trie into bit-packed sequences. Words and counts take as many bits as the largest of them needs,
+     * and child ranges, which never decrease, are Elias-Fano coded. Lookups are a few bit operations slower.
+     * @return A new trie with the same nodes.
+     */
+    NgramTrie pack() {
+        final IntSequence[] packedWords = new IntSequence[maxN + 1];
+        final IntSequence[] packedCounts = new IntSequence[maxN + 1];
+        final IntSequence[] packedChildStarts = new IntSequence[maxN + 1];
+        final IntSequence[] packedCumulativeCounts = new IntSequence[maxN + 1];
+        final IntSequence[] packedMaxDepths = new IntSequence[maxN + 1];
+        for (int depth = 0; depth <= maxN; depth++) {
+            packedChildStarts[depth] = IntSequence.monotone(IntSequence.toArray(childStarts[depth]));
+            if (depth >= 1) {
+                packedWords[depth] = IntSequence.packed(IntSequence.toArray(words[depth]));
+                packedCounts[depth] = IntSequence.packed(IntSequence.toArray(counts[depth]));
+                packedCumulativeCounts[depth] = IntSequence.packed(IntSequence.toArray(cumulativeCounts[depth]));
+                packedMaxDepths[depth] = IntSequence.packed(IntSequence.toArray(maxDepths[depth]));
+            }
+        }
+        return new NgramTrie(maxN, packedWords, packedCounts, packedChildStarts, packedCumulativeCounts,
+                packedMaxDepths);
+    }
+
+    /**
+     * Gets the number of nodes at a depth.
+     * @param depth The depth, which is also the order of the n-grams at that depth.
+     * @return The number of n-grams of that order.
+     */
+    int size(final int depth) {
+        return depth == 0 ? 1 : words[depth].size();
+    }
+
+    /**
+     * Gets the index of the first child of a node.
+     * @param depth The depth of the node.
+     * @param node The node. This may be one past the last node, to get the end of the last node's children.
+     * @return An index into the next level.
+     */
+    int childStart(final int depth, final int node) {
+        return childStarts[depth].get(node);
+    }
+
+    /**
+     * Searches a range of nodes for a word. Since a node's children are sorted by word, and word IDs are given out
+     * roughly evenly, long ranges are first narrowed by interpolation.
+     * @param depth The depth of the nodes.
+     * @param from The first node in the range.
+     * @param to The node after the last node in the range.
+     * @param word The word to find.
+     * @param minDepth The depth that the node's subtree must reach. Nodes whose subtrees are shallower are skipped.
+     * @return The node, or -1 if there is no such node.
+     */
+    int find(final int depth, final int from, final int to, final int word, final int minDepth) {
+        final IntSequence levelWords = words[depth];
+        int left = from;
+        int right = to - 1;
+        for (int step = 0; step < MAX_INTERPOLATION_STEPS && right - left > INTERPOLATION_THRESHOLD; step++) {
+            final int leftWord = levelWords.get(left);
+            final int rightWord = levelWords.get(right);
+            if (word < leftWord || word > rightWord) {
+                return -1;
+            }
+            // The words in the range are distinct, so rightWord > leftWord
+            final int mid = left + (int)((long)(word - leftWord) * (right - left) / (rightWord - leftWord));
+            final int midWord = levelWords.get(mid);
+            if (midWord < word) {
+                left = mid + 1;
+            } else if (midWord > word) {
+                right = mid - 1;
+            } else {
+                return maxDepths[depth].get(mid) >= minDepth ? mid : -1;
+            }
+        }
+        while (left <= right) {
+            final int mid = (left + right) >>> 1;
+            final int midWord = levelWords.get(mid);
+            if (midWord < word) {
+                left = mid + 1;
+            } else if (midWord > word) {
+                right = mid - 1;
+            } else {
+                return maxDepths[depth].get(mid) >= minDepth ? mid : -1;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,173 @@
+package com.cs5740.models;
+
+import com.cs5740.SmoothOptions;
+import com.cs5740.tokenlist.ArrayTokenList;
+
+import java.util.*;
+
+/**
+ * Looks up the n-grams of every order at once: given a window of words, it finds the count and probability of the
+ * first n words of the window for every n from 1 to maxN, in a single walk down the structure that the models of
+ * every order share.
+ * <p>
+ * Scoring a position with several orders would otherwise take a lookup per order, each from the root of a different
+ * model. Here, the n-grams that start the window are the nodes on one path down a trie, so each order costs one
+ * search among the children of the node found for the order before it. Sliding the window one word at a time over a
+ * text visits every n-gram of every order exactly once, with one walk per position: the n-grams of every order that
+ * end at a word are found by the walks that start at each of the maxN - 1 words before it.
+ * <p>
+ * Models that share an {@link NgramTrie}, such as compact models, models read from a model file or models counted
+ * with a counting trie, are walked together, and so are the models built by {@link BackoffModels}. Models that share
+ * no structure are looked up one order at a time, which gives the same results without the savings. A walker
+ * reflects the models it was created from, so it must be created again once they change.
+ */
+public final class NgramWalker {
+    private final int maxN;
+    // Indexed by n, from 1 to maxN
+    private final NgramModel[] models;
+    // The trie that every model shares, or null
+    private final NgramTrie trie;
+    private final BackoffTrie backoffTrie;
+    // Whether each model's probabilities are smoothed from its counts, as opposed to stored. Indexed by n.
+    private final boolean[] countModels;
+
+    /**
+     * Creates a walker over n-gram models.
+     * @param ngramModels The models to walk, keyed by n. Only the orders from 1 up to the first one missing are
+     *                    walked.
+     */
+    public NgramWalker(final Map<Integer, NgramModel> ngramModels) {
+        int orders = 0;
+        while (ngramModels.containsKey(orders + 1)) {
+            orders++;
+        }
+        this.maxN = orders;
+        this.models = new NgramModel[maxN + 1];
+        this.countModels = new boolean[maxN + 1];
+        NgramTrie sharedTrie = null;
+        BackoffTrie sharedBackoffTrie = null;
+        for (int n = 1; n <= maxN; n++) {
+            final NgramModel model = ngramModels.get(n);
+            models[n] = model;
+            countModels[n] = !(model instanceof BackoffModel);
+            if (model instanceof TrieNgramModel) {
+                final NgramTrie modelTrie = ((TrieNgramModel)model).trie;
+                sharedTrie = n == 1 || modelTrie == sharedTrie ? modelTrie : null;
+            } else {
+                sharedTrie = null;
+            }
+            if (model instanceof BackoffTrieNgramModel) {
+                final BackoffTrie modelTrie = ((BackoffTrieNgramModel)model).trie;
+                sharedBackoffTrie = n == 1 || modelTrie == sharedBackoffTrie ? modelTrie : null;
+            } else {
+                sharedBackoffTrie = null;
+            }
+        }
+        this.trie = sharedTrie;
+        this.backoffTrie = sharedBackoffTrie;
+    }
+
+    /**
+     * Gets the highest order this walker looks up.
+     * @return The value of maxN.
+     */
+    public int getMaxN() {
+        return maxN;
+    }
+
+    /**
+     * Finds the count and probability of the n-gram made of the first n words of a window, for every n from 1 to
+     * the length of the window or maxN, whichever is smaller. The results are the same as those of each model's
+     * {@link NgramModel#getUnsmoothedTokenFrequency} and {@link NgramModel#getProbability}.
+     * @param tokens An array of word IDs.
+     * @param from The index in the array at which the window starts.
+     * @param length The number of words in the window.
+     * @param smoothOptions The smoothing option for count models.
+     * @param counts Receives the count of the n-gram of order n at index n - 1.
+     * @param probabilities Receives the probability of the n-gram of order n at index n - 1.
+     * @return The number of orders looked up.
+     */
+    public int walk(final int[] tokens, final int from, final int length, final SmoothOptions smoothOptions,
+                    final int[] counts, final double[] probabilities) {
+        final int orders = Math.min(length, maxN);
+        final int walked;
+        if (trie != null) {
+            walked = walkTrie(tokens, from, orders, smoothOptions, counts, probabilities);
+        } else if (backoffTrie != null) {
+            walked = walkBackoffTrie(tokens, from, orders, counts, probabilities);
+        } else {
+            walked = 0;
+        }
+        // Look up whatever the walk couldn't one order at a time
+        for (int n = walked + 1; n <= orders; n++) {
+            final NgramModel model = models[n];
+            final ArrayTokenList ngram = new ArrayTokenList(tokens, from, n);
+            final int count = model.getUnsmoothedTokenFrequency(ngram);
+            counts[n - 1] = count;
+            probabilities[n - 1] = countModels[n] ? model.getProbabilityOfCount(count, smoothOptions) :
+                    model.getProbability(ngram, smoothOptions);
+        }
+        return orders;
+    }
+
+    //==========================================================================
+    // Private helper methods
+    //==========================================================================
+
+    /**
+     * Walks down a shared count trie for as long as the window's words are found.
+     * @return The number of orders looked up. A word that isn't found must be resolved as an unknown word, which
+     * each model does within its own vocabulary, so the orders from there on are left to the models.
+     */
+    private int walkTrie(final int[] tokens, final int from, final int orders, final SmoothOptions smoothOptions,
+                         final int[] counts, final double[] probabilities) {
+        int start = 0;
+        int end = trie.size(1);
+        for (int depth = 1; depth <= orders; depth++) {
+            final int node = trie.find(depth, start, end, tokens[from + depth - 1], depth);
+            if (node < 0) {
+                return depth - 1;
+            }
+            final int count = trie.counts[depth].get(node);
+            counts[depth - 1] = count;
+            probabilities[depth - 1] = models[depth].getProbabilityOfCount(count, smoothOptions);
+            if (depth < orders) {
+                start = trie.childStart(depth, node);
+                end = trie.childStart(depth, node + 1);
+            }
+        }
+        return orders;
+    }
+
+    /**
+     * Walks down a shared back-off trie. Every node on the path is the context of the next order, so each order
+     * whose n-gram was seen costs one search among the context's continuations. Once an n-gram wasn't seen, none of
+     * the longer ones were either, and their probabilities back off from there.
+     * @return The number of orders looked up, which is all of them.
+     */
+    private int walkBackoffTrie(final int[] tokens, final int from, final int orders, final int[] counts,
+                                final double[] probabilities) {
+        final int[] ids = new int[orders];
+        for (int i = 0; i < orders; i++) {
+            final int token = tokens[from + i];
+            ids[i] = backoffTrie.isInVocabulary(token) ? token : Lexicon.UNKNOWN_ID;
+        }
+        int node = -1;
+        for (int depth = 1; depth <= orders; depth++) {
+            if (depth == 1) {
+                node = backoffTrie.isInVocabulary(ids[0]) ? backoffTrie.unigrams[ids[0]] : -1;
+            } else if (node >= 0) {
+                final int[] childStarts = backoffTrie.childStarts[depth - 1];
+                node = backoffTrie.find(depth, childStarts[node], childStarts[node + 1], ids[depth - 1]);
+            }
+            if (node >= 0) {
+                counts[depth - 1] = backoffTrie.counts[depth][node];
+                probabilities[depth - 1] = Math.pow(10.0, backoffTrie.logProbs[depth][node]);
+            } else {
+                counts[depth - 1] = 0;
+                probabilities[depth - 1] = Math.pow(10.0, backoffTrie.getLog10Probability(ids, 0, depth));
+            }
+        }
+        return orders;
+    }
+}
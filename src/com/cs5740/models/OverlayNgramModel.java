@@ -0,0 +1,258 @@
+package com.cs5740.models;
+
+import com.cs5740.Utils;
+import com.cs5740.tokenlist.TokenList;
+
+import java.util.*;
+
+/**
+ * Represents the n-grams of a base model with the n-grams of a much smaller delta model added to it, without copying
+ * either of them.
+ * <p>
+ * The statistics of the sum are worked out from the base model's statistics and the delta's n-grams alone, so
+ * creating an overlay costs time in proportion to the delta. Lookups ask both models and add up their counts, and
+ * unknown words are resolved against the n-grams of both, so the overlay gives the same frequencies as a single model
+ * of the summed counts would. Overlays are read-only. See {@link ModelUpdates}.
+ */
+class OverlayNgramModel extends NgramModel {
+    final NgramModel base;
+    final NgramModel delta;
+    final int n;
+
+    private OverlayNgramModel(final NgramModel base, final NgramModel delta) {
+        this.base = base;
+        this.delta = delta;
+        this.n = base.getN();
+        this.lexicon = base.lexicon;
+    }
+
+    /**
+     * Adds the n-grams of a delta model to a base model.
+     * @param base The base model, which must support {@link NgramModel#getCount(int[])} and the prefix lookups.
+     * @param delta The n-grams to add, which must be of the same order and support the same lookups.
+     * @return A new overlay.
+     */
+    static OverlayNgramModel create(final NgramModel base, final NgramModel delta) {
+        final OverlayNgramModel model = new OverlayNgramModel(base, delta);
+        model.totalCount = base.totalCount + delta.totalCount;
+        model.totalUniqueCount = base.totalUniqueCount;
+        model.frequencyCountMap = new HashMap<>(base.frequencyCountMap);
+        model.vocabulary = (BitSet)base.vocabulary.clone();
+        final int[] ngram = new int[model.n];
+        final Iterator<TokenList> iterator = delta.getIterator();
+        while (iterator.hasNext()) {
+            final TokenList tokens = iterator.next();
+            for (int i = 0; i < ngram.length; i++) {
+                ngram[i] = tokens.get(i);
+            }
+            final int baseCount = base.getCount(ngram);
+            if (baseCount == 0) {
+                model.totalUniqueCount++;
+                model.vocabulary.set(ngram[ngram.length - 1]);
+            } else {
+                model.frequencyCountMap.merge(baseCount, -1, (a, b) -> a + b == 0 ? null : a + b);
+            }
+            model.frequencyCountMap.merge(baseCount + delta.getCount(ngram), 1, (a, b) -> a + b);
+        }
+        if (model.n == 1) {
+            model.frequencyCountMap.put(0, 0);
+        } else {
+            int unseen = Utils.pow(model.getVocabularySize(), model.n);
+            if (unseen < Integer.MAX_VALUE) {
+                unseen -= model.getTotalUniqueCount();
+            }
+            model.frequencyCountMap.put(0, unseen);
+        }
+        return model;
+    }
+
+    /**
+     * Creates an overlay with the same n-grams as this one, split differently between its base and delta. The
+     * statistics are copied rather than recomputed.
+     * @param newBase The new base model.
+     * @param newDelta The new delta model, whose counts added to the new base's must match this overlay's.
+     * @return A new overlay.
+     */
+    OverlayNgramModel rebase(final NgramModel newBase, final NgramModel newDelta) {
+        final OverlayNgramModel model = new OverlayNgramModel(newBase, newDelta);
+        model.totalCount = totalCount;
+        model.totalUniqueCount = totalUniqueCount;
+        model.frequencyCountMap = frequencyCountMap;
+        model.vocabulary = vocabulary;
+        return model;
+    }
+
+    @Override
+    public int getWordId(final TokenList previousTokens, final double p) {
+        if (totalCount == 0 || p < 0.0 || p >= 1.0) {
+            return Lexicon.NO_ID;
+        }
+        final Continuations continuations = getContinuations(previousTokens);
+        long total = 0;
+        for (final int count : continuations.counts) {
+            total += count;
+        }
+        final double prob = p * total;
+        long cumulativeCount = 0;
+        for (int i = 0; i < continuations.words.length; i++) {
+            cumulativeCount += continuations.counts[i];
+            if (prob < cumulativeCount) {
+                return continuations.words[i];
+            }
+        }
+        return Lexicon.NO_ID;
+    }
+
+    @Override
+    Continuations getContinuations(final TokenList previousTokens) {
+        final Continuations baseContinuations = base.getContinuations(previousTokens);
+        final Continuations deltaContinuations = delta.getContinuations(previousTokens);
+        final int[] words = Arrays.copyOf(baseContinuations.words,
+                baseContinuations.words.length + deltaContinuations.words.length);
+        final int[] counts = Arrays.copyOf(baseContinuations.counts, words.length);
+        final int[] ngram = new int[n];
+        for (int i = 0; i < n - 1; i++) {
+            ngram[i] = previousTokens.get(i);
+        }
+        for (int i = 0; i < baseContinuations.words.length; i++) {
+            ngram[n - 1] = words[i];
+            counts[i] += delta.getCount(ngram);
+        }
+        // Words that only follow the context in the delta go after the base's
+        int size = baseContinuations.words.length;
+        for (int i = 0; i < deltaContinuations.words.length; i++) {
+            ngram[n - 1] = deltaContinuations.words[i];
+            if (base.getCount(ngram) == 0) {
+                words[size] = deltaContinuations.words[i];
+                counts[size] = deltaContinuations.counts[i];
+                size++;
+            }
+        }
+        return new Continuations(Arrays.copyOf(words, size), Arrays.copyOf(counts, size));
+    }
+
+    @Override
+    public int getUnsmoothedTokenFrequency(final TokenList tokens) {
+        // The base and the delta each resolve unknown words against their own n-grams only, so resolve them here
+        // against both
+        return getResolvedTokenFrequency(tokens);
+    }
+
+    @Override
+    int getCount(final int[] ngram) {
+        return base.getCount(ngram) + delta.getCount(ngram);
+    }
+
+    @Override
+    boolean containsPrefix(final int[] prefix, final int length) {
+        return base.containsPrefix(prefix, length) || delta.containsPrefix(prefix, length);
+    }
+
+    @Override
+    boolean containsLastWord(final int[] prefix, final int length, final int word) {
+        return base.containsLastWord(prefix, length, word) || delta.containsLastWord(prefix, length, word);
+    }
+
+    @Override
+    public int getN() {
+        return n;
+    }
+
+    /**
+     * Returns an iterator over the n-grams of the base and the delta, in order. Both models list their n-grams in
+     * order, so the two are merged, and the n-grams that share a context come one after another, as they do in a
+     * single model.
+     */
+    @Override
+    public Iterator<TokenList> getIterator() {
+        if (n > 1) {
+            return new Iterator<TokenList>() {
+                final Iterator<TokenList> baseIterator = base.getIterator();
+                final Iterator<TokenList> deltaIterator = delta.getIterator();
+                TokenList nextBase = nextOrNull(baseIterator);
+                TokenList nextDelta = nextOrNull(deltaIterator);
+
+                @Override
+                public boolean hasNext() {
+                    return nextBase != null || nextDelta != null;
+                }
+
+                @Override
+                public TokenList next() {
+                    if (!hasNext()) {
+                        return null;
+                    }
+                    final int order = nextBase == null ? 1 : nextDelta == null ? -1 : compare(nextBase, nextDelta, n);
+                    final TokenList tokens = order <= 0 ? nextBase : nextDelta;
+                    // An n-gram in both models is listed once
+                    if (order <= 0) {
+                        nextBase = nextOrNull(baseIterator);
+                    }
+                    if (order >= 0) {
+                        nextDelta = nextOrNull(deltaIterator);
+                    }
+                    return tokens;
+                }
+            };
+        }
+        // Unigrams all share the empty context, and unigram models don't list their words in order, so every word of
+        // the base comes first, then the words that are only in the delta
+        return new Iterator<TokenList>() {
+            final Iterator<TokenList> baseIterator = base.getIterator();
+            final Iterator<TokenList> deltaIterator = delta.getIterator();
+            final int[] ngram = new int[n];
+            TokenList next = null;
+
+            @Override
+            public boolean hasNext() {
+                if (next != null) {
+                    return true;
+                }
+                if (baseIterator.hasNext()) {
+                    next = baseIterator.next();
+                    return true;
+                }
+                while (deltaIterator.hasNext()) {
+                    final TokenList tokens = deltaIterator.next();
+                    for (int i = 0; i < n; i++) {
+                        ngram[i] = tokens.get(i);
+                    }
+                    if (base.getCount(ngram) == 0) {
+                        next = tokens;
+                        return true;
+                    }
+                }
+                return false;
+            }
+
+            @Override
+            public TokenList next() {
+                if (!hasNext()) {
+                    return null;
+                }
+                final TokenList tokens = next;
+                next = null;
+                return tokens;
+            }
+        };
+    }
+
+    private static TokenList nextOrNull(final Iterator<TokenList> iterator) {
+        return iterator.hasNext() ? iterator.next() : null;
+    }
+
+    /**
+     * Compares the first length words of two token lists lexicographically.
+     * @return A negative number, zero or a positive number if the first list is less than, equal to or greater than
+     * the second list.
+     */
+    private static int compare(final TokenList a, final TokenList b, final int length) {
+        for (int i = 0; i < length; i++) {
+            final int order = Integer.compare(a.get(i), b.get(i));
+            if (order != 0) {
+                return order;
+            }
+        }
+        return 0;
+    }
+}
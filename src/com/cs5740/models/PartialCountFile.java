@@ -0,0 +1,257 @@
+package com.cs5740.models;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * Reads and writes partial count files, which hold the n-gram counts of one shard of a corpus, so that the shards
+ * can be counted by separate processes and merged into a single set of models afterwards.
+ * <p>
+ * A file describes itself: it holds the lexicon of its shard, so shards that interned their words in different
+ * orders can still be merged. Its n-grams are written as records in the pre-order of {@link NgramRecords}, sorted by
+ * the words themselves rather than by their IDs, which is an order every shard agrees on. The merge gives every word
+ * its rank in the sorted vocabulary of all the shards, which keeps every file sorted, and then merges the files in a
+ * single streaming pass that adds up the counts of the n-grams found in several shards, holding one record of each
+ * file at a time.
+ * <p>
+ * A word is only rare if it is rare across the whole corpus, so shards are counted without replacing rare words.
+ * The merge reads the word counts of every shard first, finds the rare words of the corpus, and turns them into the
+ * unknown word token as the merged records are added to a counting trie, from which the models are built. Each file
+ * also holds the first and last maxN - 1 tokens of its shard, so that the n-grams that span two shards are counted
+ * too. Merging the files in the order of their shards gives the same models, with the same word IDs, as counting
+ * the shards one after the other in a single process.
+ * <p>
+ * Every number is big endian. A file holds:
+ * <pre>
+ *   int magic, int version, int maxN, long number of tokens
+ *   int number of words, then for every word in ID order: int length of its UTF-8 bytes, the bytes, int count
+ *   int number of head tokens, then their IDs
+ *   int number of tail tokens, then their IDs
+ *   the records of every n-gram of orders 1 to maxN
+ * </pre>
+ */
+public final class PartialCountFile {
+    // The bytes "NGPC"
+    public static final int MAGIC = 0x4350474E;
+    public static final int VERSION = 1;
+
+    private PartialCountFile() {}
+
+    /**
+     * Writes the counts of a shard to a file.
+     * @param path The file to write. It is replaced if it exists.
+     * @param trie The counts of every n-gram in the shard, with no rare words replaced. It is emptied.
+     * @param lexicon The lexicon from which the word IDs of the trie come.
+     * @param wordCounts The number of times each word appears in the shard, indexed by its ID. Words past the end of
+     *                   the array never appear.
+     * @param numTokens The number of tokens in the shard.
+     * @param head The first maxN - 1 tokens of the shard, or all of them if there are fewer.
+     * @param tail The last maxN - 1 tokens of the shard, or all of them if there are fewer.
+     * @throws IOException If the file could not be written.
+     */
+    public static void write(final Path path, final CountingTrie trie, final Lexicon lexicon, final int[] wordCounts,
+                             final long numTokens, final int[] head, final int[] tail) throws IOException {
+        final int[] ranks = rankWords(lexicon);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path),
+                1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(trie.getMaxN());
+            out.writeLong(numTokens);
+            out.writeInt(lexicon.size());
+            for (int token = 0; token < lexicon.size(); token++) {
+                final byte[] bytes = lexicon.getWord(token).getBytes(StandardCharsets.UTF_8);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+                out.writeInt(token < wordCounts.length ? wordCounts[token] : 0);
+            }
+            writeIds(out, head);
+            writeIds(out, tail);
+            trie.writeRecords(out, ranks);
+        }
+    }
+
+    /**
+     * Merges partial count files into n-gram models of every order the files hold, replacing the words that are
+     * rare across all of them with the unknown word token.
+     * @param paths The files to merge, in the order of their shards. They must all count n-grams of the same orders.
+     * @param unknownThreshold The maximum number of times a word should appear to be considered a rare word and not
+     *                         part of the vocabulary.
+     * @param lexicon The lexicon into which every word is interned, in order of first appearance.
+     * @param heapBudget The number of bytes of heap the merged counts may take before they are spilled to disk, or 0
+     *                   to keep them in memory.
+     * @param spillDirectory The directory to spill counts into, or null for the default temporary directory.
+     * @return A map of n-gram models, keyed by n, for every n from 1 to the files' maxN.
+     * @throws IOException If a file could not be read, or isn't a partial count file.
+     */
+    public static Map<Integer, NgramModel> merge(final List<Path> paths, final int unknownThreshold,
+                                                 final Lexicon lexicon, final long heapBudget,
+                                                 final File spillDirectory) throws IOException {
+        if (paths.isEmpty()) {
+            throw new IllegalArgumentException("There are no partial count files to merge");
+        }
+        final List<Shard> shards = new ArrayList<>();
+        try {
+            for (final Path path : paths) {
+                final Shard shard = new Shard(path, lexicon);
+                shards.add(shard);
+                if (shard.maxN != shards.get(0).maxN) {
+                    throw new IOException(path + " counts n-grams of different orders than " + paths.get(0));
+                }
+            }
+            final int maxN = shards.get(0).maxN;
+            // Find the rare words of the whole corpus, and the rank of every word among all the shards' words
+            final long[] wordCounts = new long[lexicon.size()];
+            for (final Shard shard : shards) {
+                for (int token = 0; token < shard.ids.length; token++) {
+                    wordCounts[shard.ids[token]] += shard.counts[token];
+                }
+            }
+            final int[] resolved = new int[lexicon.size()];
+            for (int token = 0; token < resolved.length; token++) {
+                final boolean rare = wordCounts[token] > 0 && wordCounts[token] <= unknownThreshold;
+                resolved[token] = rare ? Lexicon.UNKNOWN_ID : token;
+            }
+            final int[] ranks = rankWords(lexicon);
+            final int[] words = new int[ranks.length];
+            for (int token = 0; token < ranks.length; token++) {
+                words[ranks[token]] = token;
+            }
+            final CountingTrie trie = heapBudget > 0 ?
+                    new ExternalCountingTrie(maxN, lexicon, heapBudget, spillDirectory) :
+                    new CountingTrie(maxN, lexicon);
+            countBoundaryNgrams(shards, maxN, resolved, trie);
+            final List<NgramRecords.Reader> readers = new ArrayList<>();
+            for (final Shard shard : shards) {
+                final int[] mapping = new int[shard.ids.length];
+                for (int token = 0; token < mapping.length; token++) {
+                    mapping[token] = ranks[shard.ids[token]];
+                }
+                readers.add(new NgramRecords.Reader(shard.in, maxN, mapping));
+            }
+            NgramRecords.merge(readers, maxN, (depth, key, count) -> {
+                for (int i = 0; i < depth; i++) {
+                    key[i] = resolved[words[key[i]]];
+                }
+                trie.addNgram(key, depth, count);
+            });
+            final List<Integer> ns = new ArrayList<>();
+            for (int n = 1; n <= maxN; n++) {
+                ns.add(n);
+            }
+            return trie.build(ns);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            for (final Shard shard : shards) {
+                shard.in.close();
+            }
+        }
+    }
+
+    //==========================================================================
+    // Private static helper methods
+    //==========================================================================
+
+    /**
+     * Ranks every word in a lexicon by the word itself.
+     * @return The rank of every word, indexed by its ID.
+     */
+    private static int[] rankWords(final Lexicon lexicon) {
+        final Integer[] order = new Integer[lexicon.size()];
+        for (int token = 0; token < order.length; token++) {
+            order[token] = token;
+        }
+        Arrays.sort(order, Comparator.comparing(lexicon::getWord));
+        final int[] ranks = new int[order.length];
+        for (int rank = 0; rank < order.length; rank++) {
+            ranks[order[rank]] = rank;
+        }
+        return ranks;
+    }
+
+    /**
+     * Counts the n-grams that start in one shard and end in a later one. These start in the last maxN - 1 tokens of
+     * the shards before, which may reach back past a shard with fewer tokens than that.
+     */
+    private static void countBoundaryNgrams(final List<Shard> shards, final int maxN, final int[] resolved,
+                                            final CountingTrie trie) {
+        int[] previous = new int[0];
+        for (final Shard shard : shards) {
+            final int[] joined = Arrays.copyOf(previous, previous.length + shard.head.length);
+            for (int i = 0; i < shard.head.length; i++) {
+                joined[previous.length + i] = resolved[shard.ids[shard.head[i]]];
+            }
+            for (int start = 0; start < previous.length; start++) {
+                final int[] ngram = Arrays.copyOfRange(joined, start, Math.min(joined.length, start + maxN));
+                for (int length = previous.length - start + 1; length <= ngram.length; length++) {
+                    trie.addNgram(ngram, length, 1);
+                }
+            }
+            final int[] tokens = Arrays.copyOf(previous, previous.length + shard.tail.length);
+            for (int i = 0; i < shard.tail.length; i++) {
+                tokens[previous.length + i] = resolved[shard.ids[shard.tail[i]]];
+            }
+            previous = Arrays.copyOfRange(tokens, Math.max(0, tokens.length - (maxN - 1)), tokens.length);
+        }
+    }
+
+    private static void writeIds(final DataOutputStream out, final int[] ids) throws IOException {
+        out.writeInt(ids.length);
+        for (final int id : ids) {
+            out.writeInt(id);
+        }
+    }
+
+    private static int[] readIds(final DataInputStream in) throws IOException {
+        final int[] ids = new int[in.readInt()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = in.readInt();
+        }
+        return ids;
+    }
+
+    /**
+     * An open partial count file, whose header has been read and whose records are next.
+     */
+    private static final class Shard {
+        final DataInputStream in;
+        final int maxN;
+        // Indexed by the shard's word ID. The word's ID in the merged lexicon, and its count in the shard.
+        final int[] ids;
+        final int[] counts;
+        // The shard's first and last tokens, as the shard's word IDs.
+        final int[] head;
+        final int[] tail;
+
+        /**
+         * Opens a file and reads its header, interning its words into the merged lexicon in the shard's ID order.
+         */
+        Shard(final Path path, final Lexicon lexicon) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 1 << 16));
+            try {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                    throw new IOException(path + " isn't a partial count file of version " + VERSION);
+                }
+                maxN = in.readInt();
+                in.readLong();
+                ids = new int[in.readInt()];
+                counts = new int[ids.length];
+                for (int token = 0; token < ids.length; token++) {
+                    final byte[] bytes = new byte[in.readInt()];
+                    in.readFully(bytes);
+                    ids[token] = lexicon.getOrAdd(new String(bytes, StandardCharsets.UTF_8));
+                    counts[token] = in.readInt();
+                }
+                head = readIds(in);
+                tail = readIds(in);
+            } catch (IOException e) {
+                in.close();
+                throw e;
+            }
+        }
+    }
+}
@@ -0,0 +1,412 @@
+package com.cs5740.models;
+
+import com.cs5740.SmoothOptions;
+import com.cs5740.tokenlist.ArrayTokenList;
+import com.cs5740.tokenlist.TokenList;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded cache of n-gram probabilities in front of {@link NgramModel#getProbability(TokenList, SmoothOptions)},
+ * for workloads that ask for the same frequent n-grams over and over. Many threads can share one cache.
+ * <p>
+ * An n-gram is keyed by its order and word IDs, packed into 128 bits, together with the smoothing cutoff its
+ * probability was computed with, so a lookup allocates nothing, and probabilities of the same n-gram under different
+ * smoothing options are cached side by side. N-grams whose words don't fit, which are only those too long for the size of the lexicon, are never cached.
+ * The cache is split into stripes by a hash of the key, each guarded by its own lock, so threads only wait on each
+ * other when they look up n-grams that fall into the same stripe. A probability that isn't cached is computed
+ * outside the lock.
+ * <p>
+ * Each stripe evicts with a segmented LRU policy. A new entry starts out on probation, and is only protected once it
+ * is hit again. The protected segment holds most of the stripe, and its least recently used entries go back on
+ * probation to make room. A full stripe evicts its least recently used entry on probation, so a burst of n-grams
+ * that are only asked for once can't flush out the frequent ones.
+ * <p>
+ * Every entry remembers the model it came from. Once a different model
+ * of the same order is given, as after a corpus update replaces its models, every entry of that order is stale: it
+ * is never returned again, and is overwritten or evicted as the stripes fill up.
+ */
+public final class ProbabilityCache {
+    // The fraction of each stripe that its protected segment may hold
+    private static final double PROTECTED_FRACTION = 0.8;
+    // Every stripe holds at least this many entries, unless the whole cache is smaller
+    private static final int MIN_STRIPE_CAPACITY = 16;
+    // The order of an n-gram takes 4 bits of its key, ahead of its words
+    private static final int MAX_ORDER = 15;
+
+    private final int capacity;
+    private final int bitsPerWord;
+    // The longest n-gram that can be packed into a key
+    private final int maxPackedN;
+    // The number of stripes is 1 << stripeBits.
+    private final int stripeBits;
+    private final Stripe[] stripes;
+    // Indexed by n. The model whose probabilities are cached for each order, with the generation of their entries.
+    private final AtomicReferenceArray<Generation> generations = new AtomicReferenceArray<>(MAX_ORDER + 1);
+    private final AtomicInteger lastGeneration = new AtomicInteger();
+
+    /**
+     * Creates an empty cache.
+     * @param capacity The most probabilities the cache may hold. This must be positive.
+     * @param lexicon The lexicon from which the word IDs of the n-grams come. Words interned into it later, past the
+     *                next power of two, are never cached.
+     */
+    public ProbabilityCache(final int capacity, final Lexicon lexicon) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        this.capacity = capacity;
+        this.bitsPerWord = Math.min(31, 33 - Integer.numberOfLeadingZeros(Math.max(1, lexicon.size())));
+        this.maxPackedN = Math.min(MAX_ORDER, (128 - 4) / bitsPerWord);
+        // As many stripes per thread as ConcurrentNgramModelBuilder uses
+        final int concurrency = Runtime.getRuntime().availableProcessors();
+        int bits = 0;
+        while ((1 << bits) < concurrency * 4 && capacity >> (bits + 1) >= MIN_STRIPE_CAPACITY) {
+            bits++;
+        }
+        this.stripeBits = bits;
+        final int numStripes = 1 << bits;
+        this.stripes = new Stripe[numStripes];
+        for (int i = 0; i < numStripes; i++) {
+            // Spread the remainder over the first stripes
+            stripes[i] = new Stripe(capacity / numStripes + (i < capacity % numStripes ? 1 : 0));
+        }
+    }
+
+    /**
+     * Gets the probability of an n-gram from a model, from the cache if it holds it, and caching it otherwise.
+     * @param model The model to look the n-gram up in.
+     * @param tokens The n-gram, whose size is the order of the model.
+     * @param smoothOptions The smoothing option.
+     * @return The same probability as {@link NgramModel#getProbability(TokenList, SmoothOptions)}.
+     */
+    public double getProbability(final NgramModel model, final TokenList tokens, final SmoothOptions smoothOptions) {
+        final int n = model.getN();
+        // Pack the order and the word IDs into a 128-bit key
+        long high = 0;
+        long low = n;
+        boolean packed = n <= maxPackedN;
+        for (int i = 0; packed && i < n; i++) {
+            final int token = tokens.get(i);
+            if (token < 0 || token >>> bitsPerWord != 0) {
+                packed = false;
+            }
+            high = (high << bitsPerWord) | (low >>> (64 - bitsPerWord));
+            low = (low << bitsPerWord) | token;
+        }
+        if (!packed) {
+            stripes[0].countMiss();
+            return model.getProbability(tokens, smoothOptions);
+        }
+        final int cutoff = smoothOptions.getCutoff();
+        final long hash = hash(high, low, cutoff);
+        final Stripe stripe = stripes[stripeBits == 0 ? 0 : (int)(hash >>> (64 - stripeBits))];
+        final int generation = getGeneration(model);
+        final double cached = stripe.get(high, low, (int)hash, generation, cutoff);
+        if (!Double.isNaN(cached)) {
+            return cached;
+        }
+        final double probability = model.getProbability(tokens, smoothOptions);
+        if (!Double.isNaN(probability)) {
+            stripe.put(high, low, (int)hash, generation, cutoff, probability);
+        }
+        return probability;
+    }
+
+    /**
+     * Gets the probability of an n-gram from a model. See
+     * {@link #getProbability(NgramModel, TokenList, SmoothOptions)}.
+     * @param model The model to look the n-gram up in.
+     * @param tokens An array of word IDs.
+     * @param from The index in the array at which the n-gram starts. The n-gram is as long as the order of the model.
+     * @param smoothOptions The smoothing option.
+     * @return The same probability as {@link NgramModel#getProbability(TokenList, SmoothOptions)}.
+     */
+    public double getProbability(final NgramModel model, final int[] tokens, final int from,
+                                 final SmoothOptions smoothOptions) {
+        return getProbability(model, new ArrayTokenList(tokens, from, model.getN()), smoothOptions);
+    }
+
+    /**
+     * Makes every cached probability stale, so that each is computed again the next time it is asked for.
+     */
+    public void invalidate() {
+        for (int n = 0; n <= MAX_ORDER; n++) {
+            generations.set(n, null);
+        }
+    }
+
+    /**
+     * Gets the most probabilities this cache may hold.
+     * @return The capacity.
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Gets the number of probabilities this cache holds, including stale ones.
+     * @return The number of entries.
+     */
+    public int size() {
+        int size = 0;
+        for (final Stripe stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.size;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Gets the number of lookups that were answered from the cache.
+     * @return The number of hits.
+     */
+    public long getHits() {
+        long hits = 0;
+        for (final Stripe stripe : stripes) {
+            synchronized (stripe) {
+                hits += stripe.hits;
+            }
+        }
+        return hits;
+    }
+
+    /**
+     * Gets the number of lookups whose probability had to be computed, including those of n-grams that can't be
+     * cached and those that found a stale entry.
+     * @return The number of misses.
+     */
+    public long getMisses() {
+        long misses = 0;
+        for (final Stripe stripe : stripes) {
+            synchronized (stripe) {
+                misses += stripe.misses;
+            }
+        }
+        return misses;
+    }
+
+    /**
+     * Gets the number of entries that were evicted to make room for others.
+     * @return The number of evictions.
+     */
+    public long getEvictions() {
+        long evictions = 0;
+        for (final Stripe stripe : stripes) {
+            synchronized (stripe) {
+                evictions += stripe.evictions;
+            }
+        }
+        return evictions;
+    }
+
+    //==========================================================================
+    // Private helper methods
+    //==========================================================================
+
+    /**
+     * Gets the generation of the entries of a model, starting a new one if the model isn't the one cached for its
+     * order.
+     */
+    private int getGeneration(final NgramModel model) {
+        final int n = model.getN();
+        while (true) {
+            final Generation generation = generations.get(n);
+            if (generation != null && generation.model == model) {
+                return generation.id;
+            }
+            final Generation next = new Generation(model, lastGeneration.incrementAndGet());
+            if (generations.compareAndSet(n, generation, next)) {
+                return next.id;
+            }
+        }
+    }
+
+    private static long hash(final long high, final long low, final int cutoff) {
+        long hash = low * 0x9e3779b97f4a7c15L + high * 0xc2b2ae3d27d4eb4fL + cutoff * 0x165667b19e3779f9L;
+        hash ^= hash >>> 29;
+        hash *= 0xbf58476d1ce4e5b9L;
+        return hash ^ (hash >>> 32);
+    }
+
+    /**
+     * The model whose probabilities are cached for an order. The ID of every generation is new, so the entries of an
+     * earlier one never match.
+     */
+    private static final class Generation {
+        final NgramModel model;
+        final int id;
+
+        Generation(final NgramModel model, final int id) {
+            this.model = model;
+            this.id = id;
+        }
+    }
+
+    /**
+     * A part of the cache with its own lock: a chained hash table of entries, each of which is also on one of two
+     * doubly linked lists, the probationary and protected segments, in order of use. Every array is indexed by entry,
+     * and the lists have two extra entries at the end for their heads.
+     */
+    private static final class Stripe {
+        final int capacity;
+        final int protectedCapacity;
+        final long[] highs;
+        final long[] lows;
+        final double[] values;
+        final int[] generations;
+        final int[] cutoffs;
+        // The first entry of each bucket, or -1
+        final int[] buckets;
+        // The next entry of the same bucket, or -1
+        final int[] chain;
+        // The previous and next entries of each list. The head's next entry is the most recently used.
+        final int[] previous;
+        final int[] next;
+        final boolean[] isProtected;
+        final int probationHead;
+        final int protectedHead;
+        int size = 0;
+        int protectedSize = 0;
+        long hits = 0;
+        long misses = 0;
+        long evictions = 0;
+
+        Stripe(final int capacity) {
+            this.capacity = capacity;
+            this.protectedCapacity = (int)(capacity * PROTECTED_FRACTION);
+            highs = new long[capacity];
+            lows = new long[capacity];
+            values = new double[capacity];
+            generations = new int[capacity];
+            cutoffs = new int[capacity];
+            buckets = new int[Integer.highestOneBit(Math.max(1, capacity - 1)) << 1];
+            Arrays.fill(buckets, -1);
+            chain = new int[capacity];
+            previous = new int[capacity + 2];
+            next = new int[capacity + 2];
+            isProtected = new boolean[capacity];
+            probationHead = capacity;
+            protectedHead = capacity + 1;
+            previous[probationHead] = next[probationHead] = probationHead;
+            previous[protectedHead] = next[protectedHead] = protectedHead;
+        }
+
+        /**
+         * Looks up a key, and marks its entry as used if it's fresh.
+         * @return The cached probability, or NaN if there is none.
+         */
+        synchronized double get(final long high, final long low, final int hash, final int generation,
+                                final int cutoff) {
+            final int entry = find(high, low, cutoff, hash);
+            if (entry >= 0 && generations[entry] == generation) {
+                hits++;
+                touch(entry);
+                return values[entry];
+            }
+            misses++;
+            return Double.NaN;
+        }
+
+        /**
+         * Caches a probability, replacing a stale entry with the same key, or else adding an entry on probation and
+         * evicting another if the stripe is full.
+         */
+        synchronized void put(final long high, final long low, final int hash, final int generation,
+                              final int cutoff, final double value) {
+            int entry = find(high, low, cutoff, hash);
+            if (entry < 0) {
+                if (size < capacity) {
+                    entry = size++;
+                } else {
+                    entry = previous[probationHead] != probationHead ? previous[probationHead] :
+                            previous[protectedHead];
+                    remove(entry);
+                    evictions++;
+                }
+                highs[entry] = high;
+                lows[entry] = low;
+                cutoffs[entry] = cutoff;
+                final int bucket = hash & (buckets.length - 1);
+                chain[entry] = buckets[bucket];
+                buckets[bucket] = entry;
+                isProtected[entry] = false;
+                link(entry, probationHead);
+            }
+            values[entry] = value;
+            generations[entry] = generation;
+        }
+
+        synchronized void countMiss() {
+            misses++;
+        }
+
+        private int find(final long high, final long low, final int cutoff, final int hash) {
+            for (int entry = buckets[hash & (buckets.length - 1)]; entry >= 0; entry = chain[entry]) {
+                if (lows[entry] == low && highs[entry] == high && cutoffs[entry] == cutoff) {
+                    return entry;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Moves an entry to the front of the protected segment, moving the least recently used protected entry back
+         * on probation if the segment is full.
+         */
+        private void touch(final int entry) {
+            unlink(entry);
+            if (!isProtected[entry] && protectedCapacity > 0) {
+                isProtected[entry] = true;
+                protectedSize++;
+                if (protectedSize > protectedCapacity) {
+                    final int demoted = previous[protectedHead];
+                    unlink(demoted);
+                    isProtected[demoted] = false;
+                    protectedSize--;
+                    link(demoted, probationHead);
+                }
+            }
+            link(entry, isProtected[entry] ? protectedHead : probationHead);
+        }
+
+        /**
+         * Takes an entry out of its list and its bucket.
+         */
+        private void remove(final int entry) {
+            unlink(entry);
+            if (isProtected[entry]) {
+                protectedSize--;
+            }
+            final int bucket = (int)hash(highs[entry], lows[entry], cutoffs[entry]) & (buckets.length - 1);
+            if (buckets[bucket] == entry) {
+                buckets[bucket] = chain[entry];
+            } else {
+                int before = buckets[bucket];
+                while (chain[before] != entry) {
+                    before = chain[before];
+                }
+                chain[before] = chain[entry];
+            }
+        }
+
+        /**
+         * Puts an entry at the front of a list.
+         */
+        private void link(final int entry, final int head) {
+            final int first = next[head];
+            previous[entry] = head;
+            next[entry] = first;
+            previous[first] = entry;
+            next[head] = entry;
+        }
+
+        private void unlink(final int entry) {
+            next[previous[entry]] = next[entry];
+            previous[next[entry]] = previous[entry];
+        }
+    }
+}
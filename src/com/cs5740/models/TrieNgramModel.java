@@ -0,0 +1,280 @@
+package com.cs5740.models;
+
+import com.cs5740.Utils;
+import com.cs5740.tokenlist.LinkedTokenList;
+import com.cs5740.tokenlist.TokenList;
+
+import java.util.*;
+
+/**
+ * Represents the n-grams of one order in an {@link NgramTrie}, which is shared with the models of every other order.
+ * <p>
+ * The trie also holds n-grams that are cut short by the end of the corpus, so a node of a lower level is only part of
+ * this model if its subtree reaches level n.
+ */
+class TrieNgramModel extends NgramModel {
+    NgramTrie trie;
+    int n;
+
+    /**
+     * Creates a view of the n-grams of one order in a trie, without any statistics. These must be filled in by the
+     * caller.
+     */
+    TrieNgramModel(final NgramTrie trie, final int n, final Lexicon lexicon) {
+        this.trie = trie;
+        this.n = n;
+        this.lexicon = lexicon;
+    }
+
+    /**
+     * Creates a view of the n-grams of one order in a trie.
+     * @param trie The trie holding the n-grams.
+     * @param n The order of the n-grams.
+     * @param lexicon The lexicon from which the word IDs in the trie come.
+     * @return A new n-gram model.
+     */
+    static TrieNgramModel create(final NgramTrie trie, final int n, final Lexicon lexicon) {
+        final TrieNgramModel model = new TrieNgramModel(trie, n, lexicon);
+        model.vocabulary = new BitSet();
+        model.frequencyCountMap = new HashMap<>();
+        for (int node = 0; node < trie.size(n); node++) {
+            final int count = trie.counts[n].get(node);
+            model.vocabulary.set(trie.words[n].get(node));
+            model.totalCount += count;
+            model.totalUniqueCount++;
+            model.frequencyCountMap.merge(count, 1, (a, b) -> a + b);
+        }
+        if (n == 1) {
+            model.frequencyCountMap.put(0, 0);
+        } else {
+            int unseen = Utils.pow(model.getVocabularySize(), n);
+            if (unseen < Integer.MAX_VALUE) {
+                unseen -= model.getTotalUniqueCount();
+            }
+            model.frequencyCountMap.put(0, unseen);
+        }
+        return model;
+    }
+
+    @Override
+    public int getWordId(final TokenList previousTokens, final double p) {
+        if (totalCount == 0 || p < 0.0 || p >= 1.0) {
+            return Lexicon.NO_ID;
+        }
+        // Find the range of the continuations of the context
+        int from = 0;
+        int to = trie.size(1);
+        for (int depth = 1; depth < n; depth++) {
+            final int node = trie.find(depth, from, to, previousTokens.get(depth - 1), n);
+            if (node < 0) {
+                return Lexicon.NO_ID;
+            }
+            from = trie.childStart(depth, node);
+            to = trie.childStart(depth, node + 1);
+        }
+        final IntSequence counts = trie.counts[n];
+        final IntSequence cumulativeCounts = trie.cumulativeCounts[n];
+        final double prob = p * (cumulativeCounts.get(to - 1) + counts.get(to - 1));
+        // Binary search for the continuation whose cumulative range contains prob
+        int left = from;
+        int right = to - 1;
+        while (left <= right) {
+            final int mid = (left + right) >>> 1;
+            if (prob < cumulativeCounts.get(mid)) {
+                right = mid - 1;
+            } else if (prob >= cumulativeCounts.get(mid) + counts.get(mid)) {
+                left = mid + 1;
+            } else {
+                return trie.words[n].get(mid);
+            }
+        }
+        // Should never hit this point
+        return Lexicon.NO_ID;
+    }
+
+    @Override
+    Continuations getContinuations(final TokenList previousTokens) {
+        if (totalCount == 0) {
+            return Continuations.EMPTY;
+        }
+        // Find the range of the continuations of the context, like getWordId does
+        int from = 0;
+        int to = trie.size(1);
+        for (int depth = 1; depth < n; depth++) {
+            final int node = trie.find(depth, from, to, previousTokens.get(depth - 1), n);
+            if (node < 0) {
+                return Continuations.EMPTY;
+            }
+            from = trie.childStart(depth, node);
+            to = trie.childStart(depth, node + 1);
+        }
+        final int[] words = new int[to - from];
+        final int[] counts = new int[words.length];
+        for (int i = 0; i < words.length; i++) {
+            words[i] = trie.words[n].get(from + i);
+            counts[i] = trie.counts[n].get(from + i);
+        }
+        return new Continuations(words, counts);
+    }
+
+    @Override
+    int getCount(final int[] ngram) {
+        final int node = findNode(ngram, n);
+        return node >= 0 ? trie.counts[n].get(node) : 0;
+    }
+
+    @Override
+    boolean containsPrefix(final int[] prefix, final int length) {
+        return findNode(prefix, length) >= 0;
+    }
+
+    @Override
+    boolean containsLastWord(final int[] prefix, final int length, final int word) {
+        int from = 0;
+        int to = trie.size(1);
+        for (int depth = 1; depth <= length; depth++) {
+            final int node = trie.find(depth, from, to, prefix[depth - 1], n);
+            if (node < 0) {
+                return false;
+            }
+            from = trie.childStart(depth, node);
+            to = trie.childStart(depth, node + 1);
+        }
+        return containsLastWord(length + 1, from, to, word);
+    }
+
+    @Override
+    public int getUnsmoothedTokenFrequency(final TokenList tokens) {
+        // Walk down the trie, and only resolve unknown words if the n-gram isn't in it as is
+        int from = 0;
+        int to = trie.size(1);
+        for (int depth = 1; depth <= n; depth++) {
+            final int node = trie.find(depth, from, to, tokens.get(depth - 1), n);
+            if (node < 0) {
+                return getResolvedTokenFrequency(tokens);
+            } else if (depth == n) {
+                return trie.counts[n].get(node);
+            }
+            from = trie.childStart(depth, node);
+            to = trie.childStart(depth, node + 1);
+        }
+        return 0;
+    }
+
+    @Override
+    public void getUnsmoothedTokenFrequencies(final int[] tokens, final int from, final int numNgrams,
+                                              final int[] frequencies) {
+        // Walk every n-gram down the trie together, one level at a time, so that the searches within a level don't
+        // depend on each other. N-grams that aren't in the trie as is have their unknown words resolved afterwards.
+        // Indexed by n-gram. The range of nodes to search at the current level, or -1 once the n-gram is missing.
+        final int[] froms = new int[numNgrams];
+        final int[] tos = new int[numNgrams];
+        Arrays.fill(tos, trie.size(1));
+        for (int depth = 1; depth <= n; depth++) {
+            for (int i = 0; i < numNgrams; i++) {
+                if (froms[i] < 0) {
+                    continue;
+                }
+                final int node = trie.find(depth, froms[i], tos[i], tokens[from + i + depth - 1], n);
+                if (node < 0) {
+                    froms[i] = -1;
+                } else if (depth < n) {
+                    froms[i] = trie.childStart(depth, node);
+                    tos[i] = trie.childStart(depth, node + 1);
+                } else {
+                    frequencies[i] = trie.counts[n].get(node);
+                }
+            }
+        }
+        for (int i = 0; i < numNgrams; i++) {
+            if (froms[i] < 0) {
+                frequencies[i] = getResolvedTokenFrequency(tokens, from + i);
+            }
+        }
+    }
+
+    @Override
+    public int getN() {
+        return n;
+    }
+
+    @Override
+    public Iterator<TokenList> getIterator() {
+        return new Iterator<TokenList>() {
+            // Indexed by depth. The nodes on the path to the next n-gram.
+            final int[] path = new int[n + 1];
+            int index = 0;
+
+            @Override
+            public boolean hasNext() {
+                return index < trie.size(n);
+            }
+
+            @Override
+            public TokenList next() {
+                if (!hasNext()) {
+                    return null;
+                }
+                // The n-grams are in order, so each ancestor only ever moves forward
+                path[n] = index++;
+                for (int depth = n - 1; depth >= 1; depth--) {
+                    while (trie.childStart(depth, path[depth] + 1) <= path[depth + 1]) {
+                        path[depth]++;
+                    }
+                }
+                final TokenList tokenList = new LinkedTokenList();
+                for (int depth = 1; depth <= n; depth++) {
+                    tokenList.addLast(trie.words[depth].get(path[depth]));
+                }
+                return tokenList;
+            }
+        };
+    }
+
+    /**
+     * Returns whether any n-gram under a range of nodes ends with a word.
+     * @param depth The depth of the nodes.
+     * @param from The first node of the range.
+     * @param to The node after the last node of the range.
+     * @param word The word to find.
+     * @return Whether an n-gram under the range ends with the word.
+     */
+    private boolean containsLastWord(final int depth, final int from, final int to, final int word) {
+        // Find the n-grams under the range
+        int first = from;
+        int last = to;
+        for (int d = depth; d < n; d++) {
+            first = trie.childStart(d, first);
+            last = trie.childStart(d, last);
+        }
+        for (int node = first; node < last; node++) {
+            if (trie.words[n].get(node) == word) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Finds the node of a run of word IDs, which must lead to at least one n-gram.
+     * @param ids An array starting with the word IDs to find.
+     * @param length The number of word IDs, from 1 to n.
+     * @return The node at depth length, or -1 if there is no n-gram that starts with the word IDs.
+     */
+    private int findNode(final int[] ids, final int length) {
+        int from = 0;
+        int to = trie.size(1);
+        int node = -1;
+        for (int depth = 1; depth <= length; depth++) {
+            node = trie.find(depth, from, to, ids[depth - 1], n);
+            if (node < 0) {
+                return -1;
+            }
+            if (depth < length) {
+                from = trie.childStart(depth, node);
+                to = trie.childStart(depth, node + 1);
+            }
+        }
+        return node;
+    }
+}
@@ -9,19 +9,20 @@ import java.util.*;
 /**
  * A collection of tokens.
  * <p>
- * This class is implemented by maintaining a list of tokens, as well as a mapping from a token string to
+ * This class is implemented by maintaining a list of tokens, as well as a table from a word ID to
  * its index in the list.
  */
 class UnigramModel extends NgramModel {
     private List<TokenFrequencyObject> tokenFrequencies = new ArrayList<>();
-    private Map<String, Integer> tokenIndexLookupTable = new HashMap<>();
+    // Indexed by word ID. Words that aren't in this model have an index of -1.
+    private int[] tokenIndexLookupTable = new int[0];
 
     private UnigramModel() {}
 
-    public String getWord(final TokenList previousTokens, final double p) {
+    public int getWordId(final TokenList previousTokens, final double p) {
         double prob = p;
         if (totalCount == 0 || prob < 0.0 || prob >= 1.0) {
-            return "";
+            return Lexicon.NO_ID;
         }
         // Multiply p to scale it to the range [0.0, totalCount).
         prob *= totalCount;
@@ -41,17 +42,38 @@ class UnigramModel extends NgramModel {
             }
         }
         // Should never hit this point
-        return "";
+        return Lexicon.NO_ID;
+    }
+
+    @Override
+    Continuations getContinuations(final TokenList previousTokens) {
+        final int[] words = new int[tokenFrequencies.size()];
+        final int[] counts = new int[words.length];
+        for (int i = 0; i < words.length; i++) {
+            words[i] = tokenFrequencies.get(i).value;
+            counts[i] = tokenFrequencies.get(i).frequency;
+        }
+        return new Continuations(words, counts);
+    }
+
+    @Override
+    int getCount(final int[] ngram) {
+        final int tokenIndex = getTokenIndex(ngram[0]);
+        return tokenIndex >= 0 ? tokenFrequencies.get(tokenIndex).frequency : 0;
+    }
+
+    @Override
+    boolean containsPrefix(final int[] prefix, final int length) {
+        return getTokenIndex(prefix[0]) >= 0;
     }
 
     @Override
     public int getUnsmoothedTokenFrequency(final TokenList tokens) {
-        final String token = tokens.head().toLowerCase();
-        if (tokenIndexLookupTable.containsKey(token)) {
-            int tokenIndex = tokenIndexLookupTable.get(token);
+        final int tokenIndex = getTokenIndex(tokens.head());
+        if (tokenIndex >= 0) {
             return tokenFrequencies.get(tokenIndex).frequency;
-        } else if (!isInVocabulary(token) && tokenIndexLookupTable.containsKey(UNKNOWN_WORD_TOKEN)) {
-            return tokenFrequencies.get(tokenIndexLookupTable.get(UNKNOWN_WORD_TOKEN)).frequency;
+        } else if (!isInVocabulary(tokens.head()) && getTokenIndex(Lexicon.UNKNOWN_ID) >= 0) {
+            return tokenFrequencies.get(getTokenIndex(Lexicon.UNKNOWN_ID)).frequency;
         }
         return 0;
     }
@@ -78,18 +100,32 @@ class UnigramModel extends NgramModel {
         };
     }
 
+    /**
+     * Gets the index of a word in the list of token frequencies.
+     * @param token The ID of the word.
+     * @return The index of the word, or -1 if it isn't in this model.
+     */
+    private int getTokenIndex(final int token) {
+        if (token < 0 || token >= tokenIndexLookupTable.length) {
+            return -1;
+        }
+        return tokenIndexLookupTable[token];
+    }
+
     public static class UnigramModelBuilder implements NgramModelBuilder {
-        Map<String, Integer> frequencyMap = new HashMap<>();
+        // Indexed by word ID. Words with a frequency of zero are not part of the model.
+        int[] frequencyMap = new int[16];
+        final Lexicon lexicon;
+
+        public UnigramModelBuilder(final Lexicon lexicon) {
+            this.lexicon = lexicon;
+        }
 
         public NgramModelBuilder addTokens(final TokenList tokens) {
             // Assume just one token
-            final String token = tokens.head();
-            if (frequencyMap.containsKey(token)) {
-                int oldCount = frequencyMap.get(token);
-                frequencyMap.put(token, oldCount + 1);
-            } else {
-                frequencyMap.put(token, 1);
-            }
+            final int token = tokens.head();
+            ensureCapacity(token);
+            frequencyMap[token]++;
             return this;
         }
 
@@ -99,57 +135,63 @@ class UnigramModel extends NgramModel {
                 return this;
             }
             // Assume just one token
-            final String token = tokens.head();
-            if (frequencyMap.containsKey(token)) {
-                int oldCount = frequencyMap.get(token);
-                frequencyMap.put(token, oldCount + num);
-            } else {
-                frequencyMap.put(token, num);
-            }
+            final int token = tokens.head();
+            ensureCapacity(token);
+            frequencyMap[token] += num;
             return this;
         }
 
         @Override
         public NgramModelBuilder absorb(NgramModelBuilder other) {
             UnigramModelBuilder otherU = (UnigramModelBuilder)other;
-            otherU.frequencyMap.entrySet().forEach(e -> {
-                if (frequencyMap.containsKey(e.getKey())) {
-                    frequencyMap.put(e.getKey(), frequencyMap.get(e.getKey()) + e.getValue());
-                } else {
-                    frequencyMap.put(e.getKey(), e.getValue());
-                }
-            });
+            ensureCapacity(otherU.frequencyMap.length - 1);
+            for (int i = 0; i < otherU.frequencyMap.length; i++) {
+                frequencyMap[i] += otherU.frequencyMap[i];
+            }
             return this;
         }
 
-        public NgramModelBuilder collapseRareWords(final Set<String> rareWords) {
-            if (rareWords.size() == 0) {
+        @Override
+        public NgramModelBuilder translate(final int[] mapping, final Lexicon lexicon) {
+            final UnigramModelBuilder builder = new UnigramModelBuilder(lexicon);
+            for (int i = 0; i < frequencyMap.length; i++) {
+                if (frequencyMap[i] != 0) {
+                    builder.ensureCapacity(mapping[i]);
+                    builder.frequencyMap[mapping[i]] += frequencyMap[i];
+                }
+            }
+            return builder;
+        }
+
+        public NgramModelBuilder collapseRareWords(final BitSet rareWords) {
+            if (rareWords.isEmpty()) {
                 return this;
             }
-            final Map<String, Integer> newMap = new HashMap<>();
-            newMap.put(UNKNOWN_WORD_TOKEN, 0);
-            frequencyMap.entrySet().forEach(e -> {
-                if (rareWords.contains(e.getKey())) {
-                    newMap.put(UNKNOWN_WORD_TOKEN, newMap.get(UNKNOWN_WORD_TOKEN) + e.getValue());
-                } else {
-                    newMap.put(e.getKey(), e.getValue());
+            for (int i = rareWords.nextSetBit(0); i >= 0 && i < frequencyMap.length; i = rareWords.nextSetBit(i + 1)) {
+                if (i != Lexicon.UNKNOWN_ID) {
+                    frequencyMap[Lexicon.UNKNOWN_ID] += frequencyMap[i];
+                    frequencyMap[i] = 0;
                 }
-            });
-            frequencyMap = newMap;
+            }
             return this;
         }
 
         public NgramModel build() {
             // Add unknown
             UnigramModel model = new UnigramModel();
+            model.lexicon = lexicon;
             model.tokenFrequencies = new ArrayList<>();
-            model.tokenIndexLookupTable = new HashMap<>();
-            model.vocabulary = new HashSet<>();
-            for (Map.Entry<String, Integer> entry : frequencyMap.entrySet()) {
-                model.vocabulary.add(entry.getKey());
-                model.tokenFrequencies.add(new TokenFrequencyObject(entry.getKey(), entry.getValue(), model.totalCount));
-                model.tokenIndexLookupTable.put(entry.getKey(), model.tokenFrequencies.size() - 1);
-                model.totalCount += entry.getValue();
+            model.tokenIndexLookupTable = new int[frequencyMap.length];
+            model.vocabulary = new BitSet();
+            for (int token = 0; token < frequencyMap.length; token++) {
+                if (frequencyMap[token] == 0) {
+                    model.tokenIndexLookupTable[token] = -1;
+                    continue;
+                }
+                model.vocabulary.set(token);
+                model.tokenFrequencies.add(new TokenFrequencyObject(token, frequencyMap[token], model.totalCount));
+                model.tokenIndexLookupTable[token] = model.tokenFrequencies.size() - 1;
+                model.totalCount += frequencyMap[token];
                 model.totalUniqueCount++;
             }
             model.frequencyCountMap = createTokenCountMap(frequencyMap);
@@ -157,15 +199,27 @@ class UnigramModel extends NgramModel {
             return model;
         }
 
+        /**
+         * Grows the frequency table so that it can hold the given word ID.
+         * @param token The word ID that should fit in the table.
+         */
+        private void ensureCapacity(final int token) {
+            if (token >= frequencyMap.length) {
+                frequencyMap = Arrays.copyOf(frequencyMap, Math.max(token + 1, frequencyMap.length * 2));
+            }
+        }
+
         /**
          * Creates a mapping from frequency to the number n-grams with that frequency.
-         * @param map The token frequency map.
+         * @param frequencies The token frequency table.
          * @return map The token count mapping.
          */
-        private static Map<Integer, Integer> createTokenCountMap(final Map<String, Integer> map) {
+        private static Map<Integer, Integer> createTokenCountMap(final int[] frequencies) {
             Map<Integer, Integer> frequencyCountMap = new HashMap<>();
-            for (Map.Entry<String, Integer> entry : map.entrySet()) {
-                int frequency = entry.getValue();
+            for (final int frequency : frequencies) {
+                if (frequency == 0) {
+                    continue;
+                }
                 if (frequencyCountMap.containsKey(frequency)) {
                     int oldFrequencyCount = frequencyCountMap.get(frequency);
                     frequencyCountMap.put(frequency, oldFrequencyCount + 1);
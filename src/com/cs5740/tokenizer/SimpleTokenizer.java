@@ -0,0 +1,273 @@
+package com.cs5740.tokenizer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * The default tokenizer. It scans its input once, character by character, without any regular expressions.
+ * <p>
+ * Text is lower cased and split on whitespace. Letters, digits, apostrophes and hyphens make up words, and every
+ * other character is punctuation, which becomes a token of its own. UTF-8 input can be scanned directly as bytes,
+ * in which case it is never decoded into Strings at all.
+ */
+public class SimpleTokenizer implements Tokenizer {
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final int REPLACEMENT_CHARACTER = 0xFFFD;
+
+    // The charset of input streams. UTF-8 and ASCII streams are scanned as bytes.
+    private final Charset charset;
+
+    /**
+     * Creates a tokenizer that reads input streams as UTF-8.
+     */
+    public SimpleTokenizer() {
+        this(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Creates a tokenizer that reads input streams in the given charset.
+     * @param charset The charset of the input streams given to this tokenizer.
+     */
+    public SimpleTokenizer(final Charset charset) {
+        this.charset = charset;
+    }
+
+    @Override
+    public Charset getCharset() {
+        return charset;
+    }
+
+    @Override
+    public void tokenize(final Reader reader, final TokenSink sink) throws IOException {
+        final Scanner scanner = new Scanner(sink);
+        final char[] buffer = new char[BUFFER_SIZE];
+        int read = reader.read(buffer);
+        while (read != -1) {
+            for (int i = 0; i < read; i++) {
+                scanner.scanChar(buffer[i]);
+            }
+            read = reader.read(buffer);
+        }
+        scanner.finish();
+    }
+
+    @Override
+    public void tokenize(final CharSequence text, final TokenSink sink) {
+        final Scanner scanner = new Scanner(sink);
+        for (int i = 0; i < text.length(); i++) {
+            scanner.scanChar(text.charAt(i));
+        }
+        scanner.finish();
+    }
+
+    @Override
+    public void tokenize(final ByteBuffer utf8, final TokenSink sink) {
+        final Scanner scanner = new Scanner(sink);
+        if (utf8.hasArray()) {
+            final int from = utf8.arrayOffset() + utf8.position();
+            scanner.scanBytes(utf8.array(), from, from + utf8.remaining(), true);
+        } else {
+            // Copy direct and mapped buffers out in chunks. This is still far cheaper than decoding them.
+            final ByteBuffer source = utf8.duplicate();
+            final byte[] buffer = new byte[BUFFER_SIZE];
+            int length = 0;
+            while (source.hasRemaining()) {
+                final int read = Math.min(buffer.length - length, source.remaining());
+                source.get(buffer, length, read);
+                length += read;
+                length = carryOver(buffer, scanner.scanBytes(buffer, 0, length, false), length);
+            }
+            scanner.scanBytes(buffer, 0, length, true);
+        }
+        scanner.finish();
+    }
+
+    @Override
+    public void tokenize(final InputStream inputStream, final TokenSink sink) throws IOException {
+        if (!charset.equals(StandardCharsets.UTF_8) && !charset.equals(StandardCharsets.US_ASCII)) {
+            tokenize(new InputStreamReader(inputStream, charset), sink);
+            return;
+        }
+        final Scanner scanner = new Scanner(sink);
+        final byte[] buffer = new byte[BUFFER_SIZE];
+        int length = 0;
+        int read = inputStream.read(buffer, length, buffer.length - length);
+        while (read != -1) {
+            length += read;
+            length = carryOver(buffer, scanner.scanBytes(buffer, 0, length, false), length);
+            read = inputStream.read(buffer, length, buffer.length - length);
+        }
+        scanner.scanBytes(buffer, 0, length, true);
+        scanner.finish();
+    }
+
+    /**
+     * Returns whether a token is a single punctuation character, which is written without a space before it.
+     * @param token The token to test.
+     * @return Whether the token is punctuation.
+     */
+    public static boolean isPunctuation(final CharSequence token) {
+        if (token.length() == 0 || token.length() > 2) {
+            return false;
+        }
+        final int codePoint = Character.codePointAt(token, 0);
+        return Character.charCount(codePoint) == token.length() && !isWordChar(codePoint) && !isWhitespace(codePoint);
+    }
+
+    //==========================================================================
+    // Private static helper methods
+    //==========================================================================
+
+    /**
+     * Moves the bytes after the given index to the front of the buffer.
+     * @return The number of bytes left in the buffer.
+     */
+    private static int carryOver(final byte[] buffer, final int consumed, final int length) {
+        System.arraycopy(buffer, consumed, buffer, 0, length - consumed);
+        return length - consumed;
+    }
+
+    private static boolean isWordChar(final int c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '\'' || c == '-';
+    }
+
+    private static boolean isWhitespace(final int c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+    }
+
+    /**
+     * The state of a single pass over some input. Words are lower cased into a buffer as they're scanned, so a word
+     * may span several chunks of input.
+     */
+    private static final class Scanner {
+        private final TokenSink sink;
+        private char[] word = new char[32];
+        private int wordLength = 0;
+        // A high surrogate waiting for the rest of its code point, or zero.
+        private char pendingHighSurrogate = 0;
+        private final char[] punctuation = new char[2];
+
+        Scanner(final TokenSink sink) {
+            this.sink = sink;
+        }
+
+        void scanChar(final char c) {
+            if (pendingHighSurrogate != 0) {
+                final char highSurrogate = pendingHighSurrogate;
+                pendingHighSurrogate = 0;
+                if (Character.isLowSurrogate(c)) {
+                    scanCodePoint(Character.toCodePoint(highSurrogate, c));
+                    return;
+                }
+                scanCodePoint(highSurrogate);
+            }
+            if (Character.isHighSurrogate(c)) {
+                pendingHighSurrogate = c;
+            } else {
+                scanCodePoint(c);
+            }
+        }
+
+        /**
+         * Scans a range of UTF-8 encoded bytes.
+         * @param endOfInput If false, scanning stops before a code point that is cut off by the end of the range.
+         * @return The index of the first byte that wasn't scanned.
+         */
+        int scanBytes(final byte[] bytes, final int from, final int to, final boolean endOfInput) {
+            int i = from;
+            while (i < to) {
+                final int b = bytes[i] & 0xFF;
+                if (b < 0x80) {
+                    scanCodePoint(b);
+                    i++;
+                    continue;
+                }
+                final int continuationBytes;
+                int codePoint;
+                if (b >= 0xF0 && b < 0xF8) {
+                    continuationBytes = 3;
+                    codePoint = b & 0x07;
+                } else if (b >= 0xE0 && b < 0xF0) {
+                    continuationBytes = 2;
+                    codePoint = b & 0x0F;
+                } else if (b >= 0xC0 && b < 0xE0) {
+                    continuationBytes = 1;
+                    codePoint = b & 0x1F;
+                } else {
+                    scanCodePoint(REPLACEMENT_CHARACTER);
+                    i++;
+                    continue;
+                }
+                if (i + continuationBytes >= to && !endOfInput) {
+                    return i;
+                }
+                int j = 1;
+                while (j <= continuationBytes && i + j < to && (bytes[i + j] & 0xC0) == 0x80) {
+                    codePoint = (codePoint << 6) | (bytes[i + j] & 0x3F);
+                    j++;
+                }
+                if (j <= continuationBytes || !Character.isValidCodePoint(codePoint)) {
+                    // Malformed sequences are replaced, the same way a decoder would
+                    scanCodePoint(REPLACEMENT_CHARACTER);
+                    i += j;
+                } else {
+                    scanCodePoint(codePoint);
+                    i += continuationBytes + 1;
+                }
+            }
+            return i;
+        }
+
+        void finish() {
+            if (pendingHighSurrogate != 0) {
+                final char highSurrogate = pendingHighSurrogate;
+                pendingHighSurrogate = 0;
+                scanCodePoint(highSurrogate);
+            }
+            endWord();
+        }
+
+        private void scanCodePoint(final int c) {
+            if (c >= 'A' && c <= 'Z') {
+                appendToWord((char)(c + ('a' - 'A')));
+            } else if (isWordChar(c)) {
+                appendToWord((char)c);
+            } else if (isWhitespace(c)) {
+                endWord();
+            } else if (c < 0x80) {
+                endWord();
+                punctuation[0] = (char)c;
+                sink.accept(punctuation, 0, 1);
+            } else {
+                // Lower casing can turn some characters into ASCII letters, such as the Kelvin sign
+                final int lowerCase = Character.toLowerCase(c);
+                if (isWordChar(lowerCase)) {
+                    appendToWord((char)lowerCase);
+                    return;
+                }
+                endWord();
+                sink.accept(punctuation, 0, Character.toChars(lowerCase, punctuation, 0));
+            }
+        }
+
+        private void appendToWord(final char c) {
+            if (wordLength == word.length) {
+                word = Arrays.copyOf(word, word.length * 2);
+            }
+            word[wordLength++] = c;
+        }
+
+        private void endWord() {
+            if (wordLength > 0) {
+                sink.accept(word, 0, wordLength);
+                wordLength = 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package com.cs5740.tokenizer;
+
+/**
+ * Receives the tokens produced by a {@link Tokenizer}, one at a time.
+ */
+public interface TokenSink {
+    /**
+     * Accepts a single token. The characters are only valid for the duration of the call, since tokenizers reuse
+     * their buffers; anything that keeps the token must copy it.
+     * @param chars A buffer holding the token.
+     * @param offset The index in the buffer at which the token starts.
+     * @param length The number of characters in the token.
+     */
+    void accept(final char[] chars, final int offset, final int length);
+}
@@ -0,0 +1,61 @@
+package com.cs5740.tokenizer;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Splits text into lower case tokens and streams them into a {@link TokenSink}.
+ */
+public interface Tokenizer {
+    Tokenizer DEFAULT = new SimpleTokenizer();
+
+    /**
+     * Tokenizes every character that can be read from a reader.
+     * @param reader The reader to tokenize.
+     * @param sink The sink that receives every token.
+     * @throws IOException If the reader couldn't be read.
+     */
+    void tokenize(final Reader reader, final TokenSink sink) throws IOException;
+
+    /**
+     * Tokenizes the remaining bytes of a buffer of UTF-8 encoded text, without moving its position.
+     * @param utf8 The buffer to tokenize.
+     * @param sink The sink that receives every token.
+     */
+    void tokenize(final ByteBuffer utf8, final TokenSink sink);
+
+    /**
+     * Gets the charset in which this tokenizer reads input streams. By default, this is the platform's default
+     * charset.
+     * @return The charset of input streams.
+     */
+    default Charset getCharset() {
+        return Charset.defaultCharset();
+    }
+
+    /**
+     * Tokenizes a piece of text.
+     * @param text The text to tokenize.
+     * @param sink The sink that receives every token.
+     */
+    default void tokenize(final CharSequence text, final TokenSink sink) {
+        try {
+            tokenize(new StringReader(text.toString()), sink);
+        } catch (IOException e) {
+            // Reading from a string never fails
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Tokenizes every byte that can be read from an input stream. By default, the bytes are decoded with the
+     * platform's default charset.
+     * @param inputStream The input stream to tokenize.
+     * @param sink The sink that receives every token.
+     * @throws IOException If the input stream couldn't be read.
+     */
+    default void tokenize(final InputStream inputStream, final TokenSink sink) throws IOException {
+        tokenize(new BufferedReader(new InputStreamReader(inputStream)), sink);
+    }
+}
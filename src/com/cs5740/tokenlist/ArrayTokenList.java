@@ -0,0 +1,86 @@
+package com.cs5740.tokenlist;
+
+import com.cs5740.models.Lexicon;
+
+/**
+ * A read-only token list over a range of an int array, which doesn't copy the array.
+ * <p>
+ * The range can be moved with {@link #moveTo(int)}, which makes this list a cheap sliding window over an array of
+ * word IDs. The array should not be modified while the list is in use.
+ */
+public class ArrayTokenList implements TokenList {
+    private final int[] tokens;
+    private int from;
+    private final int size;
+
+    /**
+     * Creates a list over a range of an array.
+     * @param tokens The array of tokens.
+     * @param from The index in the array of the head of this list.
+     * @param size The number of tokens in this list.
+     */
+    public ArrayTokenList(final int[] tokens, final int from, final int size) {
+        this.tokens = tokens;
+        this.from = from;
+        this.size = size;
+    }
+
+    /**
+     * Moves this list to another range of the same size.
+     * @param from The index in the array of the new head of this list.
+     * @return A reference to this object.
+     */
+    public ArrayTokenList moveTo(final int from) {
+        this.from = from;
+        return this;
+    }
+
+    @Override
+    public void addFirst(final int element) {
+        throw new UnsupportedOperationException("An ArrayTokenList can't be added to");
+    }
+
+    @Override
+    public void addLast(final int element) {
+        throw new UnsupportedOperationException("An ArrayTokenList can't be added to");
+    }
+
+    @Override
+    public int head() {
+        return tokens[from];
+    }
+
+    @Override
+    public int get(final int index) {
+        return tokens[from + index];
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public TokenList tail() {
+        return new ArrayTokenList(tokens, from + 1, Math.max(0, size - 1));
+    }
+
+    @Override
+    public boolean containsUnknown() {
+        for (int i = 0; i < size; i++) {
+            if (tokens[from + i] == Lexicon.UNKNOWN_ID) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder stringBuilder = new StringBuilder("[ ");
+        for (int i = 0; i < size; i++) {
+            stringBuilder.append(tokens[from + i]).append(" ");
+        }
+        return stringBuilder.append("]").toString();
+    }
+}
@@ -1,21 +1,21 @@
 package com.cs5740.tokenlist;
 
-import com.cs5740.models.NgramModel;
+import com.cs5740.models.Lexicon;
 
 /**
  * We did better?
  */
 public class LinkedTokenList implements TokenList {
     private static class Node {
-        public final String value;
+        public final int value;
         public Node next;
-        public Node(final String value) {
+        public Node(final int value) {
             this.value = value;
         }
     }
 
-    public LinkedTokenList(String... args) {
-        for (final String s : args) {
+    public LinkedTokenList(int... args) {
+        for (final int s : args) {
             addLast(s);
         }
     }
@@ -26,7 +26,7 @@ public class LinkedTokenList implements TokenList {
     int size = 0;
 
     @Override
-    public void addFirst(String element) {
+    public void addFirst(final int element) {
         if (head == null) {
             head = tail = new Node(element);
         } else {
@@ -38,7 +38,7 @@ public class LinkedTokenList implements TokenList {
     }
 
     @Override
-    public void addLast(final String element) {
+    public void addLast(final int element) {
         if (head == null) {
             head = tail = new Node(element);
         } else {
@@ -50,10 +50,19 @@ public class LinkedTokenList implements TokenList {
     }
 
     @Override
-    public String head() {
+    public int head() {
         return head.value;
     }
 
+    @Override
+    public int get(final int index) {
+        Node curr = head;
+        for (int i = 0; i < index; i++) {
+            curr = curr.next;
+        }
+        return curr.value;
+    }
+
     @Override
     public int size() {
         return size;
@@ -72,7 +81,7 @@ public class LinkedTokenList implements TokenList {
     public boolean containsUnknown() {
         Node curr = head;
         while (curr != null) {
-            if (curr.value.equals(NgramModel.UNKNOWN_WORD_TOKEN)) {
+            if (curr.value == Lexicon.UNKNOWN_ID) {
                 return true;
             }
             curr = curr.next;
@@ -0,0 +1,197 @@
+package com.cs5740.tokenlist;
+
+import com.cs5740.models.Lexicon;
+
+/**
+ * A token list with a fixed capacity, backed by a circular buffer.
+ * <p>
+ * Adding a token to a full list drops the token at the other end, which makes this list a sliding window over a
+ * stream of tokens. {@link #tail()} and {@link #view(int)} return views that are created along with the list, so
+ * that walking or sliding the window never allocates. Views are live: they always skip the same number of tokens
+ * from the current head of this list, and they can't be added to.
+ */
+public class RingTokenList implements TokenList {
+    private final int[] buffer;
+    private int start = 0;
+    private int size = 0;
+    // views[i] is this list without its first i tokens. views[0] is unused, since that's just this list.
+    private final View[] views;
+
+    /**
+     * Creates an empty list.
+     * @param capacity The maximum number of tokens the list holds.
+     */
+    public RingTokenList(final int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        buffer = new int[capacity];
+        views = new View[capacity + 1];
+        for (int i = 1; i <= capacity; i++) {
+            views[i] = new View(i);
+        }
+    }
+
+    /**
+     * Adds a token to the front of this list. If the list is full, its last token is dropped.
+     * @param element The token to add.
+     */
+    @Override
+    public void addFirst(final int element) {
+        start = start == 0 ? buffer.length - 1 : start - 1;
+        buffer[start] = element;
+        if (size < buffer.length) {
+            size++;
+        }
+    }
+
+    /**
+     * Adds a token to the end of this list. If the list is full, its first token is dropped.
+     * @param element The token to add.
+     */
+    @Override
+    public void addLast(final int element) {
+        if (size == buffer.length) {
+            buffer[start] = element;
+            start = wrap(start + 1);
+        } else {
+            buffer[wrap(start + size)] = element;
+            size++;
+        }
+    }
+
+    @Override
+    public int head() {
+        return buffer[start];
+    }
+
+    @Override
+    public int get(final int index) {
+        return buffer[wrap(start + index)];
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Gets the maximum number of tokens this list holds.
+     * @return The capacity of this list.
+     */
+    public int capacity() {
+        return buffer.length;
+    }
+
+    /**
+     * Returns a view of every element except the first one. This doesn't allocate.
+     * @return A token list with every element in this one except the first.
+     */
+    @Override
+    public TokenList tail() {
+        return view(1);
+    }
+
+    /**
+     * Returns a view of this list that skips a number of tokens from the front. This doesn't allocate.
+     * @param offset The number of tokens to skip. Offsets beyond the capacity of this list give an empty view.
+     * @return A token list with every element in this one except the first offset elements.
+     */
+    public TokenList view(final int offset) {
+        return offset == 0 ? this : views[Math.min(offset, buffer.length)];
+    }
+
+    /**
+     * Removes every token from this list.
+     */
+    public void clear() {
+        start = 0;
+        size = 0;
+    }
+
+    @Override
+    public boolean containsUnknown() {
+        return containsUnknown(0);
+    }
+
+    @Override
+    public String toString() {
+        return toString(0);
+    }
+
+    //==========================================================================
+    // Private helper methods
+    //==========================================================================
+
+    private int wrap(final int index) {
+        return index < buffer.length ? index : index - buffer.length;
+    }
+
+    private boolean containsUnknown(final int offset) {
+        for (int i = offset; i < size; i++) {
+            if (get(i) == Lexicon.UNKNOWN_ID) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private String toString(final int offset) {
+        final StringBuilder stringBuilder = new StringBuilder("[ ");
+        for (int i = offset; i < size; i++) {
+            stringBuilder.append(get(i)).append(" ");
+        }
+        return stringBuilder.append("]").toString();
+    }
+
+    /**
+     * A read-only view of the list that skips a fixed number of tokens from the front.
+     */
+    private class View implements TokenList {
+        private final int offset;
+
+        View(final int offset) {
+            this.offset = offset;
+        }
+
+        @Override
+        public void addFirst(final int element) {
+            throw new UnsupportedOperationException("Views of a RingTokenList can't be added to");
+        }
+
+        @Override
+        public void addLast(final int element) {
+            throw new UnsupportedOperationException("Views of a RingTokenList can't be added to");
+        }
+
+        @Override
+        public int head() {
+            return RingTokenList.this.get(offset);
+        }
+
+        @Override
+        public int get(final int index) {
+            return RingTokenList.this.get(offset + index);
+        }
+
+        @Override
+        public int size() {
+            return Math.max(0, size - offset);
+        }
+
+        @Override
+        public TokenList tail() {
+            return view(offset + 1);
+        }
+
+        @Override
+        public boolean containsUnknown() {
+            return RingTokenList.this.containsUnknown(offset);
+        }
+
+        @Override
+        public String toString() {
+            return RingTokenList.this.toString(offset);
+        }
+    }
+}
@@ -1,17 +1,24 @@
 package com.cs5740.tokenlist;
 
 /**
- * Just a list of tokens.
+ * Just a list of tokens. Tokens are word IDs handed out by a {@link com.cs5740.models.Lexicon}.
  *
  * Implementations of this class make no guarantee on that separate instances will not have pointers
  * to the same underlying information.
  */
 public interface TokenList {
-    void addFirst(final String element);
+    void addFirst(final int element);
 
-    void addLast(final String element);
+    void addLast(final int element);
 
-    String head();
+    int head();
+
+    /**
+     * Gets the token at a position in this list.
+     * @param index The position of the token, where zero is the head.
+     * @return The token at the given position.
+     */
+    int get(final int index);
 
     int size();
 